@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * Runs the benchmarks selected by the JMH command line, with the GC profiler
+ * so that the allocation rate and GC activity of each benchmark is reported
+ * along with its time.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar [JMH options] [benchmark regexp]
+ * </pre>
+ *
+ * @author hhildebrand
+ *
+ */
+public class Benchmarks {
+    public static final int    MAX_STATE_SIZE = 1 << 14;
+    public static final String SERVICE_TYPE   = "service:bench";
+
+    /**
+     * @return an executor which notifies listeners on the calling thread, so
+     *         that the cost of dispatch is measured by the benchmark
+     */
+    public static Executor inline() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    public static void main(String[] argv) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(argv);
+        new Runner(new OptionsBuilder().parent(options)
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+    /**
+     * @param index
+     * @param groups
+     *            - the number of distinct values of the group property
+     * @return the state of the benchmark service of the index
+     */
+    public static byte[] stateOf(int index, int groups) throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("group", Integer.toString(index % groups));
+        properties.put("load", Integer.toString(index % 100));
+        return GossipScope.serialize(urlOf(index), properties, MAX_STATE_SIZE);
+    }
+
+    public static ServiceURL urlOf(int index) throws Exception {
+        return new ServiceURL(String.format("%s://host-%s.example.com:8080/",
+                                            SERVICE_TYPE, index));
+    }
+
+    private Benchmarks() {
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * The cost of the fan out of service events to listeners, across the number
+ * of listeners and the fraction of listeners matching the event. Listeners
+ * are notified on the calling thread, so that the cost of the callbacks is
+ * included.
+ *
+ * @author hhildebrand
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    /**
+     * A listener counting its events, so that the callback is not eliminated
+     */
+    public static class CountingListener implements ServiceListener {
+        public volatile long events;
+
+        @Override
+        public void serviceChanged(ServiceEvent event) {
+            events++;
+        }
+    }
+
+    public static final int        BATCH_SIZE = 100;
+
+    @Param({ "1", "10", "100", "1000", "10000" })
+    public int                     listeners;
+    /**
+     * The fraction of the listeners matching the events
+     */
+    @Param({ "1", "0.01" })
+    public double                  selectivity;
+
+    private List<ServiceReference> batch;
+    private ServiceReference       reference;
+    private GossipScope            scope;
+
+    @Benchmark
+    public void serviceChanged() {
+        scope.serviceChanged(reference, EventType.MODIFIED);
+    }
+
+    @Benchmark
+    public void serviceChangedBatch() {
+        scope.serviceChanged(batch, EventType.MODIFIED);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scope = new GossipScope(Benchmarks.inline(),
+                                new GossipConfiguration().construct());
+        int groups = (int) Math.round(1.0 / selectivity);
+        for (int i = 0; i < listeners; i++) {
+            scope.addServiceListener(new CountingListener(),
+                                     String.format("(group=%s)", i % groups));
+        }
+        reference = GossipScope.deserialize(UUID.randomUUID(),
+                                            Benchmarks.stateOf(0, groups));
+        batch = new ArrayList<ServiceReference>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(GossipScope.deserialize(UUID.randomUUID(),
+                                              Benchmarks.stateOf(i * groups,
+                                                                 groups)));
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        scope.stop();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.InvalidSyntaxException;
+
+/**
+ * The cost of adding a listener, which replays the REGISTERED events of the
+ * matching services already in the registry, across the size of the registry
+ * and the fraction of the services matching the listener
+ *
+ * @author hhildebrand
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@State(Scope.Benchmark)
+public class ListenerReplayBenchmark {
+    /**
+     * The fraction of the services matching the listener
+     */
+    @Param({ "1", "0.01" })
+    public double                              selectivity;
+    @Param({ "1000", "10000", "100000" })
+    public int                                 services;
+
+    private DispatchBenchmark.CountingListener listener;
+    private String                             query;
+    private GossipScope                        scope;
+
+    @Benchmark
+    public long addServiceListener() throws InvalidSyntaxException {
+        scope.addServiceListener(listener, query);
+        scope.removeServiceListener(listener, query);
+        return listener.events;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scope = new GossipScope(Benchmarks.inline(),
+                                new GossipConfiguration().construct());
+        int groups = (int) Math.round(1.0 / selectivity);
+        for (int i = 0; i < services; i++) {
+            scope.register(UUID.randomUUID(), Benchmarks.stateOf(i, groups));
+        }
+        listener = new DispatchBenchmark.CountingListener();
+        query = "(group=0)";
+    }
+
+    @TearDown
+    public void teardown() {
+        scope.stop();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * The cost of looking up services, across the size of the registry and the
+ * selectivity of the query
+ *
+ * @author hhildebrand
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+    /**
+     * The fraction of the services matching the query
+     */
+    @Param({ "1", "0.1", "0.01", "0.001" })
+    public double       selectivity;
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int          services;
+
+    private String      query;
+    private GossipScope scope;
+
+    @Benchmark
+    public List<ServiceReference> getServiceReferences()
+                                                        throws InvalidSyntaxException {
+        return scope.getServiceReferences(Benchmarks.SERVICE_TYPE, query);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scope = new GossipScope(Benchmarks.inline(),
+                                new GossipConfiguration().construct());
+        int groups = (int) Math.round(1.0 / selectivity);
+        for (int i = 0; i < services; i++) {
+            scope.register(UUID.randomUUID(), Benchmarks.stateOf(i, groups));
+        }
+        query = "(group=0)";
+    }
+
+    @TearDown
+    public void teardown() {
+        scope.stop();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * The cost of serializing and deserializing service states, across the number
+ * of service properties
+ *
+ * @author hhildebrand
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({ "0", "4", "16", "64" })
+    public int                  properties;
+
+    private int                 offset;
+    private Map<String, String> props;
+    private UUID                registration;
+    private byte[]              state;
+    private ServiceURL          url;
+
+    @Benchmark
+    public ServiceReferenceImpl deserialize() {
+        return GossipScope.deserialize(registration, state);
+    }
+
+    @Benchmark
+    public Map<String, String> propertiesFrom() {
+        return GossipScope.propertiesFrom(state, offset);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return GossipScope.serialize(url, props, Benchmarks.MAX_STATE_SIZE);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        url = Benchmarks.urlOf(1);
+        props = new HashMap<String, String>();
+        for (int i = 0; i < properties; i++) {
+            props.put("property." + i, "value-" + i);
+        }
+        registration = UUID.randomUUID();
+        state = GossipScope.serialize(url, props, Benchmarks.MAX_STATE_SIZE);
+        offset = 4 + (state[2] << 8 | state[3] & 0xff);
+    }
+}
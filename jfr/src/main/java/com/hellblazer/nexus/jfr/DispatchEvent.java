@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The evaluation of the listener filters against a batch of service events,
+ * and the queuing of the notifications of the matching listeners
+ *
+ * @author hhildebrand
+ *
+ */
+@Name("com.hellblazer.nexus.Dispatch")
+@Label("Service Event Dispatch")
+@Category({ "Nexus", "Discovery" })
+@Description("The listener filters evaluated against a batch of service events")
+@StackTrace(false)
+public class DispatchEvent extends Event {
+    @Label("Filter Evaluations")
+    int  evaluations;
+
+    @Label("Events")
+    int  events;
+
+    @Label("Filter Time")
+    @Timespan
+    long filterTime;
+
+    @Label("Matched Listeners")
+    int  matched;
+}
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus.jfr;
+
+import java.util.UUID;
+
+import com.hellblazer.nexus.GossipScope;
+import com.hellblazer.nexus.GossipScopeMetrics;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+
+/**
+ * Emits Java Flight Recorder events for the hot paths of a scope, so that
+ * discovery stalls may be correlated with GC and thread activity in a flight
+ * recording. The events are only constructed when they are enabled in the
+ * recording, and the measurements are passed on to the delegate metrics, if
+ * any.
+ *
+ * @author hhildebrand
+ *
+ */
+public class FlightRecorderMetrics implements GossipScopeMetrics {
+    /**
+     * Instrument the scope with flight recorder events, passing the
+     * measurements on to the current metrics of the scope
+     *
+     * @param scope
+     * @return the metrics installed
+     */
+    public static FlightRecorderMetrics install(GossipScope scope) {
+        FlightRecorderMetrics metrics = new FlightRecorderMetrics(
+                                                                  scope.getMetrics());
+        scope.setMetrics(metrics);
+        return metrics;
+    }
+
+    private final GossipScopeMetrics delegate;
+
+    public FlightRecorderMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param delegate
+     *            - the metrics the measurements are passed on to, or null
+     */
+    public FlightRecorderMetrics(GossipScopeMetrics delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void dispatchQueued() {
+        if (delegate != null) {
+            delegate.dispatchQueued();
+        }
+    }
+
+    @Override
+    public void dispatchStarted() {
+        if (delegate != null) {
+            delegate.dispatchStarted();
+        }
+    }
+
+    @Override
+    public void filtered(int events, int evaluations, int matched, long nanos) {
+        if (delegate != null) {
+            delegate.filtered(events, evaluations, matched, nanos);
+        }
+        DispatchEvent event = new DispatchEvent();
+        if (event.isEnabled()) {
+            event.events = events;
+            event.evaluations = evaluations;
+            event.matched = matched;
+            event.filterTime = nanos;
+            event.commit();
+        }
+    }
+
+    public GossipScopeMetrics getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void ingested(UUID id, EventType type, int bytes, long nanos) {
+        if (delegate != null) {
+            delegate.ingested(id, type, bytes, nanos);
+        }
+        IngestEvent event = new IngestEvent();
+        if (event.isEnabled()) {
+            event.registration = id.toString();
+            event.type = type.name();
+            event.bytes = bytes;
+            event.decodeTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void lookedUp(String serviceType, String query, int scanned,
+                         int results, long nanos) {
+        if (delegate != null) {
+            delegate.lookedUp(serviceType, query, scanned, results, nanos);
+        }
+        LookupEvent event = new LookupEvent();
+        if (event.isEnabled()) {
+            event.serviceType = serviceType;
+            event.query = query;
+            event.scanned = scanned;
+            event.results = results;
+            event.lookupTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void notified(ServiceListener listener, EventType type, long nanos,
+                         Throwable error) {
+        if (delegate != null) {
+            delegate.notified(listener, type, nanos, error);
+        }
+        ListenerEvent event = new ListenerEvent();
+        if (event.isEnabled()) {
+            event.listener = String.valueOf(listener);
+            event.type = type.name();
+            event.callbackTime = nanos;
+            event.exception = error == null ? null : error.toString();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void propagated(EventType type, long millis) {
+        if (delegate != null) {
+            delegate.propagated(type, millis);
+        }
+    }
+
+    @Override
+    public void reordered() {
+        if (delegate != null) {
+            delegate.reordered();
+        }
+    }
+
+    @Override
+    public void serialized(int states, long nanos) {
+        if (delegate != null) {
+            delegate.serialized(states, nanos);
+        }
+    }
+
+    @Override
+    public void skipped(long versions) {
+        if (delegate != null) {
+            delegate.skipped(versions);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The ingest of a service state delivered by gossip
+ *
+ * @author hhildebrand
+ *
+ */
+@Name("com.hellblazer.nexus.Ingest")
+@Label("Service State Ingest")
+@Category({ "Nexus", "Discovery" })
+@Description("A service state registered, updated or deregistered by gossip")
+@StackTrace(false)
+public class IngestEvent extends Event {
+    @Label("State Size")
+    @DataAmount
+    int    bytes;
+
+    @Label("Decode Time")
+    @Description("The time taken to deserialize the state, or -1 if the state was not deserialized")
+    @Timespan
+    long   decodeTime;
+
+    @Label("Registration")
+    String registration;
+
+    @Label("Type")
+    String type;
+}
@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A lookup of the services of the scope
+ *
+ * @author hhildebrand
+ *
+ */
+@Name("com.hellblazer.nexus.Lookup")
+@Label("Service Lookup")
+@Category({ "Nexus", "Discovery" })
+@Description("A lookup of the services of a type matching a query")
+@StackTrace(false)
+public class LookupEvent extends Event {
+    @Label("Lookup Time")
+    @Timespan
+    long   lookupTime;
+
+    @Label("Query")
+    String query;
+
+    @Label("Results")
+    int    results;
+
+    @Label("Scanned")
+    @Description("The number of services the lookup was evaluated against")
+    int    scanned;
+
+    @Label("Service Type")
+    String serviceType;
+}
@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of service properties, stored as a single array of
+ * alternating keys and values. Property maps are small, so lookup is a linear
+ * scan, short circuited by the identity of canonical keys.
+ *
+ * @author hhildebrand
+ *
+ */
+final class CompactProperties extends AbstractMap<String, String> {
+
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * @param properties
+     * @return the compact, immutable copy of the properties
+     */
+    public static CompactProperties of(Map<String, String> properties) {
+        if (properties instanceof CompactProperties) {
+            return (CompactProperties) properties;
+        }
+        if (properties.isEmpty()) {
+            return new CompactProperties(EMPTY);
+        }
+        String[] entries = new String[properties.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            entries[i++] = entry.getKey();
+            entries[i++] = entry.getValue();
+        }
+        return new CompactProperties(entries);
+    }
+
+    private final String[] entries;
+
+    private CompactProperties(String[] entries) {
+        this.entries = entries;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < entries.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (i >= entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(
+                                                                                                   entries[i],
+                                                                                                   entries[i + 1]);
+                        i += 2;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException(
+                                                                "Service properties are immutable");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.length / 2;
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : entries[i + 1];
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return entries.length / 2;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < entries.length; i += 2) {
+            if (entries[i] == key) {
+                return i;
+            }
+        }
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < entries.length; i += 2) {
+            if (key.equals(entries[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases the memory of direct and mapped buffers eagerly, rather than when
+ * the buffers are collected, using the cleaner of the platform.
+ *
+ * @author hhildebrand
+ *
+ */
+class DirectBuffers {
+    private static final Method CLEAN;
+    private static final Object UNSAFE;
+
+    static {
+        Method clean = null;
+        Object unsafe = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            clean = type.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            // prior to Java 9, the cleaner of the buffer is used
+            clean = null;
+        }
+        CLEAN = clean;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Release the memory of the direct or mapped buffer. The buffer must not
+     * be accessed afterwards. If the memory cannot be released eagerly, it is
+     * released when the buffer is collected
+     *
+     * @param buffer
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (CLEAN != null) {
+                CLEAN.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerOf = buffer.getClass().getMethod("cleaner");
+            cleanerOf.setAccessible(true);
+            Object cleaner = cleanerOf.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to the collector
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * Damps the events of services flapping between registered and unregistered,
+ * according to the damping policy. The scope consults the damper before
+ * dispatching the events of a service, and the damper dispatches the events it
+ * has held down or suppressed once they are due. The hold down and reuse
+ * timers of the damper run on the timing wheel of the scope.
+ *
+ * @author hhildebrand
+ *
+ */
+class FlapDamper {
+
+    /**
+     * The scope the damper dispatches events to
+     */
+    static interface Dispatcher {
+        void dispatch(ServiceReference reference, EventType type);
+
+        /**
+         * @param serviceRegistration
+         * @return the current reference of the registration, or null
+         */
+        ServiceReference lookup(UUID serviceRegistration);
+    }
+
+    /**
+     * The damping state of a service
+     */
+    private static class Flap {
+        /**
+         * Listeners were last notified that the service is registered
+         */
+        private boolean             announced = true;
+        private TimingWheel.Timeout check;
+        /**
+         * Events of the service have been suppressed
+         */
+        private boolean             dirty;
+        private int                 flaps;
+        private TimingWheel.Timeout holdDown;
+        private double              penalty;
+        private boolean             suppressed;
+        private long                updated;
+        private ServiceReference    withdrawn;
+    }
+
+    private static final Logger            log   = LoggerFactory.getLogger(FlapDamper.class);
+
+    private final Dispatcher               dispatcher;
+    private final ConcurrentMap<UUID, Flap> flaps = new ConcurrentHashMap<UUID, Flap>();
+    private final FlapDamping              policy;
+    private final TimingWheel              wheel;
+
+    public FlapDamper(FlapDamping policy, TimingWheel wheel,
+                      Dispatcher dispatcher) {
+        this.policy = policy;
+        this.wheel = wheel;
+        this.dispatcher = dispatcher;
+    }
+
+    public FlapDamping getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @param serviceRegistration
+     * @return the damping state of the service, or null if the service is not
+     *         flapping
+     */
+    public synchronized FlapState getState(UUID serviceRegistration) {
+        Flap flap = flaps.get(serviceRegistration);
+        if (flap == null) {
+            return null;
+        }
+        return stateOf(serviceRegistration, flap, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the damping state of the flapping services
+     */
+    public synchronized List<FlapState> getStates() {
+        long now = System.currentTimeMillis();
+        List<FlapState> states = new ArrayList<FlapState>(flaps.size());
+        for (Map.Entry<UUID, Flap> entry : flaps.entrySet()) {
+            states.add(stateOf(entry.getKey(), entry.getValue(), now));
+        }
+        return states;
+    }
+
+    /**
+     * The service has been modified
+     *
+     * @param serviceRegistration
+     * @return true if the MODIFIED event is dispatched now
+     */
+    public synchronized boolean modified(UUID serviceRegistration) {
+        Flap flap = flaps.get(serviceRegistration);
+        if (flap == null || !flap.suppressed) {
+            return true;
+        }
+        flap.dirty = true;
+        return false;
+    }
+
+    /**
+     * The service has been registered
+     *
+     * @param serviceRegistration
+     * @param reference
+     * @return the event dispatched now, or null if no event is dispatched
+     */
+    public synchronized EventType restored(UUID serviceRegistration,
+                                           ServiceReference reference) {
+        Flap flap = flaps.get(serviceRegistration);
+        if (flap == null) {
+            return EventType.REGISTERED;
+        }
+        boolean held = flap.holdDown != null;
+        if (held) {
+            flap.holdDown.cancel();
+            flap.holdDown = null;
+        }
+        if (flap.suppressed) {
+            flap.dirty = true;
+            return null;
+        }
+        if (held) {
+            // listeners were never told the service was withdrawn
+            return flap.withdrawn.getProperties().equals(reference.getProperties()) ? null
+                                                                                    : EventType.MODIFIED;
+        }
+        flap.announced = true;
+        return EventType.REGISTERED;
+    }
+
+    /**
+     * Release the services held by the damper, cancelling its timers and
+     * dispatching the events it has held down or suppressed, so that the
+     * listeners reflect the current state of the services once damping is
+     * disabled
+     */
+    public void release() {
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        List<EventType> types = new ArrayList<EventType>();
+        synchronized (this) {
+            for (Map.Entry<UUID, Flap> entry : flaps.entrySet()) {
+                Flap flap = entry.getValue();
+                if (flap.check != null) {
+                    flap.check.cancel();
+                    flap.check = null;
+                }
+                boolean held = flap.holdDown != null;
+                if (held) {
+                    flap.holdDown.cancel();
+                    flap.holdDown = null;
+                }
+                if (!held && !flap.dirty) {
+                    continue;
+                }
+                flap.dirty = false;
+                ServiceReference reference = dispatcher.lookup(entry.getKey());
+                if (reference != null) {
+                    references.add(reference);
+                    types.add(flap.announced ? EventType.MODIFIED
+                                            : EventType.REGISTERED);
+                } else if (flap.announced) {
+                    references.add(flap.withdrawn);
+                    types.add(EventType.UNREGISTERED);
+                }
+            }
+            flaps.clear();
+        }
+        for (int i = 0; i < references.size(); i++) {
+            dispatcher.dispatch(references.get(i), types.get(i));
+        }
+    }
+
+    /**
+     * The service has been withdrawn by gossip. Penalize the service, and hold
+     * down or suppress its UNREGISTERED event as the policy dictates
+     *
+     * @param serviceRegistration
+     * @param reference
+     *            - the withdrawn reference
+     * @return true if the UNREGISTERED event is dispatched now
+     */
+    public synchronized boolean withdrawn(final UUID serviceRegistration,
+                                          ServiceReference reference) {
+        long now = System.currentTimeMillis();
+        Flap flap = flaps.get(serviceRegistration);
+        if (flap == null) {
+            flap = new Flap();
+            flap.updated = now;
+            flaps.put(serviceRegistration, flap);
+        }
+        decay(flap, now);
+        flap.penalty = Math.min(policy.getMaximumPenalty(), flap.penalty
+                                                            + policy.getPenalty());
+        flap.flaps++;
+        flap.withdrawn = reference;
+        if (!flap.suppressed && flap.penalty >= policy.getSuppressThreshold()) {
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Suppressing the events of flapping service %s, penalty %.1f",
+                                       serviceRegistration, flap.penalty));
+            }
+            flap.suppressed = true;
+        }
+        schedule(serviceRegistration, flap, now);
+        if (flap.suppressed) {
+            flap.dirty = true;
+            return false;
+        }
+        if (flap.holdDown == null && flap.announced
+            && policy.getHoldDown() > 0) {
+            final Flap held = flap;
+            flap.holdDown = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    holdDownExpired(serviceRegistration, held);
+                }
+            }, policy.getHoldDown(), TimeUnit.MILLISECONDS);
+            return false;
+        }
+        if (flap.holdDown != null) {
+            return false;
+        }
+        flap.announced = false;
+        return true;
+    }
+
+    /**
+     * Periodic check of the damping state, lifting the suppression of the
+     * service once its penalty has decayed below the reuse threshold, and
+     * forgetting the service once its penalty is negligible
+     */
+    private void check(UUID serviceRegistration, Flap flap) {
+        ServiceReference reference;
+        EventType type;
+        synchronized (this) {
+            if (flaps.get(serviceRegistration) != flap) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            decay(flap, now);
+            if (!flap.suppressed || flap.penalty >= policy.getReuseThreshold()) {
+                if (!flap.suppressed && flap.holdDown == null
+                    && flap.penalty < forgetThreshold()) {
+                    flaps.remove(serviceRegistration);
+                    flap.check = null;
+                } else {
+                    schedule(serviceRegistration, flap, now);
+                }
+                return;
+            }
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Reusing flapping service %s, penalty %.1f",
+                                       serviceRegistration, flap.penalty));
+            }
+            flap.suppressed = false;
+            schedule(serviceRegistration, flap, now);
+            if (!flap.dirty) {
+                return;
+            }
+            flap.dirty = false;
+            reference = dispatcher.lookup(serviceRegistration);
+            if (reference != null) {
+                type = flap.announced ? EventType.MODIFIED
+                                     : EventType.REGISTERED;
+                flap.announced = true;
+            } else if (flap.announced && flap.holdDown == null) {
+                reference = flap.withdrawn;
+                type = EventType.UNREGISTERED;
+                flap.announced = false;
+            } else {
+                return;
+            }
+        }
+        dispatcher.dispatch(reference, type);
+    }
+
+    private void decay(Flap flap, long now) {
+        long elapsed = now - flap.updated;
+        if (elapsed > 0) {
+            flap.penalty *= Math.pow(2.0, -(double) elapsed
+                                          / policy.getHalfLife());
+            flap.updated = now;
+        }
+    }
+
+    private double forgetThreshold() {
+        return policy.getReuseThreshold() / 2;
+    }
+
+    private void holdDownExpired(UUID serviceRegistration, Flap flap) {
+        ServiceReference reference;
+        synchronized (this) {
+            if (flap.holdDown == null || flap.holdDown.isPending()) {
+                return;
+            }
+            flap.holdDown = null;
+            if (flap.suppressed) {
+                flap.dirty = true;
+                return;
+            }
+            flap.announced = false;
+            reference = flap.withdrawn;
+        }
+        dispatcher.dispatch(reference, EventType.UNREGISTERED);
+    }
+
+    /**
+     * Schedule the next check of the service, at the time its penalty decays
+     * below the reuse threshold if suppressed, or otherwise below the forget
+     * threshold
+     */
+    private void schedule(final UUID serviceRegistration, final Flap flap,
+                          long now) {
+        if (flap.check != null) {
+            flap.check.cancel();
+        }
+        double threshold = flap.suppressed ? policy.getReuseThreshold()
+                                          : forgetThreshold();
+        long delay = 0;
+        if (flap.penalty >= threshold) {
+            delay = (long) Math.ceil(policy.getHalfLife()
+                                     * (Math.log(flap.penalty / threshold) / Math.log(2.0)));
+        }
+        flap.check = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(serviceRegistration, flap);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private FlapState stateOf(UUID serviceRegistration, Flap flap, long now) {
+        double elapsed = now - flap.updated;
+        double penalty = flap.penalty
+                         * Math.pow(2.0, -elapsed / policy.getHalfLife());
+        return new FlapState(serviceRegistration, penalty, flap.flaps,
+                             flap.suppressed, flap.holdDown != null);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The policy damping the events of services which flap between registered
+ * and unregistered. Each withdrawal of a service adds a penalty, which decays
+ * exponentially with the half life. Once the penalty of a service reaches the
+ * suppress threshold, the events of the service are suppressed until the
+ * penalty has decayed below the reuse threshold. A service which is
+ * registered again within the hold down window of its withdrawal is restored
+ * silently.
+ *
+ * @author hhildebrand
+ *
+ */
+public class FlapDamping {
+    private final long   halfLife;
+    private final long   holdDown;
+    private final double maximumPenalty;
+    private final double penalty;
+    private final double reuseThreshold;
+    private final double suppressThreshold;
+
+    /**
+     * @param penalty
+     *            - the penalty of a withdrawal
+     * @param suppressThreshold
+     *            - the penalty at which the events of a service are suppressed
+     * @param reuseThreshold
+     *            - the penalty below which suppressed events resume
+     * @param halfLife
+     *            - the half life of the penalty
+     * @param holdDown
+     *            - the window within which a withdrawn service may be
+     *            restored silently, zero if withdrawals are not held down
+     * @param unit
+     *            - the unit of the half life and hold down
+     */
+    public FlapDamping(double penalty, double suppressThreshold,
+                       double reuseThreshold, long halfLife, long holdDown,
+                       TimeUnit unit) {
+        if (penalty <= 0) {
+            throw new IllegalArgumentException("Penalty must be positive");
+        }
+        if (reuseThreshold <= 0 || reuseThreshold >= suppressThreshold) {
+            throw new IllegalArgumentException(
+                                               "Reuse threshold must be positive and less than the suppress threshold");
+        }
+        if (halfLife <= 0) {
+            throw new IllegalArgumentException("Half life must be positive");
+        }
+        if (holdDown < 0) {
+            throw new IllegalArgumentException(
+                                               "Hold down must not be negative");
+        }
+        this.penalty = penalty;
+        this.suppressThreshold = suppressThreshold;
+        this.reuseThreshold = reuseThreshold;
+        this.halfLife = unit.toMillis(halfLife);
+        this.holdDown = unit.toMillis(holdDown);
+        maximumPenalty = suppressThreshold * 4;
+    }
+
+    /**
+     * @return the half life of the penalty in milliseconds
+     */
+    public long getHalfLife() {
+        return halfLife;
+    }
+
+    /**
+     * @return the hold down window in milliseconds
+     */
+    public long getHoldDown() {
+        return holdDown;
+    }
+
+    /**
+     * @return the ceiling of the penalty, four times the suppress threshold,
+     *         which bounds the time a service may remain suppressed
+     */
+    public double getMaximumPenalty() {
+        return maximumPenalty;
+    }
+
+    public double getPenalty() {
+        return penalty;
+    }
+
+    public double getReuseThreshold() {
+        return reuseThreshold;
+    }
+
+    public double getSuppressThreshold() {
+        return suppressThreshold;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("FlapDamping [penalty=%s, suppress=%s, reuse=%s, half life=%s ms, hold down=%s ms]",
+                             penalty, suppressThreshold, reuseThreshold,
+                             halfLife, holdDown);
+    }
+}
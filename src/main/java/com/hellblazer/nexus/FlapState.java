@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.UUID;
+
+/**
+ * The damping state of a flapping service
+ *
+ * @author hhildebrand
+ *
+ */
+public class FlapState {
+    private final int     flaps;
+    private final boolean heldDown;
+    private final double  penalty;
+    private final UUID    registration;
+    private final boolean suppressed;
+
+    public FlapState(UUID registration, double penalty, int flaps,
+                     boolean suppressed, boolean heldDown) {
+        this.registration = registration;
+        this.penalty = penalty;
+        this.flaps = flaps;
+        this.suppressed = suppressed;
+        this.heldDown = heldDown;
+    }
+
+    /**
+     * @return the number of withdrawals of the service since its damping
+     *         state was created
+     */
+    public int getFlaps() {
+        return flaps;
+    }
+
+    /**
+     * @return the decayed penalty of the service
+     */
+    public double getPenalty() {
+        return penalty;
+    }
+
+    public UUID getRegistration() {
+        return registration;
+    }
+
+    /**
+     * @return true if the service has been withdrawn, and its UNREGISTERED
+     *         event is held down
+     */
+    public boolean isHeldDown() {
+        return heldDown;
+    }
+
+    /**
+     * @return true if the events of the service are suppressed
+     */
+    public boolean isSuppressed() {
+        return suppressed;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("FlapState [%s, penalty=%.1f, flaps=%s, suppressed=%s, held down=%s]",
+                             registration, penalty, flaps, suppressed,
+                             heldDown);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceType;
+
+/**
+ * The incremental account of the footprint of the services materialized by a
+ * scope, per service type. The store of the scope maintains the account after
+ * each update, as it does the numeric index, and the scope accounts for its
+ * dormant states.
+ * <p>
+ * The retained heap of a reference is estimated for a 64 bit JVM with
+ * compressed references and compact strings: the reference, its registration,
+ * URL and compact property map, the strings unique to the service, and its
+ * share of the registry. Keys and values pooled across services are not
+ * included.
+ *
+ * @author hhildebrand
+ *
+ */
+class FootprintAccount {
+
+    /**
+     * The account of a service type
+     */
+    private static class Tally {
+        private final AtomicLong heapBytes  = new AtomicLong();
+        private final AtomicLong services   = new AtomicLong();
+        private final AtomicLong stateBytes = new AtomicLong();
+    }
+
+    private static final int ARRAY      = 16;
+    private static final int ENTRY      = 32;
+    private static final int POINTER    = 4;
+    private static final int PROPERTIES = 24;
+    private static final int REFERENCE  = 24;
+    private static final int STRING     = 24;
+    private static final int URL        = 32;
+    private static final int UUID       = 32;
+
+    /**
+     * @param ref
+     * @return the estimated heap retained by the reference
+     */
+    public static long heapOf(ServiceReferenceImpl ref) {
+        Map<String, String> properties = ref.currentProperties();
+        return REFERENCE + UUID + URL + PROPERTIES
+               + align(ARRAY + POINTER * 2 * properties.size())
+               + sizeOf(ref.getUrl().getUrlPath())
+               + sizeOf(properties.get(ServiceScope.SERVICE_REGISTRATION))
+               + ENTRY;
+    }
+
+    /**
+     * @param ref
+     * @return the service type the reference is accounted to
+     */
+    public static String serviceTypeOf(ServiceReferenceImpl ref) {
+        return String.valueOf(ref.currentProperties().get(ServiceScope.SERVICE_TYPE));
+    }
+
+    /**
+     * @param ref
+     * @return the size of the serialized state of the reference
+     */
+    public static long stateBytesOf(ServiceReferenceImpl ref) {
+        long size = 4 + ref.getUrl().toString().length()
+                    - ServiceType.SERVICE_PREFIX.length();
+        for (Map.Entry<String, String> entry : ref.currentProperties().entrySet()) {
+            String key = entry.getKey();
+            if (!ServiceScope.SERVICE_TYPE.equals(key)
+                && !ServiceScope.SERVICE_REGISTRATION.equals(key)
+                && !ServiceScope.SERVICE_URL_PATH.equals(key)) {
+                size += 2 + key.length() + entry.getValue().length();
+            }
+        }
+        return size;
+    }
+
+    private static long align(long size) {
+        return size + 7 & ~7L;
+    }
+
+    private static long sizeOf(String string) {
+        return string == null ? 0 : STRING + align(ARRAY + string.length());
+    }
+
+    private final AtomicLong                   dormantBytes    = new AtomicLong();
+    private final AtomicLong                   dormantServices = new AtomicLong();
+    private final ConcurrentMap<String, Tally> tallies         = new ConcurrentHashMap<String, Tally>();
+
+    /**
+     * Account for a service materialized on the heap
+     *
+     * @param ref
+     */
+    public void added(ServiceReferenceImpl ref) {
+        adjust(serviceTypeOf(ref), 1, stateBytesOf(ref), heapOf(ref));
+    }
+
+    /**
+     * Adjust the account of the service type
+     *
+     * @param serviceType
+     * @param services
+     *            - the change in the number of services
+     * @param stateBytes
+     *            - the change in the size of the serialized states
+     * @param heapBytes
+     *            - the change in the estimated retained heap
+     */
+    public void adjust(String serviceType, int services, long stateBytes,
+                       long heapBytes) {
+        Tally tally = tallies.get(serviceType);
+        if (tally == null) {
+            tally = new Tally();
+            Tally existing = tallies.putIfAbsent(serviceType, tally);
+            if (existing != null) {
+                tally = existing;
+            }
+        }
+        if (services != 0) {
+            tally.services.addAndGet(services);
+        }
+        tally.stateBytes.addAndGet(stateBytes);
+        if (heapBytes != 0) {
+            tally.heapBytes.addAndGet(heapBytes);
+        }
+    }
+
+    /**
+     * Account for a change in the dormant states
+     *
+     * @param services
+     *            - the change in the number of dormant states
+     * @param bytes
+     *            - the change in the size of the dormant states
+     */
+    public void dormant(int services, long bytes) {
+        if (services != 0) {
+            dormantServices.addAndGet(services);
+        }
+        dormantBytes.addAndGet(bytes);
+    }
+
+    public long getDormantBytes() {
+        return dormantBytes.get();
+    }
+
+    public long getDormantServices() {
+        return dormantServices.get();
+    }
+
+    /**
+     * @return the number of services of each service type
+     */
+    public Map<String, Integer> getServiceCounts() {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Tally> entry : tallies.entrySet()) {
+            long services = entry.getValue().services.get();
+            if (services > 0) {
+                counts.put(entry.getKey(), (int) services);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return the footprint of each service type
+     */
+    public Map<String, ServiceTypeFootprint> getServiceTypes() {
+        Map<String, ServiceTypeFootprint> footprints = new TreeMap<String, ServiceTypeFootprint>();
+        for (Map.Entry<String, Tally> entry : tallies.entrySet()) {
+            Tally tally = entry.getValue();
+            long services = tally.services.get();
+            if (services > 0) {
+                footprints.put(entry.getKey(),
+                               new ServiceTypeFootprint(
+                                                        services,
+                                                        tally.stateBytes.get(),
+                                                        tally.heapBytes.get()));
+            }
+        }
+        return footprints;
+    }
+
+    /**
+     * Account for a service removed from the heap
+     *
+     * @param ref
+     */
+    public void removed(ServiceReferenceImpl ref) {
+        adjust(serviceTypeOf(ref), -1, -stateBytesOf(ref), -heapOf(ref));
+    }
+
+    /**
+     * Account for a service replaced on the heap
+     *
+     * @param previous
+     * @param ref
+     */
+    public void replaced(ServiceReferenceImpl previous, ServiceReferenceImpl ref) {
+        String serviceType = serviceTypeOf(ref);
+        if (!serviceType.equals(serviceTypeOf(previous))) {
+            removed(previous);
+            added(ref);
+            return;
+        }
+        adjust(serviceType, 0, stateBytesOf(ref) - stateBytesOf(previous),
+               heapOf(ref) - heapOf(previous));
+    }
+}
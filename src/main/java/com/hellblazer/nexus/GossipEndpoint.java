@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import com.hellblazer.gossip.GossipListener;
+
+/**
+ * The replicated state a scope is built upon: the local member of a gossip
+ * ring, which replicates the registered states to every other member and
+ * notifies its listener of the states replicated by them. The ring is
+ * ordinarily a {@link com.hellblazer.gossip.Gossip}, but may be simulated
+ * in process to exercise a scope at scale
+ *
+ * @author hhildebrand
+ *
+ */
+public interface GossipEndpoint {
+
+    /**
+     * Deregister the replicated state
+     *
+     * @param id
+     */
+    void deregister(UUID id);
+
+    InetSocketAddress getLocalAddress();
+
+    /**
+     * @return the maximum size of a replicated state, in bytes
+     */
+    int getMaxStateSize();
+
+    /**
+     * Register the state, replicating it to the ring
+     *
+     * @param state
+     * @return the id of the replicated state
+     */
+    UUID register(byte[] state);
+
+    /**
+     * Set the listener notified of the states replicated by the other members
+     * of the ring
+     *
+     * @param listener
+     */
+    void setListener(GossipListener listener);
+
+    void start();
+
+    void terminate();
+
+    /**
+     * Update the replicated state
+     *
+     * @param id
+     * @param state
+     */
+    void update(UUID id, byte[] state);
+}
@@ -16,24 +16,42 @@
 
 package com.hellblazer.nexus;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +77,53 @@ import com.hellblazer.slp.ServiceURL;
  * 
  */
 public class GossipScope implements NetworkedScope {
+    /**
+     * Serializes a batch of service states, splitting the batch across the
+     * fork join pool
+     */
+    private static class BulkSerializer extends RecursiveAction {
+        private static final int                 THRESHOLD        = 16;
+        private static final long                serialVersionUID = 1L;
+
+        private final int                        from;
+        private final int                        maxStateSize;
+        private final List<Map<String, String>>  properties;
+        private final byte[][]                   states;
+        private final int                        to;
+        private final List<? extends ServiceURL> urls;
+
+        public BulkSerializer(List<? extends ServiceURL> urls,
+                              List<Map<String, String>> properties,
+                              byte[][] states, int maxStateSize, int from,
+                              int to) {
+            this.urls = urls;
+            this.properties = properties;
+            this.states = states;
+            this.maxStateSize = maxStateSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    states[i] = serialize(urls.get(i), properties.get(i),
+                                          maxStateSize);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BulkSerializer(urls, properties, states,
+                                         maxStateSize, from, mid),
+                      new BulkSerializer(urls, properties, states,
+                                         maxStateSize, mid, to));
+        }
+    }
+
     private class GossipDispatcher implements GossipListener {
 
         /*
@@ -164,9 +229,215 @@ public class GossipScope implements NetworkedScope {
         }
     }
 
-    private final static Logger log                     = LoggerFactory.getLogger(GossipScope.class);
+    /**
+     * The delivery of a batch of events to a listener, on the dispatch
+     * executor
+     */
+    private static class Notification implements Runnable {
+        private final ServiceListener                  listener;
+        private final GossipScopeMetrics               metrics;
+        private final StripedCounter                   pending;
+        private final List<? extends ServiceReference> references;
+        private final EventType                        type;
+
+        public Notification(ServiceListener listener,
+                            List<? extends ServiceReference> references,
+                            EventType type, GossipScopeMetrics metrics,
+                            StripedCounter pending) {
+            this.listener = listener;
+            this.references = references;
+            this.type = type;
+            this.metrics = metrics;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            pending.add(-1);
+            if (metrics != null) {
+                metrics.dispatchStarted();
+            }
+            for (ServiceReference reference : references) {
+                long start = metrics == null ? 0L : System.nanoTime();
+                Throwable error = null;
+                try {
+                    listener.serviceChanged(new ServiceEvent(type, reference));
+                } catch (Throwable e) {
+                    error = e;
+                    log.error(String.format("Error when notifying listener %s on reference %s type %s",
+                                            listener, reference, type), e);
+                }
+                if (metrics != null) {
+                    metrics.notified(listener, type, System.nanoTime() - start,
+                                     error);
+                }
+            }
+        }
+    }
+
+    /**
+     * The throttled property updates of a registered service
+     */
+    private class ThrottledUpdate implements Runnable {
+        private long                lastPublished;
+        private Map<String, String> pending;
+        private final UpdatePolicy  policy;
+        private Map<String, String> published;
+        private final UUID          registration;
+        private ScheduledFuture<?>  scheduled;
+
+        public ThrottledUpdate(ServiceReferenceImpl ref, UpdatePolicy policy) {
+            registration = ref.getRegistration();
+            published = denormalize(ref.currentProperties());
+            this.policy = policy;
+        }
+
+        public synchronized void cancel() {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+            pending = null;
+        }
+
+        /**
+         * Publish the pending update now, rather than at the end of the
+         * throttle window
+         */
+        public synchronized void flush() {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+            if (pending != null) {
+                Map<String, String> properties = pending;
+                pending = null;
+                publish(properties, System.currentTimeMillis());
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public synchronized void run() {
+            scheduled = null;
+            if (pending != null) {
+                Map<String, String> properties = pending;
+                pending = null;
+                publish(properties, System.currentTimeMillis());
+            }
+        }
+
+        public synchronized void update(Map<String, String> properties) {
+            long now = System.currentTimeMillis();
+            if (!isLeaseDue(properties, now)
+                && policy.isInsignificant(published, denormalize(properties))) {
+                if (log.isTraceEnabled()) {
+                    log.trace(String.format("Suppressing insignificant update of %s",
+                                            registration));
+                }
+                pending = null;
+                return;
+            }
+            if (scheduled == null && now - lastPublished >= policy.getWindow()) {
+                publish(properties, now);
+                return;
+            }
+            pending = properties;
+            if (scheduled == null) {
+                scheduled = timer.schedule(this,
+                                           lastPublished + policy.getWindow()
+                                                   - now, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * The lease of the service must be renewed by the other members
+         * before it expires, so updates are never suppressed once half the
+         * lease has elapsed since the last publication
+         */
+        private boolean isLeaseDue(Map<String, String> properties, long now) {
+            Number ttl = NumericIndex.decode(properties.get(LEASE_TTL));
+            return ttl != null && now - lastPublished >= ttl.doubleValue() / 2;
+        }
+
+        private void publish(Map<String, String> properties, long now) {
+            ServiceReferenceImpl ref = services.get(registration);
+            if (ref == null) {
+                return;
+            }
+            published = denormalize(properties);
+            lastPublished = now;
+            GossipScope.this.publish(ref, properties);
+        }
+    }
+
+    /**
+     * The default size of the registry above which unindexed lookups are
+     * scanned in parallel
+     */
+    public static final int           DEFAULT_PARALLEL_THRESHOLD = 10000;
+
+    /**
+     * The property holding the time to live of the lease of a service, in
+     * milliseconds. A service whose lease is not renewed by an update within
+     * its time to live is unregistered
+     */
+    public static final String        LEASE_TTL                  = "lease.ttl";
+
+    private final static Logger       log                        = LoggerFactory.getLogger(GossipScope.class);
+
+    /**
+     * The reserved property carrying the propagation stamp of a service state,
+     * when tracing is enabled. The stamp is never materialized as a property
+     * of the service
+     */
+    public static final String        TRACE                      = "nexus.trace";
+
+    private static final ForkJoinPool workers                    = new ForkJoinPool();
+
+    private static final int          MAXIMUM_INTERNED_STRINGS   = 1 << 16;
+
+    private static final int          MAXIMUM_TXT_STRING_SIZE    = 255;
+
+    /**
+     * The resolution of lease expiry and flap damping
+     */
+    private static final long         WHEEL_TICK                 = 100;
+
+    /**
+     * The canonical property keys, service types and repeated property values
+     * of the deserialized services
+     */
+    private static final StringPool   strings                    = new StringPool(
+                                                                                  MAXIMUM_INTERNED_STRINGS);
+
+    /**
+     * @param name
+     * @return a thread factory for daemon threads of the name
+     */
+    public static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            int i = 0;
 
-    private static final int    MAXIMUM_TXT_STRING_SIZE = 255;
+            @Override
+            public Thread newThread(Runnable arg0) {
+                Thread daemon = new Thread(arg0, String.format("%s[%s]", name,
+                                                               i++));
+                daemon.setDaemon(true);
+                daemon.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        log.warn(String.format("Uncaught exception on [%s]", t),
+                                 e);
+                    }
+                });
+                return daemon;
+            }
+        };
+    }
 
     /**
      * @param url
@@ -221,6 +492,25 @@ public class GossipScope implements NetworkedScope {
         return strings;
     }
 
+    /**
+     * Cheaply decode the service type from the serialized state, without
+     * materializing the service URL or properties
+     * 
+     * @param state
+     * @return the service type, or null if it cannot be determined from the
+     *         state
+     */
+    public static String serviceTypeOf(byte[] state) {
+        int len = state[2] << 8 | state[3] & 0xff;
+        int end = Math.min(state.length - 2, len + 4 - 2);
+        for (int i = 4; i < end; i++) {
+            if (state[i] == ':' && state[i + 1] == '/' && state[i + 2] == '/') {
+                return ServiceType.SERVICE_PREFIX + new String(state, 4, i - 4);
+            }
+        }
+        return null;
+    }
+
     /**
      * @param url
      * @param properties
@@ -229,7 +519,8 @@ public class GossipScope implements NetworkedScope {
     public static void normalize(ServiceURL url,
                                  Map<String, String> properties,
                                  UUID registration) {
-        properties.put(SERVICE_TYPE, url.getServiceType().toString());
+        properties.put(SERVICE_TYPE,
+                       strings.intern(url.getServiceType().toString()));
         properties.put(SERVICE_REGISTRATION, registration.toString());
         properties.put(SERVICE_URL_PATH, url.getUrlPath());
     }
@@ -249,8 +540,19 @@ public class GossipScope implements NetworkedScope {
                 if (i <= 0) {
                     log.warn(String.format("Found invalid property entry %s ",
                                            entry));
+                    continue;
+                }
+                String key = strings.intern(entry.substring(0, i));
+                if (TRACE.equals(key)) {
+                    continue;
+                }
+                String value = entry.substring(i + 1);
+                // registrations and url paths are unique to the service
+                if (!SERVICE_REGISTRATION.equals(key)
+                    && !SERVICE_URL_PATH.equals(key)) {
+                    value = strings.share(value);
                 }
-                properties.put(entry.substring(0, i), entry.substring(i + 1));
+                properties.put(key, value);
             }
         }
         return properties;
@@ -311,14 +613,98 @@ public class GossipScope implements NetworkedScope {
         return Arrays.copyOf(buffer.array(), buffer.position());
     }
 
-    private final Executor                        executor;
-    private final Gossip                          gossip;
-    private final Set<ListenerRegistration>       listeners = new ConcurrentSkipListSet<ListenerRegistration>();
-    private final Map<UUID, ServiceReferenceImpl> services  = new ConcurrentHashMap<UUID, ServiceReferenceImpl>();
+    /**
+     * Serialize the batch of service states, in parallel if the batch is large
+     * enough to warrant it
+     * 
+     * @param urls
+     * @param properties
+     * @param maxStateSize
+     * @return the serialized states, in the order of the urls
+     */
+    public static byte[][] serializeAll(List<? extends ServiceURL> urls,
+                                        List<Map<String, String>> properties,
+                                        int maxStateSize) {
+        byte[][] states = new byte[urls.size()][];
+        BulkSerializer serializer = new BulkSerializer(urls, properties,
+                                                       states, maxStateSize,
+                                                       0, urls.size());
+        if (urls.size() <= BulkSerializer.THRESHOLD) {
+            serializer.compute();
+        } else {
+            workers.invoke(serializer);
+        }
+        return states;
+    }
+
+    private final FootprintAccount                          account           = new FootprintAccount();
+    private volatile RegistryCheckpoint                     checkpoint;
+    private volatile long                                   checkpointInterval;
+    private volatile FlapDamper                             damper;
+    private final ConcurrentMap<UUID, byte[]>               dormant           = new ConcurrentHashMap<UUID, byte[]>();
+    private final Executor                                  executor;
+    private final GossipEndpoint                            gossip;
+    private final NumericIndex                              index             = new NumericIndex();
+    private volatile InterestSet                            interests         = new InterestSet(
+                                                                                                true);
+    private final ConcurrentMap<UUID, TimingWheel.Timeout>  leases            = new ConcurrentHashMap<UUID, TimingWheel.Timeout>();
+    private final AtomicInteger                             listenerCount     = new AtomicInteger();
+    private final Set<ListenerRegistration>                 listeners         = new ConcurrentSkipListSet<ListenerRegistration>();
+    private final Set<UUID>                                 local             = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private volatile GossipScopeMetrics                     metrics;
+    private volatile int                                    parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private final StripedCounter                            pending           = new StripedCounter();
+    private final ConcurrentMap<UUID, UpdatePolicy>         policies          = new ConcurrentHashMap<UUID, UpdatePolicy>();
+    private final ConcurrentMap<UUID, Long>                 provisional       = new ConcurrentHashMap<UUID, Long>();
+    private final ServiceStore                              services;
+    private volatile long                                   staleness;
+    private volatile ObjectName                             statisticsName;
+    private final ConcurrentMap<UUID, ThrottledUpdate>      throttles         = new ConcurrentHashMap<UUID, ThrottledUpdate>();
+    private volatile ScheduledExecutorService               timer             = Executors.newSingleThreadScheduledExecutor(daemonThreads("GossipScope updates"));
+    private final List<ScheduledFuture<?>>                  timers            = new CopyOnWriteArrayList<ScheduledFuture<?>>();
+    private volatile boolean                                timerShared;
+    private final PropagationTracer                         tracer            = new PropagationTracer();
+    private volatile boolean                                tracing;
+    private volatile UpdatePolicy                           updatePolicy;
+    private final TimingWheel                               wheel             = new TimingWheel(
+                                                                                                WHEEL_TICK,
+                                                                                                TimeUnit.MILLISECONDS,
+                                                                                                System.currentTimeMillis());
 
     public GossipScope(Executor execService, Gossip gossip) {
+        this(execService, gossip, false);
+    }
+
+    /**
+     * @param execService
+     * @param gossip
+     * @param offHeap
+     *            - true if the state of the services is stored off heap, and
+     *            references are only materialized for the results of lookups
+     */
+    public GossipScope(Executor execService, Gossip gossip, boolean offHeap) {
+        this(execService, new WhisperingEndpoint(gossip), offHeap);
+    }
+
+    public GossipScope(Executor execService, GossipEndpoint gossip) {
+        this(execService, gossip, false);
+    }
+
+    /**
+     * @param execService
+     * @param gossip
+     *            - the endpoint of the gossip ring, real or simulated
+     * @param offHeap
+     *            - true if the state of the services is stored off heap, and
+     *            references are only materialized for the results of lookups
+     */
+    public GossipScope(Executor execService, GossipEndpoint gossip,
+                       boolean offHeap) {
         executor = execService;
         this.gossip = gossip;
+        services = offHeap ? new OffHeapServiceStore(index, account,
+                                                     gossip.getMaxStateSize())
+                          : new ServiceRegistry(index, account);
         this.gossip.setListener(new GossipDispatcher());
     }
 
@@ -327,30 +713,13 @@ public class GossipScope implements NetworkedScope {
     }
 
     public GossipScope(Gossip gossip, int notificationThreads) {
+        this(gossip, notificationThreads, false);
+    }
+
+    public GossipScope(Gossip gossip, int notificationThreads, boolean offHeap) {
         this(Executors.newFixedThreadPool(notificationThreads,
-                                          new ThreadFactory() {
-                                              int i = 0;
-
-                                              @Override
-                                              public Thread newThread(Runnable arg0) {
-                                                  Thread daemon = new Thread(
-                                                                             arg0,
-                                                                             String.format("GossipScope dispatcher[%s]",
-                                                                                           i++));
-                                                  daemon.setDaemon(true);
-                                                  daemon.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-
-                                                      @Override
-                                                      public void uncaughtException(Thread t,
-                                                                                    Throwable e) {
-                                                          log.warn(String.format("Uncaught exception on [%s]",
-                                                                                 t),
-                                                                   e);
-                                                      }
-                                                  });
-                                                  return daemon;
-                                              }
-                                          }), gossip);
+                                          daemonThreads("GossipScope dispatcher")),
+             gossip, offHeap);
     }
 
     /*
@@ -361,10 +730,14 @@ public class GossipScope implements NetworkedScope {
      * .ServiceListener, java.lang.String)
      */
     @Override
-    public void addServiceListener(final ServiceListener listener, String query)
-                                                                                throws InvalidSyntaxException {
+    public void addServiceListener(ServiceListener listener, String query)
+                                                                          throws InvalidSyntaxException {
         Filter filter = new Filter(query);
+        if (interests.addQuery(query)) {
+            materializeInterests();
+        }
         if (listeners.add(new ListenerRegistration(listener, filter))) {
+            listenerCount.incrementAndGet();
             if (log.isInfoEnabled()) {
                 log.info(String.format("Adding listener on %s", query));
             }
@@ -372,31 +745,133 @@ public class GossipScope implements NetworkedScope {
             log.warn(String.format("Did not add listener on %s", query));
             return;
         }
-        for (ServiceReference reference : services.values()) {
-            final ServiceReference ref = reference;
-            if (filter.match(ref)) {
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            listener.serviceChanged(new ServiceEvent(
-                                                                     EventType.REGISTERED,
-                                                                     ref));
-                        } catch (Throwable e) {
-                            log.error("Error when notifying listener on reference "
-                                              + EventType.REGISTERED, e);
-                        }
+        for (ServiceReference reference : services) {
+            if (filter.match(reference)) {
+                dispatch(listener, Collections.singletonList(reference),
+                         EventType.REGISTERED);
+            }
+        }
+
+    }
+
+    /**
+     * Widen the set of service types this scope materializes.
+     * 
+     * @param serviceType
+     *            - the service type pattern of interest
+     */
+    public void addInterest(String serviceType) {
+        if (interests.add(serviceType)) {
+            materializeInterests();
+        }
+    }
+
+    /**
+     * Persist the services of the registry to the checkpoint. Services
+     * registered by this scope are not persisted, as their registrations do
+     * not survive a restart
+     * 
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        RegistryCheckpoint current = checkpoint;
+        if (current == null) {
+            throw new IllegalStateException("No checkpoint has been set");
+        }
+        synchronized (current) {
+            long now = System.currentTimeMillis();
+            RegistryCheckpoint.Writer writer = current.writer(now);
+            try {
+                for (ServiceReference ref : services) {
+                    UUID id = ref.getRegistration();
+                    if (!local.contains(id)) {
+                        writer.append(id,
+                                      serialize(ref.getUrl(),
+                                                ref.getProperties(),
+                                                gossip.getMaxStateSize()),
+                                      lastSeen(id, now));
                     }
-                });
+                }
+                for (Map.Entry<UUID, byte[]> entry : dormant.entrySet()) {
+                    writer.append(entry.getKey(), entry.getValue(),
+                                  lastSeen(entry.getKey(), now));
+                }
+                writer.commit();
+            } finally {
+                writer.close();
             }
         }
+    }
 
+    /**
+     * @param serviceRegistration
+     * @return the damping state of the service, or null if the service is not
+     *         flapping or flap damping is disabled
+     */
+    public FlapState getFlapState(UUID serviceRegistration) {
+        FlapDamper current = damper;
+        return current == null ? null : current.getState(serviceRegistration);
     }
 
-    public Gossip getGossip() {
+    /**
+     * @return the damping state of the services which are flapping
+     */
+    public List<FlapState> getFlapStates() {
+        FlapDamper current = damper;
+        return current == null ? Collections.<FlapState> emptyList()
+                              : current.getStates();
+    }
+
+    /**
+     * Answer the memory footprint of this scope. The footprint is accounted
+     * incrementally, and is obtained without walking the registry
+     * 
+     * @return the current footprint of this scope
+     */
+    public RegistryFootprint getFootprint() {
+        Map<String, ServiceTypeFootprint> serviceTypes = account.getServiceTypes();
+        long count = 0;
+        long stateBytes = 0;
+        long heapBytes = 0;
+        for (ServiceTypeFootprint footprint : serviceTypes.values()) {
+            count += footprint.getServices();
+            stateBytes += footprint.getStateBytes();
+            heapBytes += footprint.getHeapBytes();
+        }
+        long offHeapBytes = services instanceof OffHeapServiceStore ? ((OffHeapServiceStore) services).getAllocatedBytes()
+                                                                   : 0L;
+        return new RegistryFootprint(serviceTypes, count, stateBytes,
+                                     heapBytes, offHeapBytes,
+                                     account.getDormantServices(),
+                                     account.getDormantBytes(),
+                                     listenerCount.get(),
+                                     Math.max(0, pending.sum()));
+    }
+
+    /**
+     * @return the endpoint of the gossip ring of this scope
+     */
+    public GossipEndpoint getEndpoint() {
         return gossip;
     }
 
+    /**
+     * @return the gossip ring of this scope, or null if the ring is not a
+     *         Chinese Whispers ring
+     */
+    public Gossip getGossip() {
+        return gossip instanceof WhisperingEndpoint ? ((WhisperingEndpoint) gossip).getGossip()
+                                                   : null;
+    }
+
+    /**
+     * @return the metrics of this scope, or null if the scope is not
+     *         instrumented
+     */
+    public GossipScopeMetrics getMetrics() {
+        return metrics;
+    }
+
     /* (non-Javadoc)
      * @see com.hellblazer.slp.NetworkedScope#getLocalAddress()
      */
@@ -410,7 +885,14 @@ public class GossipScope implements NetworkedScope {
      */
     @Override
     public ServiceReference getReference(UUID serviceRegistration) {
-        return services.get(serviceRegistration);
+        ServiceReference reference = services.get(serviceRegistration);
+        if (reference == null) {
+            byte[] state = dormant.get(serviceRegistration);
+            if (state != null) {
+                return deserialize(serviceRegistration, state);
+            }
+        }
+        return reference;
     }
 
     /*
@@ -425,13 +907,16 @@ public class GossipScope implements NetworkedScope {
         if (serviceType == null) {
             serviceType = "*";
         }
-        Filter filter = new Filter("(" + SERVICE_TYPE + "=" + serviceType + ")");
-        for (ServiceReference ref : services.values()) {
-            if (filter.match(ref)) {
-                return ref;
-            }
-        }
-        return null;
+        addInterest(serviceType);
+        long start = System.nanoTime();
+        Iterator<ServiceReference> matching = services.iterator(serviceType,
+                                                                null);
+        ServiceReference reference = matching.hasNext() ? matching.next()
+                                                       : null;
+        lookedUp(serviceType, null, services.size(), reference == null ? 0
+                                                                      : 1,
+                 start);
+        return reference;
     }
 
     /*
@@ -448,23 +933,138 @@ public class GossipScope implements NetworkedScope {
         if (serviceType == null) {
             serviceType = "*";
         }
-        Filter filter;
-        if (query == null) {
-            filter = new Filter(String.format("(%s=%s)", SERVICE_TYPE,
-                                              serviceType));
+        addInterest(serviceType);
+        long start = System.nanoTime();
+        List<ServiceReference> references;
+        if (services.size() >= parallelThreshold) {
+            references = services.parallelScan(serviceType, query, workers);
         } else {
-            filter = new Filter(String.format("(&(%s=%s) %s)", SERVICE_TYPE,
-                                              serviceType, query));
+            references = new ArrayList<ServiceReference>();
+            Iterator<ServiceReference> matching = services.iterator(serviceType,
+                                                                    query);
+            while (matching.hasNext()) {
+                references.add(matching.next());
+            }
+        }
+        lookedUp(serviceType, query, services.size(), references.size(), start);
+        return references;
+    }
+
+    /**
+     * Answer the first references of the service type matching the query. The
+     * lookup terminates as soon as the limit is reached
+     * 
+     * @param serviceType
+     * @param query
+     * @param limit
+     *            - the maximum number of references answered
+     * @return
+     * @throws InvalidSyntaxException
+     */
+    public List<ServiceReference> getServiceReferences(String serviceType,
+                                                       String query, int limit)
+                                                                               throws InvalidSyntaxException {
+        if (serviceType == null) {
+            serviceType = "*";
+        }
+        addInterest(serviceType);
+        long start = System.nanoTime();
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        Iterator<ServiceReference> matching = services.iterator(serviceType,
+                                                                query);
+        while (references.size() < limit && matching.hasNext()) {
+            references.add(matching.next());
         }
-        ArrayList<ServiceReference> references = new ArrayList<ServiceReference>();
-        for (Map.Entry<UUID, ServiceReferenceImpl> entry : services.entrySet()) {
-            if (filter.match(entry.getValue())) {
-                references.add(entry.getValue());
+        lookedUp(serviceType, query, services.size(), references.size(), start);
+        return references;
+    }
+
+    /**
+     * Answer the services of the type whose indexed numeric property value
+     * lies within the range, in ascending order of the value. Answered from
+     * the sorted index of the property, without scanning the registry
+     * 
+     * @param serviceType
+     * @param property
+     *            - the indexed property
+     * @param min
+     *            - the inclusive minimum value
+     * @param max
+     *            - the inclusive maximum value
+     * @return
+     */
+    public List<ServiceReference> getServiceReferencesInRange(String serviceType,
+                                                              String property,
+                                                              double min,
+                                                              double max) {
+        return inRange(serviceType, property, min, max);
+    }
+
+    /**
+     * Answer the services of the type whose indexed integral property value
+     * lies within the range, in ascending order of the value. The values are
+     * compared exactly, including those beyond the precision of a double
+     * 
+     * @param serviceType
+     * @param property
+     *            - the indexed property
+     * @param min
+     *            - the inclusive minimum value
+     * @param max
+     *            - the inclusive maximum value
+     * @return
+     */
+    public List<ServiceReference> getServiceReferencesInRange(String serviceType,
+                                                              String property,
+                                                              long min, long max) {
+        return inRange(serviceType, property, min, max);
+    }
+
+    /**
+     * Answer the first services of the type in order of their indexed numeric
+     * property value, such as the least loaded instances of a service.
+     * Answered from the sorted index of the property, without scanning the
+     * registry
+     * 
+     * @param serviceType
+     * @param property
+     *            - the indexed property
+     * @param ascending
+     *            - true if the services with the lowest values are answered
+     * @param limit
+     *            - the maximum number of services answered
+     * @return
+     */
+    public List<ServiceReference> getServiceReferencesOrderedBy(String serviceType,
+                                                                String property,
+                                                                boolean ascending,
+                                                                int limit) {
+        checkIndexed(property);
+        addInterest(serviceType == null ? "*" : serviceType);
+        long start = System.nanoTime();
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        List<NumericIndex.Key> keys = index.top(serviceType, property,
+                                                ascending, limit);
+        for (NumericIndex.Key key : keys) {
+            ServiceReference ref = services.get(key.getId());
+            if (ref != null) {
+                references.add(ref);
             }
         }
+        lookedUp(serviceType, property, keys.size(), references.size(), start);
         return references;
     }
 
+    /**
+     * Count the services materialized by this scope, by service type. The
+     * counts are accounted as services are materialized and withdrawn
+     * 
+     * @return the number of services of each service type
+     */
+    public Map<String, Integer> getServiceCounts() {
+        return account.getServiceCounts();
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -477,8 +1077,8 @@ public class GossipScope implements NetworkedScope {
         if (url == null) {
             throw new IllegalArgumentException("Service URL cannot be null");
         }
-        UUID registration = gossip.register(serialize(url, properties,
-                                                      gossip.getMaxStateSize()));
+        UUID registration = gossip.register(serializeState(null, url,
+                                                           properties));
         if (properties == null) {
             properties = new HashMap<String, String>();
         }
@@ -486,12 +1086,98 @@ public class GossipScope implements NetworkedScope {
         normalize(url, properties, registration);
         ServiceReferenceImpl ref = new ServiceReferenceImpl(url, properties,
                                                             registration);
-        services.put(registration, ref);
+        local.add(registration);
+        services.put(ref);
+        renewLease(ref);
         serviceChanged(ref, EventType.REGISTERED);
         return registration;
 
     }
 
+    /**
+     * Answer an iterator which lazily evaluates the lookup against the current
+     * snapshot of the registry, without materializing the list of matching
+     * references. If the services are stored off heap, the iteration is
+     * weakly consistent with concurrent updates
+     * 
+     * @param serviceType
+     * @param query
+     * @return
+     * @throws InvalidSyntaxException
+     */
+    public Iterator<ServiceReference> iterateServiceReferences(String serviceType,
+                                                               String query)
+                                                                            throws InvalidSyntaxException {
+        if (serviceType == null) {
+            serviceType = "*";
+        }
+        addInterest(serviceType);
+        return services.iterator(serviceType, query);
+    }
+
+    /**
+     * @param serviceRegistration
+     * @return true if the service was preloaded from the checkpoint and has
+     *         not yet been confirmed by gossip
+     */
+    public boolean isProvisional(UUID serviceRegistration) {
+        return provisional.containsKey(serviceRegistration);
+    }
+
+    /**
+     * @param serviceRegistration
+     * @return true if the service is registered by this scope
+     */
+    public boolean isRegistered(UUID serviceRegistration) {
+        return local.contains(serviceRegistration);
+    }
+
+    /**
+     * Register the batch of services. The service states are serialized in
+     * parallel and published to gossip in one pass, and listeners are notified
+     * with a single batch of events.
+     * 
+     * @param registrations
+     *            - the map of service url to service properties
+     * @return the map of service url to its registration
+     */
+    public Map<ServiceURL, UUID> registerAll(Map<ServiceURL, Map<String, String>> registrations) {
+        List<ServiceURL> urls = new ArrayList<ServiceURL>(registrations.size());
+        List<Map<String, String>> properties = new ArrayList<Map<String, String>>(
+                                                                                  registrations.size());
+        for (Map.Entry<ServiceURL, Map<String, String>> entry : registrations.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException(
+                                                   "Service URL cannot be null");
+            }
+            urls.add(entry.getKey());
+            properties.add(entry.getValue() == null ? new HashMap<String, String>()
+                                                   : new HashMap<String, String>(
+                                                                                 entry.getValue()));
+        }
+        byte[][] states = serializeStates(null, urls, properties);
+        Map<ServiceURL, UUID> registered = new LinkedHashMap<ServiceURL, UUID>();
+        List<ServiceReferenceImpl> references = new ArrayList<ServiceReferenceImpl>(
+                                                                                    urls.size());
+        for (int i = 0; i < states.length; i++) {
+            ServiceURL url = urls.get(i);
+            UUID registration = gossip.register(states[i]);
+            Map<String, String> props = properties.get(i);
+            normalize(url, props, registration);
+            ServiceReferenceImpl ref = new ServiceReferenceImpl(url, props,
+                                                                registration);
+            references.add(ref);
+            registered.put(url, registration);
+            local.add(registration);
+        }
+        services.putAll(references);
+        for (ServiceReferenceImpl ref : references) {
+            renewLease(ref);
+        }
+        serviceChanged(references, EventType.REGISTERED);
+        return registered;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -507,7 +1193,11 @@ public class GossipScope implements NetworkedScope {
                 registrations.add(reg);
             }
         }
-        listeners.removeAll(registrations);
+        for (ListenerRegistration reg : registrations) {
+            if (listeners.remove(reg)) {
+                listenerCount.decrementAndGet();
+            }
+        }
     }
 
     /*
@@ -520,7 +1210,10 @@ public class GossipScope implements NetworkedScope {
     @Override
     public void removeServiceListener(ServiceListener listener, String query)
                                                                              throws InvalidSyntaxException {
-        listeners.remove(new ListenerRegistration(listener, new Filter(query)));
+        if (listeners.remove(new ListenerRegistration(listener,
+                                                      new Filter(query)))) {
+            listenerCount.decrementAndGet();
+        }
     }
 
     /*
@@ -540,26 +1233,377 @@ public class GossipScope implements NetworkedScope {
             }
             return;
         }
+        renewLease(serviceRegistration, properties.get(LEASE_TTL));
         properties = new HashMap<String, String>(properties);
         properties.put(SERVICE_TYPE, ref.currentProperties().get(SERVICE_TYPE));
-        ref.setProperties(properties);
-        gossip.update(serviceRegistration,
-                      serialize(ref.getUrl(), ref.getProperties(),
-                                gossip.getMaxStateSize()));
-        serviceChanged(ref, EventType.MODIFIED);
-    }
-
-    @Override
-    public GossipScope start() {
-        gossip.start();
-        return this;
+        UpdatePolicy policy = policies.get(serviceRegistration);
+        if (policy == null) {
+            policy = updatePolicy;
+        }
+        if (policy == null) {
+            publish(ref, properties);
+            return;
+        }
+        ThrottledUpdate throttle = throttles.get(serviceRegistration);
+        if (throttle == null) {
+            throttle = new ThrottledUpdate(ref, policy);
+            ThrottledUpdate existing = throttles.putIfAbsent(serviceRegistration,
+                                                             throttle);
+            if (existing != null) {
+                throttle = existing;
+            }
+        }
+        throttle.update(properties);
     }
 
-    @Override
-    public ServiceScope stop() {
-        gossip.terminate();
-        return this;
-    }
+    /**
+     * Update the properties of the batch of registered services. The service
+     * states are serialized in parallel and published to gossip in one pass,
+     * and listeners are notified with a single batch of events. The bulk
+     * update supersedes any throttled update pending for these services.
+     * 
+     * @param updates
+     *            - the map of service registration to the new service
+     *            properties
+     */
+    public void setPropertiesAll(Map<UUID, Map<String, String>> updates) {
+        List<ServiceReferenceImpl> refs = new ArrayList<ServiceReferenceImpl>(
+                                                                              updates.size());
+        List<Map<String, String>> properties = new ArrayList<Map<String, String>>(
+                                                                                  updates.size());
+        for (Map.Entry<UUID, Map<String, String>> entry : updates.entrySet()) {
+            ServiceReferenceImpl ref = services.get(entry.getKey());
+            if (ref == null) {
+                if (log.isTraceEnabled()) {
+                    log.trace(String.format("No service registered for %s",
+                                            entry.getKey()));
+                }
+                continue;
+            }
+            ThrottledUpdate throttle = throttles.remove(entry.getKey());
+            if (throttle != null) {
+                throttle.cancel();
+            }
+            Map<String, String> props = new HashMap<String, String>(
+                                                                    entry.getValue());
+            normalize(ref.getUrl(), props, ref.getRegistration());
+            refs.add(new ServiceReferenceImpl(ref.getUrl(), props,
+                                              ref.getRegistration()));
+            properties.add(props);
+        }
+        List<UUID> ids = new ArrayList<UUID>(refs.size());
+        List<ServiceURL> urls = new ArrayList<ServiceURL>(refs.size());
+        for (ServiceReferenceImpl ref : refs) {
+            ids.add(ref.getRegistration());
+            urls.add(ref.getUrl());
+        }
+        byte[][] states = serializeStates(ids, urls, properties);
+        services.putAll(refs);
+        for (int i = 0; i < states.length; i++) {
+            renewLease(refs.get(i));
+            gossip.update(refs.get(i).getRegistration(), states[i]);
+        }
+        serviceChanged(refs, EventType.MODIFIED);
+    }
+
+    /**
+     * Persist the registry to the checkpoint at the interval. When the scope
+     * is started, the services of the checkpoint are preloaded as provisional
+     * services, so that lookups are answered before gossip has converged.
+     * Provisional services are confirmed when gossip registers or updates
+     * them, and are evicted if they are not confirmed within the staleness
+     * bound of the time they were last seen. Must be set before the scope is
+     * started.
+     * 
+     * @param file
+     *            - the file the registry is persisted to
+     * @param interval
+     *            - the interval between checkpoints
+     * @param staleness
+     *            - the maximum age of the services preloaded from the
+     *            checkpoint
+     * @param unit
+     *            - the unit of the interval and staleness
+     */
+    public void setCheckpoint(File file, long interval, long staleness,
+                              TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        if (staleness <= 0) {
+            throw new IllegalArgumentException("Staleness must be positive");
+        }
+        checkpointInterval = unit.toMillis(interval);
+        this.staleness = unit.toMillis(staleness);
+        checkpoint = new RegistryCheckpoint(file);
+    }
+
+    /**
+     * Damp the events of services flapping between registered and
+     * unregistered, as gossip withdraws and restores them. Services flapping
+     * within the hold down window are restored silently, and the events of
+     * services whose penalty reaches the suppress threshold are suppressed
+     * until they are stable. Replacing or disabling the policy releases the
+     * services damped under the previous policy, dispatching the events held
+     * down or suppressed
+     * 
+     * @param policy
+     *            - the damping policy, or null to disable flap damping
+     */
+    public void setFlapDamping(FlapDamping policy) {
+        FlapDamper previous = damper;
+        if (policy == null) {
+            damper = null;
+        } else {
+            damper = new FlapDamper(policy, wheel,
+                                    new FlapDamper.Dispatcher() {
+                                        @Override
+                                        public void dispatch(ServiceReference reference,
+                                                             EventType type) {
+                                            serviceChanged(reference, type);
+                                        }
+
+                                        @Override
+                                        public ServiceReference lookup(UUID serviceRegistration) {
+                                            return services.get(serviceRegistration);
+                                        }
+                                    });
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Decode the numeric values of the properties when services are ingested,
+     * and maintain sorted indexes of the values per service type. Services
+     * already registered are reindexed
+     * 
+     * @param properties
+     *            - the names of the numeric properties to index
+     */
+    public void setIndexedProperties(Collection<String> properties) {
+        index.setProperties(properties, services);
+    }
+
+    /**
+     * Restrict the services this scope materializes to those whose type is of
+     * interest. The interests are widened by the service types of registered
+     * listeners and lookups, so that heap and CPU scale with the services this
+     * node consumes rather than with the size of the cluster. The state of
+     * services outside the interests is retained in serialized form only;
+     * materialized services which fall outside the narrowed interests are
+     * returned to their serialized form.
+     * 
+     * @param serviceTypes
+     *            - the initial service type patterns of interest
+     */
+    public void setInterests(Collection<String> serviceTypes) {
+        InterestSet restricted = new InterestSet(false);
+        restricted.addAll(serviceTypes);
+        for (ListenerRegistration reg : listeners) {
+            restricted.addQuery(reg.query.toString());
+        }
+        interests = restricted;
+        retireInterests();
+    }
+
+    /**
+     * Instrument the hot paths of this scope with statistics, registered with
+     * the platform MBean server under the name. The statistics are
+     * unregistered when the scope is stopped
+     * 
+     * @param name
+     *            - the JMX object name of the statistics
+     * @return the statistics of this scope
+     * @throws JMException
+     *             - if the statistics cannot be registered
+     */
+    public GossipScopeStatistics registerStatistics(ObjectName name)
+                                                                    throws JMException {
+        GossipScopeStatistics statistics = new GossipScopeStatistics(this);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(statistics,
+                                                                 name);
+        statisticsName = name;
+        setMetrics(statistics);
+        return statistics;
+    }
+
+    /**
+     * Instrument the hot paths of this scope
+     * 
+     * @param metrics
+     *            - the metrics recorded, or null to disable instrumentation
+     */
+    public void setMetrics(GossipScopeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param threshold
+     *            - the size of the registry above which unindexed lookups are
+     *            scanned in parallel
+     */
+    public void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Schedule the lease wheel, throttled updates and checkpoints of this
+     * scope on the executor, shared with other scopes, rather than on a timer
+     * thread of the scope's own. The scope cancels its tasks when stopped, but
+     * does not shut the executor down. Must be set before the scope is
+     * started.
+     * 
+     * @param timer
+     *            - the shared scheduled executor
+     */
+    public void setTimer(ScheduledExecutorService timer) {
+        ScheduledExecutorService previous = this.timer;
+        this.timer = timer;
+        if (!timerShared) {
+            previous.shutdown();
+        }
+        timerShared = true;
+    }
+
+    /**
+     * Stamp the service states published by this scope with their time of
+     * publication and version, so that the scopes receiving them measure
+     * their propagation delay and detect skipped or reordered versions. The
+     * stamp is carried as the reserved property {@link #TRACE} of the state,
+     * and counts toward the maximum state size
+     * 
+     * @param tracing
+     */
+    public void setTracing(boolean tracing) {
+        this.tracing = tracing;
+    }
+
+    /**
+     * Set the default policy governing the publication of property updates of
+     * registered services. Updates pending under the previous policy are
+     * published
+     * 
+     * @param policy
+     *            - the update policy, or null if every update is published
+     */
+    public void setUpdatePolicy(UpdatePolicy policy) {
+        updatePolicy = policy;
+        for (Iterator<ThrottledUpdate> i = throttles.values().iterator(); i.hasNext();) {
+            ThrottledUpdate throttle = i.next();
+            i.remove();
+            throttle.flush();
+        }
+    }
+
+    /**
+     * Set the policy governing the publication of property updates of the
+     * registered service. An update pending under the previous policy is
+     * published
+     * 
+     * @param serviceRegistration
+     * @param policy
+     *            - the update policy, or null if the default policy applies
+     */
+    public void setUpdatePolicy(UUID serviceRegistration, UpdatePolicy policy) {
+        if (policy == null) {
+            policies.remove(serviceRegistration);
+        } else {
+            policies.put(serviceRegistration, policy);
+        }
+        ThrottledUpdate throttle = throttles.remove(serviceRegistration);
+        if (throttle != null) {
+            throttle.flush();
+        }
+    }
+
+    /**
+     * Answer an immutable snapshot of the services materialized by this scope.
+     * The snapshot is obtained in constant time, and may be queried repeatedly
+     * without observing any subsequent updates of the registry. If the services
+     * are stored off heap, the snapshot is a copy of the registry on the heap
+     * 
+     * @return the current snapshot of the registry
+     */
+    public RegistrySnapshot snapshot() {
+        return services.snapshot();
+    }
+
+    @Override
+    public GossipScope start() {
+        timers.add(timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                wheel.advance(System.currentTimeMillis());
+            }
+        }, WHEEL_TICK, WHEEL_TICK, TimeUnit.MILLISECONDS));
+        if (checkpoint != null) {
+            preload();
+            timers.add(timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkpoint();
+                    } catch (ClosedByInterruptException e) {
+                        // the scope is stopping, and takes the final checkpoint
+                    } catch (Throwable e) {
+                        log.error(String.format("Unable to write registry checkpoint %s",
+                                                checkpoint), e);
+                    }
+                }
+            }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS));
+            long sweep = Math.max(1, staleness / 4);
+            timers.add(timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evictStale();
+                    } catch (Throwable e) {
+                        log.error("Unable to evict stale provisional services",
+                                  e);
+                    }
+                }
+            }, sweep, sweep, TimeUnit.MILLISECONDS));
+        }
+        gossip.start();
+        return this;
+    }
+
+    @Override
+    public ServiceScope stop() {
+        for (ThrottledUpdate throttle : throttles.values()) {
+            throttle.flush();
+        }
+        if (timerShared) {
+            for (ScheduledFuture<?> scheduled : timers) {
+                scheduled.cancel(false);
+            }
+        } else {
+            timer.shutdownNow();
+        }
+        timers.clear();
+        ObjectName name = statisticsName;
+        if (name != null) {
+            statisticsName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn(String.format("Unable to unregister statistics %s",
+                                       name), e);
+            }
+        }
+        if (checkpoint != null) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.error(String.format("Unable to write registry checkpoint %s",
+                                        checkpoint), e);
+            }
+        }
+        gossip.terminate();
+        return this;
+    }
 
     /*
      * (non-Javadoc)
@@ -569,6 +1613,10 @@ public class GossipScope implements NetworkedScope {
     @Override
     public void unregister(UUID serviceRegistration) {
         ServiceReference ref = services.remove(serviceRegistration);
+        cancelUpdates(serviceRegistration);
+        cancelLease(serviceRegistration);
+        local.remove(serviceRegistration);
+        tracer.forget(serviceRegistration);
         if (ref != null) {
             gossip.deregister(serviceRegistration);
             serviceChanged(ref, EventType.UNREGISTERED);
@@ -580,14 +1628,35 @@ public class GossipScope implements NetworkedScope {
         }
     }
 
+    /**
+     * Unregister the batch of services. Listeners are notified with a single
+     * batch of events.
+     * 
+     * @param serviceRegistrations
+     */
+    public void unregisterAll(Collection<UUID> serviceRegistrations) {
+        List<ServiceReferenceImpl> references = services.removeAll(serviceRegistrations);
+        for (UUID serviceRegistration : serviceRegistrations) {
+            cancelUpdates(serviceRegistration);
+            cancelLease(serviceRegistration);
+            local.remove(serviceRegistration);
+            tracer.forget(serviceRegistration);
+        }
+        for (ServiceReference ref : references) {
+            gossip.deregister(ref.getRegistration());
+        }
+        serviceChanged(references, EventType.UNREGISTERED);
+    }
+
     /**
      * @param id
      */
     protected void deregister(UUID id) {
-        ServiceReference reference = services.remove(id);
-        if (reference != null) {
-            serviceChanged(reference, EventType.UNREGISTERED);
+        GossipScopeMetrics current = metrics;
+        if (current != null) {
+            current.ingested(id, EventType.UNREGISTERED, 0, -1L);
         }
+        withdraw(id, true);
     }
 
     /**
@@ -595,44 +1664,555 @@ public class GossipScope implements NetworkedScope {
      * @param state
      */
     protected void register(UUID id, byte[] state) {
-        ServiceReferenceImpl reference = deserialize(id, state);
-        services.put(id, reference);
-        serviceChanged(reference, EventType.REGISTERED);
+        if (checkpoint == null) {
+            ingest(id, state, EventType.REGISTERED, false);
+            return;
+        }
+        synchronized (provisional) {
+            ingest(id, state, EventType.REGISTERED,
+                   provisional.remove(id) != null);
+        }
     }
 
-    protected void serviceChanged(final ServiceReference reference,
-                                  final EventType type) {
+    protected void serviceChanged(ServiceReference reference, EventType type) {
         if (log.isDebugEnabled()) {
             log.debug(String.format("Processing service change of reference %s type %s",
                                     reference, type));
         }
+        GossipScopeMetrics current = metrics;
+        long start = current == null ? 0L : System.nanoTime();
+        int evaluations = 0;
+        int matched = 0;
         for (ListenerRegistration reg : listeners) {
+            evaluations++;
             if (reg.query.match(reference)) {
-                final ServiceListener listener = reg.listener;
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            listener.serviceChanged(new ServiceEvent(type,
-                                                                     reference));
-                        } catch (Throwable e) {
-                            log.error(String.format("Error when notifying listener %s on reference %s type %s",
-                                                    listener, reference, type),
-                                      e);
+                matched++;
+                dispatch(reg.listener, Collections.singletonList(reference),
+                         type);
+            }
+        }
+        if (current != null) {
+            current.filtered(1, evaluations, matched, System.nanoTime()
+                                                      - start);
+        }
+    }
+
+    /**
+     * Notify the listeners of the batch of service changes, delivering the
+     * events matching each listener in a single dispatch
+     * 
+     * @param references
+     * @param type
+     */
+    protected void serviceChanged(List<? extends ServiceReference> references,
+                                  EventType type) {
+        if (references.isEmpty()) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Processing service change of %s references type %s",
+                                    references.size(), type));
+        }
+        GossipScopeMetrics current = metrics;
+        long start = current == null ? 0L : System.nanoTime();
+        int evaluations = 0;
+        int listening = 0;
+        for (ListenerRegistration reg : listeners) {
+            List<ServiceReference> matched = new ArrayList<ServiceReference>();
+            for (ServiceReference reference : references) {
+                if (reg.query.match(reference)) {
+                    matched.add(reference);
+                }
+            }
+            evaluations += references.size();
+            if (!matched.isEmpty()) {
+                listening++;
+                dispatch(reg.listener, matched, type);
+            }
+        }
+        if (current != null) {
+            current.filtered(references.size(), evaluations, listening,
+                             System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param id
+     * @param state
+     */
+    protected void update(UUID id, byte[] state) {
+        if (checkpoint == null) {
+            ingest(id, state, EventType.MODIFIED, false);
+            return;
+        }
+        synchronized (provisional) {
+            ingest(id, state, EventType.MODIFIED,
+                   provisional.remove(id) != null);
+        }
+    }
+
+    /**
+     * Evict the provisional services which have not been confirmed by gossip
+     * within the staleness bound
+     */
+    private void evictStale() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<UUID, Long> entry : provisional.entrySet()) {
+            if (now - entry.getValue() > staleness) {
+                synchronized (provisional) {
+                    if (provisional.remove(entry.getKey(), entry.getValue())) {
+                        if (log.isDebugEnabled()) {
+                            log.debug(String.format("Evicting stale provisional service %s",
+                                                    entry.getKey()));
                         }
+                        remove(entry.getKey(), false);
                     }
-                });
+                }
             }
         }
     }
 
+    private void checkIndexed(String property) {
+        if (!index.isIndexed(property)) {
+            throw new IllegalArgumentException(
+                                               String.format("Property %s is not indexed",
+                                                             property));
+        }
+    }
+
+    private void cancelLease(UUID serviceRegistration) {
+        TimingWheel.Timeout lease = leases.remove(serviceRegistration);
+        if (lease != null) {
+            lease.cancel();
+        }
+    }
+
     /**
+     * Cancel the pending property updates of the unregistered service
+     * 
+     * @param serviceRegistration
+     */
+    private void cancelUpdates(UUID serviceRegistration) {
+        policies.remove(serviceRegistration);
+        ThrottledUpdate throttle = throttles.remove(serviceRegistration);
+        if (throttle != null) {
+            throttle.cancel();
+        }
+    }
+
+    /**
+     * Remove the materialized service, which is no longer of interest
+     * 
+     * @param id
+     * @return true if the service was materialized
+     */
+    private boolean dematerialize(UUID id) {
+        if (local.contains(id) || services.remove(id) == null) {
+            return false;
+        }
+        cancelLease(id);
+        return true;
+    }
+
+    /**
+     * Queue the delivery of the events to the listener
+     * 
+     * @param listener
+     * @param references
+     * @param type
+     */
+    private void dispatch(ServiceListener listener,
+                          List<? extends ServiceReference> references,
+                          EventType type) {
+        GossipScopeMetrics current = metrics;
+        if (current != null) {
+            current.dispatchQueued();
+        }
+        pending.increment();
+        try {
+            executor.execute(new Notification(listener, references, type,
+                                              current, pending));
+        } catch (RuntimeException e) {
+            pending.add(-1);
+            if (current != null) {
+                current.dispatchStarted();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Publish the updated properties of the registered service
+     * 
+     * @param ref
+     * @param properties
+     */
+    private void publish(ServiceReferenceImpl ref,
+                         Map<String, String> properties) {
+        normalize(ref.getUrl(), properties, ref.getRegistration());
+        ServiceReferenceImpl updated = new ServiceReferenceImpl(
+                                                                ref.getUrl(),
+                                                                properties,
+                                                                ref.getRegistration());
+        services.put(updated);
+        gossip.update(ref.getRegistration(),
+                      serializeState(ref.getRegistration(), ref.getUrl(),
+                                     properties));
+        serviceChanged(updated, EventType.MODIFIED);
+    }
+
+    /**
+     * Unregister the service whose lease has expired. Services registered by
+     * this scope are also deregistered from gossip
+     * 
+     * @param id
+     */
+    private void expireLease(UUID id) {
+        TimingWheel.Timeout lease = leases.get(id);
+        if (lease == null || lease.isPending() || !leases.remove(id, lease)) {
+            return;
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Lease of service %s has expired", id));
+        }
+        if (local.contains(id)) {
+            unregister(id);
+        } else {
+            withdraw(id, false);
+        }
+    }
+
+    /**
+     * Ingest the state of the service from gossip
+     * 
      * @param id
      * @param state
+     * @param type
+     * @param confirmed
+     *            - true if the service was provisional
      */
-    protected void update(UUID id, byte[] state) {
+    private void ingest(UUID id, byte[] state, EventType type,
+                        boolean confirmed) {
+        GossipScopeMetrics current = metrics;
+        if (current != null) {
+            tracer.received(id, state, type, current);
+        }
+        String serviceType = serviceTypeOf(state);
+        if (!interests.matches(serviceType)) {
+            dematerialize(id);
+            putDormant(id, state);
+            if (interests.matches(serviceType)) {
+                // the interests widened concurrently, and may have been
+                // materialized before the service became dormant
+                materialize(id, state);
+            }
+            if (current != null) {
+                current.ingested(id, type, state.length, -1L);
+            }
+            return;
+        }
+        removeDormant(id);
+        long start = current == null ? 0L : System.nanoTime();
         ServiceReferenceImpl reference = deserialize(id, state);
-        services.put(id, reference);
-        serviceChanged(reference, EventType.MODIFIED);
+        if (current != null) {
+            current.ingested(id, type, state.length, System.nanoTime() - start);
+        }
+        boolean added = services.put(reference, state);
+        renewLease(reference);
+        EventType event = type;
+        if (added) {
+            event = EventType.REGISTERED;
+        } else if (confirmed) {
+            event = EventType.MODIFIED;
+        }
+        FlapDamper flaps = damper;
+        if (flaps != null) {
+            if (added) {
+                event = flaps.restored(id, reference);
+            } else if (!flaps.modified(id)) {
+                event = null;
+            }
+        }
+        if (event != null) {
+            serviceChanged(reference, event);
+        }
+    }
+
+    private List<ServiceReference> inRange(String serviceType,
+                                           String property, Number min,
+                                           Number max) {
+        checkIndexed(property);
+        addInterest(serviceType == null ? "*" : serviceType);
+        long start = System.nanoTime();
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        List<NumericIndex.Key> keys = index.range(serviceType, property, min,
+                                                  max);
+        for (NumericIndex.Key key : keys) {
+            ServiceReference ref = services.get(key.getId());
+            if (ref != null) {
+                Number value = NumericIndex.decode(ref.getProperties().get(property));
+                if (value != null && NumericIndex.compare(value, min) >= 0
+                    && NumericIndex.compare(value, max) <= 0) {
+                    references.add(ref);
+                }
+            }
+        }
+        lookedUp(serviceType, property, keys.size(), references.size(), start);
+        return references;
+    }
+
+    private long lastSeen(UUID id, long now) {
+        Long seen = provisional.get(id);
+        return seen == null ? now : seen;
+    }
+
+    private void lookedUp(String serviceType, String query, int scanned,
+                          int results, long start) {
+        GossipScopeMetrics current = metrics;
+        if (current != null) {
+            current.lookedUp(serviceType, query, scanned, results,
+                             System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Materialize the dormant service, unless its state has been replaced
+     * 
+     * @param id
+     * @param state
+     *            - the dormant state of the service
+     */
+    private void materialize(UUID id, byte[] state) {
+        if (!dormant.remove(id, state)) {
+            return;
+        }
+        account.dormant(-1, -state.length);
+        ServiceReferenceImpl reference = deserialize(id, state);
+        if (services.putIfAbsent(reference, state)) {
+            renewLease(reference);
+        }
+    }
+
+    /**
+     * Materialize the dormant services which have become interesting. No
+     * events are generated, as no existing listener was interested in these
+     * services.
+     */
+    private void materializeInterests() {
+        for (Map.Entry<UUID, byte[]> entry : dormant.entrySet()) {
+            byte[] state = entry.getValue();
+            if (interests.matches(serviceTypeOf(state))) {
+                materialize(entry.getKey(), state);
+            }
+        }
+    }
+
+    /**
+     * Preload the services of the checkpoint which are within the staleness
+     * bound, as provisional services
+     */
+    private void preload() {
+        List<RegistryCheckpoint.Entry> entries;
+        try {
+            entries = checkpoint.read();
+        } catch (IOException e) {
+            log.warn(String.format("Unable to read registry checkpoint %s",
+                                   checkpoint), e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<ServiceReferenceImpl> preloaded = new ArrayList<ServiceReferenceImpl>();
+        for (RegistryCheckpoint.Entry entry : entries) {
+            if (now - entry.lastSeen > staleness) {
+                continue;
+            }
+            provisional.put(entry.id, entry.lastSeen);
+            if (!interests.matches(serviceTypeOf(entry.state))) {
+                if (dormant.putIfAbsent(entry.id, entry.state) == null) {
+                    account.dormant(1, entry.state.length);
+                }
+                continue;
+            }
+            ServiceReferenceImpl reference = deserialize(entry.id, entry.state);
+            if (services.putIfAbsent(reference, entry.state)) {
+                renewLease(reference);
+                preloaded.add(reference);
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Preloaded %s provisional services from %s",
+                                   provisional.size(), checkpoint));
+        }
+        serviceChanged(preloaded, EventType.REGISTERED);
+    }
+
+    /**
+     * Hold the state of the service dormant, accounting for its size
+     * 
+     * @param id
+     * @param state
+     */
+    private void putDormant(UUID id, byte[] state) {
+        byte[] previous = dormant.put(id, state);
+        if (previous == null) {
+            account.dormant(1, state.length);
+        } else {
+            account.dormant(0, state.length - previous.length);
+        }
+    }
+
+    private void renewLease(ServiceReference reference) {
+        renewLease(reference.getRegistration(),
+                   reference.getProperties().get(LEASE_TTL));
+    }
+
+    /**
+     * Renew the lease of the service, replacing its timeout in the lease wheel
+     * 
+     * @param id
+     * @param ttl
+     *            - the time to live of the lease, or null if the service has
+     *            no lease
+     */
+    private void renewLease(final UUID id, String ttl) {
+        Number millis = NumericIndex.decode(ttl);
+        if (millis == null || millis.doubleValue() <= 0) {
+            cancelLease(id);
+            return;
+        }
+        TimingWheel.Timeout lease = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expireLease(id);
+            }
+        }, millis.longValue(), TimeUnit.MILLISECONDS);
+        TimingWheel.Timeout previous = leases.put(id, lease);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * @param id
+     * @param damped
+     *            - true if the UNREGISTERED event is subject to flap damping
+     */
+    private void remove(UUID id, boolean damped) {
+        cancelLease(id);
+        tracer.forget(id);
+        removeDormant(id);
+        ServiceReference reference = services.remove(id);
+        if (reference == null) {
+            return;
+        }
+        FlapDamper current = damper;
+        if (!damped || current == null || current.withdrawn(id, reference)) {
+            serviceChanged(reference, EventType.UNREGISTERED);
+        }
+    }
+
+    private void removeDormant(UUID id) {
+        byte[] previous = dormant.remove(id);
+        if (previous != null) {
+            account.dormant(-1, -previous.length);
+        }
+    }
+
+    /**
+     * Return the materialized services which are no longer of interest to
+     * their serialized form. No events are generated, as no listener is
+     * interested in these services. Services registered by this scope remain
+     * materialized.
+     */
+    private void retireInterests() {
+        for (ServiceReference ref : services) {
+            UUID id = ref.getRegistration();
+            String serviceType = ref.getUrl().getServiceType().toString();
+            if (!local.contains(id) && !interests.matches(serviceType)
+                && dematerialize(id)) {
+                byte[] state = serialize(ref.getUrl(), ref.getProperties(),
+                                         gossip.getMaxStateSize());
+                if (dormant.putIfAbsent(id, state) == null) {
+                    account.dormant(1, state.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serialize the state of the service, stamping it if tracing is enabled
+     * 
+     * @param id
+     *            - the registration of the service, or null if the state
+     *            registers the service
+     * @param url
+     * @param properties
+     * @return
+     */
+    private byte[] serializeState(UUID id, ServiceURL url,
+                                  Map<String, String> properties) {
+        if (tracing) {
+            properties = tracer.stamp(id, properties);
+        }
+        GossipScopeMetrics current = metrics;
+        if (current == null) {
+            return serialize(url, properties, gossip.getMaxStateSize());
+        }
+        long start = System.nanoTime();
+        byte[] state = serialize(url, properties, gossip.getMaxStateSize());
+        current.serialized(1, System.nanoTime() - start);
+        return state;
+    }
+
+    /**
+     * Serialize the states of the batch of services, stamping them if tracing
+     * is enabled
+     * 
+     * @param ids
+     *            - the registrations of the services, or null if the states
+     *            register the services
+     * @param urls
+     * @param properties
+     * @return
+     */
+    private byte[][] serializeStates(List<UUID> ids,
+                                     List<? extends ServiceURL> urls,
+                                     List<Map<String, String>> properties) {
+        if (tracing) {
+            List<Map<String, String>> stamped = new ArrayList<Map<String, String>>(
+                                                                                   properties.size());
+            for (int i = 0; i < properties.size(); i++) {
+                stamped.add(tracer.stamp(ids == null ? null : ids.get(i),
+                                         properties.get(i)));
+            }
+            properties = stamped;
+        }
+        GossipScopeMetrics current = metrics;
+        if (current == null) {
+            return serializeAll(urls, properties, gossip.getMaxStateSize());
+        }
+        long start = System.nanoTime();
+        byte[][] states = serializeAll(urls, properties,
+                                       gossip.getMaxStateSize());
+        current.serialized(states.length, System.nanoTime() - start);
+        return states;
+    }
+
+    /**
+     * Withdraw the service, which is no longer provisional
+     * 
+     * @param id
+     * @param damped
+     *            - true if the UNREGISTERED event is subject to flap damping
+     */
+    private void withdraw(UUID id, boolean damped) {
+        if (checkpoint == null) {
+            remove(id, damped);
+            return;
+        }
+        synchronized (provisional) {
+            provisional.remove(id);
+            remove(id, damped);
+        }
     }
 }
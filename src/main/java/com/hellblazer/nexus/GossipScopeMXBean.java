@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.Map;
+
+/**
+ * The management interface of the statistics of a scope. Times are in
+ * nanoseconds unless noted, and rates are one minute rates in events per
+ * second.
+ *
+ * @author hhildebrand
+ *
+ */
+public interface GossipScopeMXBean {
+
+    /**
+     * @return the number of services deregistered by gossip
+     */
+    long getDeregistrations();
+
+    double getDeregistrationRate();
+
+    HistogramSummary getDeserializeTime();
+
+    /**
+     * @return the number of listener notifications queued and not yet
+     *         dispatched
+     */
+    long getDispatchQueueDepth();
+
+    /**
+     * @return the number of listener filters evaluated per event
+     */
+    HistogramSummary getFilterEvaluations();
+
+    /**
+     * @return the time taken to evaluate the listener filters per event
+     */
+    HistogramSummary getFilterTime();
+
+    /**
+     * @return the decayed flap damping penalty of each flapping service, by
+     *         registration
+     */
+    Map<String, Double> getFlapPenalties();
+
+    /**
+     * @return the memory footprint of the scope
+     */
+    RegistryFootprint getFootprint();
+
+    /**
+     * @return the number of withdrawn services whose UNREGISTERED event is
+     *         held down
+     */
+    int getHeldDownServices();
+
+    /**
+     * @return the number of exceptions thrown by listener callbacks
+     */
+    long getListenerErrors();
+
+    /**
+     * @return the callback latency of each listener
+     */
+    Map<String, HistogramSummary> getListenerLatency();
+
+    /**
+     * @return the latency of each lookup, by service type and query
+     */
+    Map<String, HistogramSummary> getLookupLatency();
+
+    /**
+     * @return the number of stamped service states received after a later
+     *         version of the service
+     */
+    long getReorderedVersions();
+
+    /**
+     * @return the number of services registered by gossip
+     */
+    long getRegistrations();
+
+    double getRegistrationRate();
+
+    /**
+     * @return the time, in milliseconds, from the publication of a stamped
+     *         service registration by its origin to its receipt
+     */
+    HistogramSummary getRegistrationPropagation();
+
+    HistogramSummary getSerializeTime();
+
+    /**
+     * @return the number of services materialized, by service type
+     */
+    Map<String, Integer> getServiceCounts();
+
+    /**
+     * @return the number of versions of services which were not received, as
+     *         a later version was received first
+     */
+    long getSkippedVersions();
+
+    /**
+     * @return the number of flapping services whose events are suppressed
+     */
+    int getSuppressedServices();
+
+    /**
+     * @return the number of services updated by gossip
+     */
+    long getUpdates();
+
+    double getUpdateRate();
+
+    /**
+     * @return the time, in milliseconds, from the publication of a stamped
+     *         service update by its origin to its receipt
+     */
+    HistogramSummary getUpdatePropagation();
+
+    /**
+     * Reset the statistics
+     */
+    void reset();
+}
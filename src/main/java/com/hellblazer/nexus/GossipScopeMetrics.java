@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.UUID;
+
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+
+/**
+ * The measurements of the hot paths of a scope. Implementations are invoked
+ * on the gossip and dispatch threads of the scope, and must be cheap and
+ * thread safe.
+ *
+ * @author hhildebrand
+ *
+ */
+public interface GossipScopeMetrics {
+
+    /**
+     * A notification of listeners was queued for dispatch
+     */
+    void dispatchQueued();
+
+    /**
+     * A queued notification of listeners started dispatch
+     */
+    void dispatchStarted();
+
+    /**
+     * The listener filters were evaluated against a batch of events
+     *
+     * @param events
+     *            - the number of events
+     * @param evaluations
+     *            - the number of filter evaluations
+     * @param matched
+     *            - the number of listeners matching any of the events
+     * @param nanos
+     *            - the time taken to evaluate the filters and queue the
+     *            notifications of the matching listeners
+     */
+    void filtered(int events, int evaluations, int matched, long nanos);
+
+    /**
+     * Gossip delivered the state of a service
+     *
+     * @param id
+     *            - the registration of the service
+     * @param type
+     *            - REGISTERED, MODIFIED or UNREGISTERED, as delivered by
+     *            gossip
+     * @param bytes
+     *            - the size of the state, zero if the service was
+     *            deregistered
+     * @param nanos
+     *            - the time taken to deserialize the state, or -1 if the
+     *            state was not deserialized
+     */
+    void ingested(UUID id, EventType type, int bytes, long nanos);
+
+    /**
+     * A lookup was answered
+     *
+     * @param serviceType
+     * @param query
+     *            - the query, the indexed property of a range or ordered
+     *            lookup, or null if the lookup was by service type only
+     * @param scanned
+     *            - the number of services the lookup was evaluated against;
+     *            for scans which terminate early, the size of the registry
+     * @param results
+     *            - the number of services answered
+     * @param nanos
+     *            - the time taken
+     */
+    void lookedUp(String serviceType, String query, int scanned, int results,
+                  long nanos);
+
+    /**
+     * The listener was notified of an event
+     *
+     * @param listener
+     * @param type
+     *            - the type of the event
+     * @param nanos
+     *            - the time taken by the callback of the listener
+     * @param error
+     *            - the exception thrown by the listener, or null
+     */
+    void notified(ServiceListener listener, EventType type, long nanos,
+                  Throwable error);
+
+    /**
+     * A stamped service state propagated from its origin
+     *
+     * @param type
+     *            - REGISTERED if the state registered the service, MODIFIED
+     *            if it updated the service
+     * @param millis
+     *            - the time since the state was published by its origin
+     */
+    void propagated(EventType type, long millis);
+
+    /**
+     * A stamped service state was received after a later version of the
+     * service
+     */
+    void reordered();
+
+    /**
+     * A batch of service states was serialized
+     *
+     * @param states
+     *            - the number of states
+     * @param nanos
+     *            - the time taken
+     */
+    void serialized(int states, long nanos);
+
+    /**
+     * Versions of a service were not received, as a later version was
+     * received first
+     *
+     * @param versions
+     *            - the number of versions skipped
+     */
+    void skipped(long versions);
+}
@@ -0,0 +1,405 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+
+/**
+ * The statistics of a scope, recorded with striped counters and lock free
+ * histograms so that the instrumented hot paths do not contend, and exposed
+ * as an MXBean. The number of distinct listeners and lookups measured is
+ * bounded; the measurements of any beyond the bound are merged. Listeners are
+ * measured by identity and lookups by their service type and query, so that
+ * no key is constructed on the hot paths; the names of the measurements are
+ * only rendered when they are reported.
+ *
+ * @author hhildebrand
+ *
+ */
+public class GossipScopeStatistics implements GossipScopeMetrics,
+        GossipScopeMXBean {
+    /**
+     * The maximum number of listeners and of lookups measured separately
+     */
+    public static final int                                               MAXIMUM_KEYS      = 256;
+    /**
+     * The key of the merged measurements beyond the maximum number of keys
+     */
+    public static final String                                            OTHER             = "<other>";
+
+    private final Meter                                                   deregistrations   = new Meter();
+    private final Histogram                                               deserializeTime   = new Histogram();
+    private final StripedCounter                                          dispatchDepth     = new StripedCounter();
+    private final Histogram                                               filterEvaluations = new Histogram();
+    private final Histogram                                               filterTime        = new Histogram();
+    private final StripedCounter                                          listenerErrors    = new StripedCounter();
+    private volatile Map<ServiceListener, Histogram>                      listenerLatency   = new IdentityHashMap<ServiceListener, Histogram>();
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> lookupLatency     = new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+    private final AtomicInteger                                           lookups           = new AtomicInteger();
+    private final Histogram                                               otherListeners    = new Histogram();
+    private final Histogram                                               registrationDelay = new Histogram();
+    private final Meter                                                   registrations     = new Meter();
+    private final StripedCounter                                          reordered         = new StripedCounter();
+    private final GossipScope                                             scope;
+    private final Histogram                                               serializeTime     = new Histogram();
+    private final StripedCounter                                          skipped           = new StripedCounter();
+    private final Histogram                                               updateDelay       = new Histogram();
+    private final Meter                                                   updates           = new Meter();
+
+    /**
+     * @param scope
+     *            - the scope whose services and footprint are reported
+     */
+    public GossipScopeStatistics(GossipScope scope) {
+        this.scope = scope;
+    }
+
+    @Override
+    public void dispatchQueued() {
+        dispatchDepth.increment();
+    }
+
+    @Override
+    public void dispatchStarted() {
+        dispatchDepth.add(-1);
+    }
+
+    @Override
+    public void filtered(int events, int evaluations, int matched, long nanos) {
+        if (events > 0) {
+            filterEvaluations.record(evaluations / events, events);
+            filterTime.record(nanos / events, events);
+        }
+    }
+
+    @Override
+    public double getDeregistrationRate() {
+        return deregistrations.getOneMinuteRate();
+    }
+
+    @Override
+    public long getDeregistrations() {
+        return deregistrations.getCount();
+    }
+
+    @Override
+    public HistogramSummary getDeserializeTime() {
+        return deserializeTime.summarize();
+    }
+
+    @Override
+    public long getDispatchQueueDepth() {
+        return Math.max(0, dispatchDepth.sum());
+    }
+
+    @Override
+    public HistogramSummary getFilterEvaluations() {
+        return filterEvaluations.summarize();
+    }
+
+    @Override
+    public HistogramSummary getFilterTime() {
+        return filterTime.summarize();
+    }
+
+    @Override
+    public Map<String, Double> getFlapPenalties() {
+        Map<String, Double> penalties = new TreeMap<String, Double>();
+        for (FlapState state : scope.getFlapStates()) {
+            penalties.put(state.getRegistration().toString(),
+                          state.getPenalty());
+        }
+        return penalties;
+    }
+
+    @Override
+    public RegistryFootprint getFootprint() {
+        return scope.getFootprint();
+    }
+
+    @Override
+    public int getHeldDownServices() {
+        int held = 0;
+        for (FlapState state : scope.getFlapStates()) {
+            if (state.isHeldDown()) {
+                held++;
+            }
+        }
+        return held;
+    }
+
+    @Override
+    public long getListenerErrors() {
+        return listenerErrors.sum();
+    }
+
+    @Override
+    public Map<String, HistogramSummary> getListenerLatency() {
+        Map<String, HistogramSummary> summaries = new TreeMap<String, HistogramSummary>();
+        for (Map.Entry<ServiceListener, Histogram> entry : listenerLatency.entrySet()) {
+            String name = String.valueOf(entry.getKey());
+            if (summaries.containsKey(name)) {
+                name = String.format("%s@%x", name,
+                                     System.identityHashCode(entry.getKey()));
+            }
+            summaries.put(name, entry.getValue().summarize());
+        }
+        if (otherListeners.getCount() > 0) {
+            summaries.put(OTHER, otherListeners.summarize());
+        }
+        return summaries;
+    }
+
+    @Override
+    public Map<String, HistogramSummary> getLookupLatency() {
+        Map<String, HistogramSummary> summaries = new TreeMap<String, HistogramSummary>();
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> byType : lookupLatency.entrySet()) {
+            for (Map.Entry<String, Histogram> entry : byType.getValue().entrySet()) {
+                summaries.put(entry.getKey().isEmpty() ? byType.getKey()
+                                                      : byType.getKey() + " "
+                                                        + entry.getKey(),
+                              entry.getValue().summarize());
+            }
+        }
+        return summaries;
+    }
+
+    @Override
+    public HistogramSummary getRegistrationPropagation() {
+        return registrationDelay.summarize();
+    }
+
+    @Override
+    public double getRegistrationRate() {
+        return registrations.getOneMinuteRate();
+    }
+
+    @Override
+    public long getRegistrations() {
+        return registrations.getCount();
+    }
+
+    @Override
+    public long getReorderedVersions() {
+        return reordered.sum();
+    }
+
+    @Override
+    public HistogramSummary getSerializeTime() {
+        return serializeTime.summarize();
+    }
+
+    @Override
+    public Map<String, Integer> getServiceCounts() {
+        return scope.getServiceCounts();
+    }
+
+    @Override
+    public long getSkippedVersions() {
+        return skipped.sum();
+    }
+
+    @Override
+    public int getSuppressedServices() {
+        int suppressed = 0;
+        for (FlapState state : scope.getFlapStates()) {
+            if (state.isSuppressed()) {
+                suppressed++;
+            }
+        }
+        return suppressed;
+    }
+
+    @Override
+    public HistogramSummary getUpdatePropagation() {
+        return updateDelay.summarize();
+    }
+
+    @Override
+    public double getUpdateRate() {
+        return updates.getOneMinuteRate();
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.getCount();
+    }
+
+    @Override
+    public void ingested(UUID id, EventType type, int bytes, long nanos) {
+        switch (type) {
+            case REGISTERED:
+                registrations.mark();
+                break;
+            case MODIFIED:
+                updates.mark();
+                break;
+            case UNREGISTERED:
+                deregistrations.mark();
+                break;
+        }
+        if (nanos >= 0) {
+            deserializeTime.record(nanos);
+        }
+    }
+
+    @Override
+    public void lookedUp(String serviceType, String query, int scanned,
+                         int results, long nanos) {
+        lookupHistogram(serviceType, query == null ? "" : query).record(nanos);
+    }
+
+    @Override
+    public void notified(ServiceListener listener, EventType type, long nanos,
+                         Throwable error) {
+        listenerHistogram(listener).record(nanos);
+        if (error != null) {
+            listenerErrors.increment();
+        }
+    }
+
+    @Override
+    public void propagated(EventType type, long millis) {
+        if (type == EventType.REGISTERED) {
+            registrationDelay.record(millis);
+        } else {
+            updateDelay.record(millis);
+        }
+    }
+
+    @Override
+    public void reordered() {
+        reordered.increment();
+    }
+
+    /**
+     * Reset the statistics. The dispatch queue depth is not reset, as it
+     * reflects notifications still in flight
+     */
+    @Override
+    public void reset() {
+        deregistrations.reset();
+        deserializeTime.reset();
+        filterEvaluations.reset();
+        filterTime.reset();
+        listenerErrors.reset();
+        synchronized (this) {
+            listenerLatency = new IdentityHashMap<ServiceListener, Histogram>();
+        }
+        lookupLatency.clear();
+        lookups.set(0);
+        otherListeners.reset();
+        registrationDelay.reset();
+        registrations.reset();
+        reordered.reset();
+        serializeTime.reset();
+        skipped.reset();
+        updateDelay.reset();
+        updates.reset();
+    }
+
+    @Override
+    public void serialized(int states, long nanos) {
+        if (states > 0) {
+            serializeTime.record(nanos / states, states);
+        }
+    }
+
+    @Override
+    public void skipped(long versions) {
+        skipped.add(versions);
+    }
+
+    /**
+     * The histograms of the listeners are held in an identity map, replaced
+     * on write, so that the histogram of a known listener is found without
+     * locking
+     */
+    private Histogram listenerHistogram(ServiceListener listener) {
+        Map<ServiceListener, Histogram> current = listenerLatency;
+        Histogram histogram = current.get(listener);
+        if (histogram != null) {
+            return histogram;
+        }
+        if (current.size() >= MAXIMUM_KEYS) {
+            return otherListeners;
+        }
+        synchronized (this) {
+            current = listenerLatency;
+            histogram = current.get(listener);
+            if (histogram != null) {
+                return histogram;
+            }
+            if (current.size() >= MAXIMUM_KEYS) {
+                return otherListeners;
+            }
+            Map<ServiceListener, Histogram> updated = new IdentityHashMap<ServiceListener, Histogram>(
+                                                                                                      current);
+            histogram = new Histogram();
+            updated.put(listener, histogram);
+            listenerLatency = updated;
+            return histogram;
+        }
+    }
+
+    /**
+     * @param serviceType
+     * @param query
+     *            - the query, or the empty string if the lookup was by service
+     *            type only
+     */
+    private Histogram lookupHistogram(String serviceType, String query) {
+        ConcurrentMap<String, Histogram> byQuery = lookupLatency.get(serviceType);
+        Histogram histogram = byQuery == null ? null : byQuery.get(query);
+        if (histogram != null) {
+            return histogram;
+        }
+        if (lookups.get() >= MAXIMUM_KEYS) {
+            serviceType = OTHER;
+            query = "";
+            byQuery = lookupLatency.get(serviceType);
+            histogram = byQuery == null ? null : byQuery.get(query);
+            if (histogram != null) {
+                return histogram;
+            }
+        }
+        if (byQuery == null) {
+            byQuery = new ConcurrentHashMap<String, Histogram>();
+            ConcurrentMap<String, Histogram> existing = lookupLatency.putIfAbsent(serviceType,
+                                                                                  byQuery);
+            if (existing != null) {
+                byQuery = existing;
+            }
+        }
+        histogram = new Histogram();
+        Histogram existing = byQuery.putIfAbsent(query, histogram);
+        if (existing != null) {
+            return existing;
+        }
+        lookups.incrementAndGet();
+        return histogram;
+    }
+}
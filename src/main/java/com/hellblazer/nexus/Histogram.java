@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of non negative values, with log linear buckets in
+ * the manner of HdrHistogram. Each power of two is divided into 16 linear
+ * sub buckets, so that the values answered for quantiles are within 1/16 of
+ * the recorded values. Recording is lock free, and increments a single bucket
+ * and the striped count and sum.
+ *
+ * @author hhildebrand
+ *
+ */
+class Histogram {
+    private static final int SUB_BITS    = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS     = (65 - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * @param value
+     * @return the index of the bucket of the non negative value
+     */
+    static int bucketOf(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value | SUB_BUCKETS);
+        int shift = exponent - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @param bucket
+     * @return the greatest value of the bucket
+     */
+    static long highestOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BITS) - 1;
+        long mantissa = (bucket & SUB_BUCKETS - 1) + SUB_BUCKETS;
+        return (mantissa + 1 << shift) - 1;
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter  count   = new StripedCounter();
+    private final AtomicLong      max     = new AtomicLong();
+    private final StripedCounter  sum     = new StripedCounter();
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Answer the value at the quantile of the recorded values
+     *
+     * @param quantile
+     *            - the quantile, between 0.0 and 1.0
+     * @return the greatest value of the bucket containing the quantile, bounded
+     *         by the maximum recorded value
+     */
+    public long getValueAt(double quantile) {
+        if (quantile < 0.0 || quantile > 1.0) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid quantile %s",
+                                                             quantile));
+        }
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Record the value the number of times
+     *
+     * @param value
+     *            - the value, negative values are recorded as zero
+     * @param times
+     */
+    public void record(long value, int times) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.getAndAdd(bucketOf(value), times);
+        count.add(times);
+        sum.add(value * times);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return the summary of the recorded values
+     */
+    public HistogramSummary summarize() {
+        return new HistogramSummary(getCount(), getMean(), getValueAt(0.5),
+                                    getValueAt(0.9), getValueAt(0.99),
+                                    getValueAt(0.999), getMax());
+    }
+}
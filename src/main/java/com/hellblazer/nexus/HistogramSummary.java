@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable summary of the values recorded by a histogram of the scope
+ * statistics
+ *
+ * @author hhildebrand
+ *
+ */
+public class HistogramSummary {
+    private final long   count;
+    private final long   max;
+    private final double mean;
+    private final long   p50;
+    private final long   p90;
+    private final long   p99;
+    private final long   p999;
+
+    @ConstructorProperties({ "count", "mean", "p50", "p90", "p99", "p999",
+            "max" })
+    public HistogramSummary(long count, double mean, long p50, long p90,
+                            long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("HistogramSummary [count=%s, mean=%.1f, p50=%s, p90=%s, p99=%s, p999=%s, max=%s]",
+                             count, mean, p50, p90, p99, p999, max);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.hellblazer.slp.ServiceScope;
+
+/**
+ * The set of service types a scope is interested in materializing. An interest
+ * set only ever widens; the scope narrows its interests by replacing the set,
+ * withdrawing the services that fall outside the replacement back into their
+ * serialized form.
+ *
+ * @author hhildebrand
+ *
+ */
+class InterestSet {
+    /**
+     * A recursive descent over the structure of a filter, determining the
+     * service types to which the filter constrains its matches
+     */
+    private static class Constraint {
+        private final String filter;
+        private int          position;
+
+        private Constraint(String filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * @return the service type patterns the filter at the current position
+         *         is constrained to, or null if it admits any service type
+         */
+        private List<String> parse() {
+            skipSpace();
+            expect('(');
+            skipSpace();
+            switch (filter.charAt(position)) {
+                case '&': {
+                    position++;
+                    List<String> types = null;
+                    for (List<String> child : children()) {
+                        if (types == null) {
+                            types = child;
+                        }
+                    }
+                    return types;
+                }
+                case '|': {
+                    position++;
+                    List<String> types = new ArrayList<String>();
+                    for (List<String> child : children()) {
+                        if (child == null || types == null) {
+                            types = null;
+                        } else {
+                            types.addAll(child);
+                        }
+                    }
+                    return types;
+                }
+                case '!': {
+                    position++;
+                    children();
+                    return null;
+                }
+                default:
+                    return item();
+            }
+        }
+
+        private List<List<String>> children() {
+            List<List<String>> children = new ArrayList<List<String>>();
+            skipSpace();
+            while (filter.charAt(position) == '(') {
+                children.add(parse());
+                skipSpace();
+            }
+            expect(')');
+            return children;
+        }
+
+        private void expect(char c) {
+            if (filter.charAt(position) != c) {
+                throw new IllegalArgumentException(
+                                                   String.format("Expected '%s' at %s of %s",
+                                                                 c, position,
+                                                                 filter));
+            }
+            position++;
+        }
+
+        private List<String> item() {
+            int start = position;
+            while (filter.charAt(position) != ')') {
+                if (filter.charAt(position) == '\\') {
+                    position++;
+                }
+                position++;
+            }
+            String item = filter.substring(start, position++);
+            int eq = item.indexOf('=');
+            if (eq <= 0 || "~<>".indexOf(item.charAt(eq - 1)) >= 0
+                || !ServiceScope.SERVICE_TYPE.equalsIgnoreCase(item.substring(0,
+                                                                              eq).trim())) {
+                return null;
+            }
+            String value = item.substring(eq + 1).trim();
+            if (value.isEmpty() || value.indexOf('\\') >= 0) {
+                return null;
+            }
+            return Collections.singletonList(value);
+        }
+
+        private void skipSpace() {
+            while (Character.isWhitespace(filter.charAt(position))) {
+                position++;
+            }
+        }
+    }
+
+    private static final String ANY = "*";
+
+    /**
+     * Answer the service type patterns to which the filter constrains its
+     * matches. A conjunction is constrained by any of its terms, a disjunction
+     * only if every one of its branches is constrained, and a negation never
+     * is.
+     *
+     * @param query
+     * @return the service type patterns, or null if the filter admits services
+     *         of any type, or cannot be parsed
+     */
+    static List<String> constrained(String query) {
+        String filter = query.trim();
+        if (!filter.startsWith("(")) {
+            filter = "(" + filter + ")";
+        }
+        Constraint constraint = new Constraint(filter);
+        List<String> types;
+        try {
+            types = constraint.parse();
+        } catch (StringIndexOutOfBoundsException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return constraint.position == filter.length() ? types : null;
+    }
+
+    /**
+     * Answer true if the service type matches the interest pattern. A pattern
+     * matches its concrete types, so "service:jmx" matches "service:jmx:http"
+     *
+     * @param pattern
+     * @param serviceType
+     * @return
+     */
+    public static boolean matches(String pattern, String serviceType) {
+        if (pattern.indexOf('*') < 0) {
+            return serviceType.equals(pattern)
+                   || serviceType.startsWith(pattern)
+                   && serviceType.charAt(pattern.length()) == ':';
+        }
+        return glob(pattern, 0, serviceType, 0);
+    }
+
+    private static boolean glob(String pattern, int p, String value, int v) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int i = value.length(); i >= v; i--) {
+                    if (glob(pattern, p + 1, value, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (v >= value.length() || value.charAt(v) != c) {
+                return false;
+            }
+            p++;
+            v++;
+        }
+        return v == value.length();
+    }
+
+    private volatile boolean  everything;
+    private final Set<String> exact    = new CopyOnWriteArraySet<String>();
+    private final Set<String> wildcard = new CopyOnWriteArraySet<String>();
+
+    /**
+     * @param everything
+     *            - true if every service type is of interest
+     */
+    public InterestSet(boolean everything) {
+        this.everything = everything;
+    }
+
+    /**
+     * Add the service type pattern to the set of interests
+     *
+     * @param pattern
+     * @return true if the set of interests widened
+     */
+    public boolean add(String pattern) {
+        if (everything) {
+            return false;
+        }
+        if (pattern == null || ANY.equals(pattern.trim())) {
+            everything = true;
+            return true;
+        }
+        pattern = pattern.trim();
+        if (pattern.indexOf('*') < 0) {
+            return exact.add(pattern);
+        }
+        return wildcard.add(pattern);
+    }
+
+    /**
+     * Add the service types constrained by the listener or lookup query. A
+     * query which does not constrain the service type - a negation, or a
+     * disjunction with a branch that admits any type - widens the interests to
+     * everything
+     *
+     * @param query
+     * @return true if the set of interests widened
+     */
+    public boolean addQuery(String query) {
+        if (everything) {
+            return false;
+        }
+        List<String> types = query == null ? null : constrained(query);
+        if (types == null) {
+            return add(ANY);
+        }
+        boolean widened = false;
+        for (String type : types) {
+            widened |= add(type);
+        }
+        return widened;
+    }
+
+    public boolean addAll(Collection<String> patterns) {
+        boolean widened = false;
+        for (String pattern : patterns) {
+            widened |= add(pattern);
+        }
+        return widened;
+    }
+
+    public boolean isEverything() {
+        return everything;
+    }
+
+    /**
+     * @param serviceType
+     *            - the service type, or null if it could not be determined
+     * @return true if services of this type should be materialized
+     */
+    public boolean matches(String serviceType) {
+        if (everything || serviceType == null) {
+            return true;
+        }
+        if (exact.contains(serviceType)) {
+            return true;
+        }
+        for (String pattern : exact) {
+            if (matches(pattern, serviceType)) {
+                return true;
+            }
+        }
+        for (String pattern : wildcard) {
+            if (matches(pattern, serviceType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        if (everything) {
+            return "InterestSet[*]";
+        }
+        return String.format("InterestSet[%s %s]", exact, wildcard);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and maintains their exponentially weighted one minute rate.
+ * The rate is decayed every five seconds, by whichever thread marks or reads
+ * the meter first after the interval has elapsed.
+ *
+ * @author hhildebrand
+ *
+ */
+class Meter {
+    private static final double ALPHA = 1.0 - Math.exp(-5.0 / 60.0);
+    private static final long   TICK  = TimeUnit.SECONDS.toNanos(5);
+
+    private final StripedCounter count     = new StripedCounter();
+    private volatile boolean     initialized;
+    private final AtomicLong     lastTick  = new AtomicLong(System.nanoTime());
+    private volatile double      rate;
+    private final StripedCounter uncounted = new StripedCounter();
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the one minute rate of events per second
+     */
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return rate;
+    }
+
+    public void mark() {
+        tickIfNecessary();
+        count.increment();
+        uncounted.increment();
+    }
+
+    public void reset() {
+        count.reset();
+        uncounted.reset();
+        rate = 0.0;
+        initialized = false;
+    }
+
+    private void tick() {
+        double instant = (double) uncounted.sumThenReset()
+                         / TimeUnit.NANOSECONDS.toSeconds(TICK);
+        if (initialized) {
+            rate += ALPHA * (instant - rate);
+        } else {
+            rate = instant;
+            initialized = true;
+        }
+    }
+
+    private void tickIfNecessary() {
+        long previous = lastTick.get();
+        long age = System.nanoTime() - previous;
+        if (age < TICK) {
+            return;
+        }
+        if (lastTick.compareAndSet(previous, previous + age - age % TICK)) {
+            for (long i = age / TICK; i > 0; i--) {
+                tick();
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+
+/**
+ * Sorted indexes of the numeric property values of services, per service type
+ * and property. Property values are decoded once, when the service is
+ * ingested, and range and top-k queries are answered by the sorted index
+ * rather than by scanning the registry. Integral values are held as longs and
+ * compared exactly, so that values beyond the precision of a double are
+ * ordered correctly. A query for a service type is answered by the indexes of
+ * the type and of its concrete types, as filters match them.
+ *
+ * @author hhildebrand
+ *
+ */
+class NumericIndex {
+
+    /**
+     * The sorted index of a numeric property of a service type
+     */
+    private static class Index {
+        private final ConcurrentMap<UUID, Key> keys   = new ConcurrentHashMap<UUID, Key>();
+        private final NavigableSet<Key>        sorted = new ConcurrentSkipListSet<Key>();
+
+        private synchronized void put(UUID id, Number value) {
+            Key key = new Key(value, id);
+            Key previous = keys.put(id, key);
+            if (previous != null) {
+                sorted.remove(previous);
+            }
+            sorted.add(key);
+        }
+
+        private synchronized void remove(UUID id) {
+            Key previous = keys.remove(id);
+            if (previous != null) {
+                sorted.remove(previous);
+            }
+        }
+    }
+
+    /**
+     * An entry of the sorted index, ordered by value then registration
+     */
+    static class Key implements Comparable<Key> {
+        private final UUID   id;
+        private final Number value;
+
+        private Key(Number value, UUID id) {
+            this.value = value;
+            this.id = id;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(Key key) {
+            int compare = compare(value, key.value);
+            if (compare != 0) {
+                return compare;
+            }
+            return id.compareTo(key.id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return value.equals(other.value) && id.equals(other.id);
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        /**
+         * @return the value, a Long if integral and a Double if not
+         */
+        public Number getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id.hashCode() + value.hashCode();
+        }
+    }
+
+    private static final UUID MAX_ID = new UUID(Long.MAX_VALUE, Long.MAX_VALUE);
+    private static final UUID MIN_ID = new UUID(Long.MIN_VALUE, Long.MIN_VALUE);
+
+    /**
+     * Compare the decoded values exactly. Longs are compared as longs, doubles
+     * as doubles, and a long with a double by their exact values rather than
+     * by converting the long to a double
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int compare(Number a, Number b) {
+        if (a instanceof Long) {
+            return b instanceof Long ? Long.compare(a.longValue(),
+                                                    b.longValue())
+                                    : compare(a.longValue(), b.doubleValue());
+        }
+        return b instanceof Long ? -compare(b.longValue(), a.doubleValue())
+                                : Double.compare(a.doubleValue(),
+                                                 b.doubleValue());
+    }
+
+    /**
+     * Decode the numeric property value. Integral values are decoded as longs,
+     * all others as doubles
+     *
+     * @param value
+     * @return the decoded Long or Double, or null if the value is not numeric
+     */
+    public static Number decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // not integral
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compare the long with the double exactly, ordering NaN above all values
+     * as Double.compare does
+     */
+    private static int compare(long l, double d) {
+        if (Double.isNaN(d) || d >= 0x1p63) {
+            return -1;
+        }
+        if (d < -0x1p63) {
+            return 1;
+        }
+        double floor = Math.floor(d);
+        long integral = (long) floor;
+        if (l != integral) {
+            return l < integral ? -1 : 1;
+        }
+        return floor < d ? -1 : 0;
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Index>> indexes    = new ConcurrentHashMap<String, ConcurrentMap<String, Index>>();
+    private final Set<String>                                         properties = new CopyOnWriteArraySet<String>();
+
+    /**
+     * Index the numeric properties of the reference, replacing any previous
+     * values of the registration
+     *
+     * @param ref
+     */
+    public void index(ServiceReference ref) {
+        if (properties.isEmpty()) {
+            return;
+        }
+        Map<String, String> props = ref.getProperties();
+        String serviceType = props.get(ServiceScope.SERVICE_TYPE);
+        if (serviceType == null) {
+            return;
+        }
+        for (String property : properties) {
+            Number value = decode(props.get(property));
+            if (value == null) {
+                Index index = indexOf(serviceType, property, false);
+                if (index != null) {
+                    index.remove(ref.getRegistration());
+                }
+            } else {
+                indexOf(serviceType, property, true).put(ref.getRegistration(),
+                                                         value);
+            }
+        }
+    }
+
+    public boolean isIndexed(String property) {
+        return properties.contains(property);
+    }
+
+    /**
+     * Answer the keys of the services of the type whose property value lies
+     * within the range, in ascending order of value
+     *
+     * @param serviceType
+     *            - the service type pattern
+     * @param property
+     * @param min
+     *            - the inclusive minimum, a Long or Double
+     * @param max
+     *            - the inclusive maximum, a Long or Double
+     * @return
+     */
+    public List<Key> range(String serviceType, String property, Number min,
+                           Number max) {
+        List<Key> keys = new ArrayList<Key>();
+        Key from = new Key(min, MIN_ID);
+        Key to = new Key(max, MAX_ID);
+        for (Index index : indexesOf(serviceType, property)) {
+            keys.addAll(index.sorted.subSet(from, true, to, true));
+        }
+        if (keys.size() > 1) {
+            Collections.sort(keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Replace the set of indexed properties
+     *
+     * @param indexed
+     * @param services
+     *            - the services to reindex
+     */
+    public void setProperties(Collection<String> indexed,
+                              Iterable<? extends ServiceReference> services) {
+        properties.clear();
+        properties.addAll(indexed);
+        indexes.clear();
+        for (ServiceReference ref : services) {
+            index(ref);
+        }
+    }
+
+    /**
+     * Answer the first keys of the services of the type, in order of their
+     * property value
+     *
+     * @param serviceType
+     *            - the service type pattern
+     * @param property
+     * @param ascending
+     * @param limit
+     *            - the maximum number of keys answered
+     * @return
+     */
+    public List<Key> top(String serviceType, String property,
+                         boolean ascending, int limit) {
+        List<Key> keys = new ArrayList<Key>();
+        List<Index> matching = indexesOf(serviceType, property);
+        for (Index index : matching) {
+            int count = 0;
+            for (Key key : ascending ? index.sorted : index.sorted.descendingSet()) {
+                if (count++ == limit) {
+                    break;
+                }
+                keys.add(key);
+            }
+        }
+        if (matching.size() > 1) {
+            Collections.sort(keys);
+            if (!ascending) {
+                Collections.reverse(keys);
+            }
+            if (keys.size() > limit) {
+                keys = new ArrayList<Key>(keys.subList(0, limit));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Remove the registration from the indexes
+     *
+     * @param ref
+     */
+    public void unindex(ServiceReference ref) {
+        if (properties.isEmpty()) {
+            return;
+        }
+        String serviceType = ref.getProperties().get(ServiceScope.SERVICE_TYPE);
+        if (serviceType == null) {
+            return;
+        }
+        ConcurrentMap<String, Index> byProperty = indexes.get(serviceType);
+        if (byProperty == null) {
+            return;
+        }
+        for (Index index : byProperty.values()) {
+            index.remove(ref.getRegistration());
+        }
+    }
+
+    private List<Index> indexesOf(String serviceType, String property) {
+        List<Index> matching = new ArrayList<Index>();
+        if (serviceType == null) {
+            serviceType = "*";
+        }
+        for (Map.Entry<String, ConcurrentMap<String, Index>> entry : indexes.entrySet()) {
+            if (InterestSet.matches(serviceType, entry.getKey())) {
+                Index index = entry.getValue().get(property);
+                if (index != null) {
+                    matching.add(index);
+                }
+            }
+        }
+        return matching;
+    }
+
+    private Index indexOf(String serviceType, String property, boolean create) {
+        ConcurrentMap<String, Index> byProperty = indexes.get(serviceType);
+        if (byProperty == null) {
+            if (!create) {
+                return null;
+            }
+            byProperty = new ConcurrentHashMap<String, Index>();
+            ConcurrentMap<String, Index> existing = indexes.putIfAbsent(serviceType,
+                                                                        byProperty);
+            if (existing != null) {
+                byProperty = existing;
+            }
+        }
+        Index index = byProperty.get(property);
+        if (index == null && create) {
+            index = new Index();
+            Index existing = byProperty.putIfAbsent(property, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,843 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * A store of services which keeps the serialized state of the services off
+ * heap, so that the number of objects on the heap does not grow with the
+ * number of services. References are materialized from their state only when
+ * answered by a lookup, and are garbage once the caller is done with them.
+ * <p>
+ * Service states are stored in slabs of direct memory. Each slab is divided
+ * into blocks of a single power of two size class, and freed blocks are
+ * chained into a free list of their slab through the blocks themselves. The
+ * slabs of a size class with free blocks are linked into the available list
+ * of the class, and a slab whose blocks are all freed is returned to the
+ * system, so that the store shrinks as services are withdrawn.
+ * A block holds the length of the state, the registration and the state. The
+ * registrations are indexed by an open addressing hash table, also held in
+ * direct memory, mapping the registration to the address of its block.
+ * <p>
+ * Iteration walks the blocks of the slabs, and is weakly consistent: a
+ * service updated or removed during the iteration may or may not be answered.
+ * <p>
+ * The footprint account of the store records the size of the states; as no
+ * references are retained, the store accounts for no heap. The index and the
+ * account are maintained outside the lock of the store, under a lock striped
+ * by registration, and the index is reconciled with the latest stored state
+ * of the registration, so that concurrent updates of a registration cannot
+ * leave it indexed by a superseded state.
+ *
+ * @author hhildebrand
+ *
+ */
+final class OffHeapServiceStore implements ServiceStore {
+
+    /**
+     * Iterates over the live blocks of a range of slabs, materializing the
+     * references of the services matching the filter
+     */
+    private class BlockIterator implements Iterator<ServiceReference> {
+        private final Filter         filter;
+        private int                  generation;
+        private final int            lastSlab;
+        private ServiceReferenceImpl next;
+        private int                  offset;
+        private int                  slab;
+        private final String         serviceType;
+
+        private BlockIterator(int firstSlab, int lastSlab, String serviceType,
+                              Filter filter) {
+            this.slab = firstSlab;
+            this.lastSlab = lastSlab;
+            this.serviceType = serviceType;
+            this.filter = filter;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ServiceReference next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            ServiceReference current = next;
+            advance();
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                                                    "Use GossipScope.unregister");
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                UUID id = null;
+                byte[] state = null;
+                lock.readLock().lock();
+                try {
+                    int last = Math.min(lastSlab, slabCount);
+                    while (slab < last && state == null) {
+                        // the slab was reclaimed, and perhaps reused, since
+                        // the iteration entered it
+                        if (slabs[slab] == null || offset > 0
+                            && generations[slab] != generation) {
+                            slab++;
+                            offset = 0;
+                            continue;
+                        }
+                        if (offset == 0) {
+                            generation = generations[slab];
+                        }
+                        int block = blockSizes[slab];
+                        if (offset + block > SLAB_SIZE) {
+                            slab++;
+                            offset = 0;
+                            continue;
+                        }
+                        long address = address(slab, offset);
+                        offset += block;
+                        state = read(address);
+                        if (state != null) {
+                            id = idAt(address);
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (state == null) {
+                    return;
+                }
+                if (serviceType != null) {
+                    String type = GossipScope.serviceTypeOf(state);
+                    if (type != null && !InterestSet.matches(serviceType, type)) {
+                        continue;
+                    }
+                }
+                ServiceReferenceImpl candidate = GossipScope.deserialize(id,
+                                                                         state);
+                if (filter == null || filter.match(candidate)) {
+                    next = candidate;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans a range of slabs, forking the scans of the halves of the range
+     */
+    private class SlabScan extends RecursiveTask<List<ServiceReference>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Filter      filter;
+        private final int         from;
+        private final String      serviceType;
+        private final int         to;
+
+        private SlabScan(int from, int to, String serviceType, Filter filter) {
+            this.from = from;
+            this.to = to;
+            this.serviceType = serviceType;
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<ServiceReference> compute() {
+            if (to - from <= 1) {
+                List<ServiceReference> references = new ArrayList<ServiceReference>();
+                Iterator<ServiceReference> matching = new BlockIterator(
+                                                                        from,
+                                                                        to,
+                                                                        serviceType,
+                                                                        filter);
+                while (matching.hasNext()) {
+                    references.add(matching.next());
+                }
+                return references;
+            }
+            int middle = (from + to) >>> 1;
+            SlabScan left = new SlabScan(from, middle, serviceType, filter);
+            left.fork();
+            List<ServiceReference> references = new SlabScan(middle, to,
+                                                             serviceType,
+                                                             filter).compute();
+            List<ServiceReference> result = left.join();
+            result.addAll(references);
+            return result;
+        }
+    }
+
+    /**
+     * The size of the slabs of direct memory, and the largest block size
+     */
+    public static final int   SLAB_SIZE        = 1 << 20;
+
+    private static final int  ABSENT           = -1;
+    private static final int  HEADER           = 20;
+    private static final int  INITIAL_CAPACITY = 1 << 10;
+    private static final int  LOCKS            = 64;
+    private static final int  MAXIMUM_CAPACITY = 1 << 26;
+    private static final int  MINIMUM_BLOCK    = 1 << 6;
+    private static final int  SIZE_CLASSES     = 15;
+    private static final int  SLOT             = 24;
+    private static final long TOMBSTONE        = -1L;
+
+    private static long address(int slab, int offset) {
+        return (long) (slab + 1) << 32 | offset;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static int sizeClassOf(int blockSize) {
+        return Integer.numberOfTrailingZeros(blockSize)
+               - Integer.numberOfTrailingZeros(MINIMUM_BLOCK);
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private final FootprintAccount account;
+    private final int[]            available         = new int[SIZE_CLASSES];
+    private int[]                  blockSizes        = new int[16];
+    private int                    capacity;
+    private final int[]            fill              = new int[SIZE_CLASSES];
+    private final int[]            filling           = new int[SIZE_CLASSES];
+    private long[]                 free              = new long[16];
+    private int[]                  generations       = new int[16];
+    private final NumericIndex     index;
+    private int[]                  live              = new int[16];
+    private final ReadWriteLock    lock              = new ReentrantReadWriteLock();
+    private final Object[]         locks             = new Object[LOCKS];
+    private final int              maxStateSize;
+    private int[]                  nextAvailable     = new int[16];
+    private int[]                  previousAvailable = new int[16];
+    private int                    size;
+    private int                    slabCount;
+    private int                    slabsAllocated;
+    private ByteBuffer[]           slabs             = new ByteBuffer[16];
+    private ByteBuffer             table;
+    private int                    used;
+
+    /**
+     * @param index
+     *            - the numeric index maintained by the store
+     * @param account
+     *            - the footprint account maintained by the store
+     * @param maxStateSize
+     *            - the maximum size of the serialized state of a service
+     */
+    public OffHeapServiceStore(NumericIndex index, FootprintAccount account,
+                               int maxStateSize) {
+        if (maxStateSize + HEADER > SLAB_SIZE) {
+            throw new IllegalArgumentException(
+                                               String.format("Maximum state size %s exceeds the slab size %s",
+                                                             maxStateSize,
+                                                             SLAB_SIZE));
+        }
+        this.index = index;
+        this.account = account;
+        this.maxStateSize = maxStateSize;
+        Arrays.fill(available, -1);
+        Arrays.fill(filling, -1);
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        capacity = INITIAL_CAPACITY;
+        table = ByteBuffer.allocateDirect(capacity * SLOT);
+    }
+
+    /**
+     * @return the bytes of direct memory allocated by the store
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) slabsAllocated * SLAB_SIZE + (long) capacity * SLOT;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ServiceReferenceImpl get(UUID serviceRegistration) {
+        byte[] state;
+        lock.readLock().lock();
+        try {
+            int slot = find(serviceRegistration.getMostSignificantBits(),
+                            serviceRegistration.getLeastSignificantBits());
+            if (slot < 0) {
+                return null;
+            }
+            state = read(addressAt(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return GossipScope.deserialize(serviceRegistration, state);
+    }
+
+    @Override
+    public Iterator<ServiceReference> iterator() {
+        return new BlockIterator(0, Integer.MAX_VALUE, null, null);
+    }
+
+    @Override
+    public Iterator<ServiceReference> iterator(String serviceType, String query)
+                                                                                throws InvalidSyntaxException {
+        return new BlockIterator(0, Integer.MAX_VALUE, serviceType,
+                                 RegistrySnapshot.filterFor(serviceType, query));
+    }
+
+    @Override
+    public List<ServiceReference> parallelScan(String serviceType,
+                                               String query, ForkJoinPool pool)
+                                                                               throws InvalidSyntaxException {
+        Filter filter = RegistrySnapshot.filterFor(serviceType, query);
+        int slabs;
+        lock.readLock().lock();
+        try {
+            slabs = slabCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (slabs == 0) {
+            return new ArrayList<ServiceReference>();
+        }
+        return pool.invoke(new SlabScan(0, slabs, serviceType, filter));
+    }
+
+    @Override
+    public boolean put(ServiceReferenceImpl ref) {
+        return put(ref, stateOf(ref));
+    }
+
+    /**
+     * The received state is stored as is, rather than serialized again
+     */
+    @Override
+    public boolean put(ServiceReferenceImpl ref, byte[] state) {
+        int previous;
+        lock.writeLock().lock();
+        try {
+            previous = store(ref.getRegistration(), state, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        stored(ref, state, previous);
+        return previous == ABSENT;
+    }
+
+    @Override
+    public void putAll(Collection<ServiceReferenceImpl> refs) {
+        List<byte[]> states = new ArrayList<byte[]>(refs.size());
+        for (ServiceReferenceImpl ref : refs) {
+            states.add(stateOf(ref));
+        }
+        int[] previous = new int[refs.size()];
+        lock.writeLock().lock();
+        try {
+            int i = 0;
+            for (ServiceReferenceImpl ref : refs) {
+                previous[i] = store(ref.getRegistration(), states.get(i), true);
+                i++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        int i = 0;
+        for (ServiceReferenceImpl ref : refs) {
+            stored(ref, states.get(i), previous[i]);
+            i++;
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(ServiceReferenceImpl ref) {
+        return putIfAbsent(ref, stateOf(ref));
+    }
+
+    /**
+     * The received state is stored as is, rather than serialized again
+     */
+    @Override
+    public boolean putIfAbsent(ServiceReferenceImpl ref, byte[] state) {
+        lock.writeLock().lock();
+        try {
+            if (store(ref.getRegistration(), state, false) != ABSENT) {
+                return false;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        stored(ref, state, ABSENT);
+        return true;
+    }
+
+    @Override
+    public ServiceReferenceImpl remove(UUID serviceRegistration) {
+        byte[] state;
+        lock.writeLock().lock();
+        try {
+            state = delete(serviceRegistration);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (state == null) {
+            return null;
+        }
+        ServiceReferenceImpl removed = GossipScope.deserialize(serviceRegistration,
+                                                               state);
+        deleted(removed, state);
+        return removed;
+    }
+
+    @Override
+    public List<ServiceReferenceImpl> removeAll(Collection<UUID> serviceRegistrations) {
+        List<UUID> ids = new ArrayList<UUID>();
+        List<byte[]> states = new ArrayList<byte[]>();
+        lock.writeLock().lock();
+        try {
+            for (UUID serviceRegistration : serviceRegistrations) {
+                byte[] state = delete(serviceRegistration);
+                if (state != null) {
+                    ids.add(serviceRegistration);
+                    states.add(state);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        List<ServiceReferenceImpl> removed = new ArrayList<ServiceReferenceImpl>(
+                                                                                 ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            ServiceReferenceImpl ref = GossipScope.deserialize(ids.get(i),
+                                                               states.get(i));
+            deleted(ref, states.get(i));
+            removed.add(ref);
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The snapshot is materialized by copying every service of the store onto
+     * the heap, and is intended for infrequent use
+     */
+    @Override
+    public RegistrySnapshot snapshot() {
+        RegistrySnapshot snapshot = RegistrySnapshot.empty();
+        for (ServiceReference ref : this) {
+            snapshot = snapshot.put((ServiceReferenceImpl) ref);
+        }
+        return snapshot;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("OffHeapServiceStore [size=%s, allocated=%s]",
+                             size(), getAllocatedBytes());
+    }
+
+    private long addressAt(int slot) {
+        return table.getLong(slot * SLOT + 16);
+    }
+
+    private long allocate(int blockSize) {
+        int sizeClass = sizeClassOf(blockSize);
+        int slab = available[sizeClass];
+        if (slab >= 0) {
+            long address = free[slab];
+            free[slab] = slabs[slab].getLong(offsetOf(address) + 4);
+            if (free[slab] == 0) {
+                unlist(slab, sizeClass);
+            }
+            live[slab]++;
+            return address;
+        }
+        slab = filling[sizeClass];
+        if (slab < 0 || fill[sizeClass] + blockSize > SLAB_SIZE) {
+            slab = newSlab(blockSize);
+            filling[sizeClass] = slab;
+            fill[sizeClass] = 0;
+        }
+        long address = address(slab, fill[sizeClass]);
+        fill[sizeClass] += blockSize;
+        live[slab]++;
+        return address;
+    }
+
+    private int blockSizeOf(int stateSize) {
+        int required = stateSize + HEADER;
+        return Math.max(MINIMUM_BLOCK,
+                        Integer.highestOneBit(required - 1) << 1);
+    }
+
+    private byte[] delete(UUID serviceRegistration) {
+        int slot = find(serviceRegistration.getMostSignificantBits(),
+                        serviceRegistration.getLeastSignificantBits());
+        if (slot < 0) {
+            return null;
+        }
+        long address = addressAt(slot);
+        byte[] state = read(address);
+        release(address);
+        table.putLong(slot * SLOT + 16, TOMBSTONE);
+        size--;
+        return state;
+    }
+
+    /**
+     * Account for the removed state, and reconcile the index
+     *
+     * @param ref
+     *            - the removed reference
+     * @param state
+     *            - the removed state
+     */
+    private void deleted(ServiceReferenceImpl ref, byte[] state) {
+        UUID id = ref.getRegistration();
+        synchronized (lockOf(id)) {
+            account.adjust(FootprintAccount.serviceTypeOf(ref), -1,
+                           -state.length, 0L);
+            reindex(id, ref, null);
+        }
+    }
+
+    private int find(long msb, long lsb) {
+        int mask = capacity - 1;
+        for (int slot = hash(msb, lsb) & mask;; slot = slot + 1 & mask) {
+            long address = addressAt(slot);
+            if (address == 0) {
+                return -1;
+            }
+            if (address != TOMBSTONE && table.getLong(slot * SLOT) == msb
+                && table.getLong(slot * SLOT + 8) == lsb) {
+                return slot;
+            }
+        }
+    }
+
+    private UUID idAt(long address) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        return new UUID(slab.getLong(offset + 4), slab.getLong(offset + 12));
+    }
+
+    private void insert(long msb, long lsb, long address) {
+        if (used + 1 > capacity / 4 * 3) {
+            resize();
+        }
+        int mask = capacity - 1;
+        for (int slot = hash(msb, lsb) & mask;; slot = slot + 1 & mask) {
+            long existing = addressAt(slot);
+            if (existing == 0 || existing == TOMBSTONE) {
+                if (existing == 0) {
+                    used++;
+                }
+                table.putLong(slot * SLOT, msb);
+                table.putLong(slot * SLOT + 8, lsb);
+                table.putLong(slot * SLOT + 16, address);
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Link the slab, which has free blocks, into the available list of its
+     * size class
+     */
+    private Object lockOf(UUID id) {
+        int hash = id.hashCode();
+        return locks[(hash ^ hash >>> 16) & LOCKS - 1];
+    }
+
+    private void list(int slab, int sizeClass) {
+        int head = available[sizeClass];
+        nextAvailable[slab] = head;
+        previousAvailable[slab] = -1;
+        if (head >= 0) {
+            previousAvailable[head] = slab;
+        }
+        available[sizeClass] = slab;
+    }
+
+    private int newSlab(int blockSize) {
+        int slab = 0;
+        while (slab < slabCount && slabs[slab] != null) {
+            slab++;
+        }
+        if (slab == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slab * 2);
+            blockSizes = Arrays.copyOf(blockSizes, slab * 2);
+            free = Arrays.copyOf(free, slab * 2);
+            generations = Arrays.copyOf(generations, slab * 2);
+            live = Arrays.copyOf(live, slab * 2);
+            nextAvailable = Arrays.copyOf(nextAvailable, slab * 2);
+            previousAvailable = Arrays.copyOf(previousAvailable, slab * 2);
+        }
+        slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        blockSizes[slab] = blockSize;
+        free[slab] = 0;
+        generations[slab]++;
+        live[slab] = 0;
+        slabsAllocated++;
+        if (slab == slabCount) {
+            slabCount++;
+        }
+        return slab;
+    }
+
+    /**
+     * @param address
+     * @return the state of the block, or null if the block is not live
+     */
+    private byte[] read(long address) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        int length = slab.getInt(offset);
+        if (length <= 0) {
+            return null;
+        }
+        byte[] state = new byte[length];
+        ByteBuffer block = slab.duplicate();
+        block.position(offset + HEADER);
+        block.get(state);
+        return state;
+    }
+
+    /**
+     * Return the slab, whose blocks are all free, to the system
+     */
+    private void reclaim(int slab) {
+        ByteBuffer reclaimed = slabs[slab];
+        slabs[slab] = null;
+        free[slab] = 0;
+        slabsAllocated--;
+        DirectBuffers.unmap(reclaimed);
+    }
+
+    /**
+     * Bring the index of the registration up to date with its latest stored
+     * state, rather than with the update which happened to get here last
+     *
+     * @param id
+     * @param ref
+     *            - the reference of the update
+     * @param state
+     *            - the state of the update, or null if the update removed the
+     *            registration
+     */
+    private void reindex(UUID id, ServiceReferenceImpl ref, byte[] state) {
+        byte[] latest;
+        lock.readLock().lock();
+        try {
+            int slot = find(id.getMostSignificantBits(),
+                            id.getLeastSignificantBits());
+            latest = slot < 0 ? null : read(addressAt(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (latest == null) {
+            index.unindex(ref);
+        } else if (Arrays.equals(latest, state)) {
+            index.index(ref);
+        } else {
+            index.index(GossipScope.deserialize(id, latest));
+        }
+    }
+
+    private void release(long address) {
+        int slab = slabOf(address);
+        int offset = offsetOf(address);
+        int sizeClass = sizeClassOf(blockSizes[slab]);
+        if (--live[slab] == 0 && slab != filling[sizeClass]) {
+            if (free[slab] != 0) {
+                unlist(slab, sizeClass);
+            }
+            reclaim(slab);
+            return;
+        }
+        slabs[slab].putInt(offset, -1);
+        slabs[slab].putLong(offset + 4, free[slab]);
+        if (free[slab] == 0) {
+            list(slab, sizeClass);
+        }
+        free[slab] = address;
+    }
+
+    private void resize() {
+        int live = size + 1;
+        int newCapacity = capacity;
+        while (live > newCapacity / 2) {
+            newCapacity <<= 1;
+        }
+        if (newCapacity > MAXIMUM_CAPACITY) {
+            throw new IllegalStateException(
+                                            String.format("Store capacity exceeded: %s services",
+                                                          size));
+        }
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        table = ByteBuffer.allocateDirect(newCapacity * SLOT);
+        capacity = newCapacity;
+        size = 0;
+        used = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long address = old.getLong(slot * SLOT + 16);
+            if (address != 0 && address != TOMBSTONE) {
+                insert(old.getLong(slot * SLOT), old.getLong(slot * SLOT + 8),
+                       address);
+            }
+        }
+    }
+
+    private byte[] stateOf(ServiceReferenceImpl ref) {
+        return GossipScope.serialize(ref.getUrl(), ref.getProperties(),
+                                     maxStateSize);
+    }
+
+    /**
+     * @param serviceRegistration
+     * @param state
+     * @param replace
+     *            - true if an existing state of the registration is replaced
+     * @return the length of the existing state of the registration, or
+     *         ABSENT if the registration was added
+     */
+    private int store(UUID serviceRegistration, byte[] state, boolean replace) {
+        long msb = serviceRegistration.getMostSignificantBits();
+        long lsb = serviceRegistration.getLeastSignificantBits();
+        int blockSize = blockSizeOf(state.length);
+        int slot = find(msb, lsb);
+        if (slot >= 0) {
+            long address = addressAt(slot);
+            int previous = slabs[slabOf(address)].getInt(offsetOf(address));
+            if (!replace) {
+                return previous;
+            }
+            if (blockSizes[slabOf(address)] != blockSize) {
+                release(address);
+                address = allocate(blockSize);
+                table.putLong(slot * SLOT + 16, address);
+            }
+            write(address, msb, lsb, state);
+            return previous;
+        }
+        long address = allocate(blockSize);
+        write(address, msb, lsb, state);
+        insert(msb, lsb, address);
+        return ABSENT;
+    }
+
+    /**
+     * Account for the stored state, and reconcile the index
+     *
+     * @param ref
+     * @param state
+     * @param previous
+     *            - the length of the replaced state, or ABSENT if the
+     *            registration was added
+     */
+    private void stored(ServiceReferenceImpl ref, byte[] state, int previous) {
+        UUID id = ref.getRegistration();
+        synchronized (lockOf(id)) {
+            if (previous == ABSENT) {
+                account.adjust(FootprintAccount.serviceTypeOf(ref), 1,
+                               state.length, 0L);
+            } else {
+                account.adjust(FootprintAccount.serviceTypeOf(ref), 0,
+                               state.length - previous, 0L);
+            }
+            reindex(id, ref, state);
+        }
+    }
+
+    /**
+     * Unlink the slab from the available list of its size class
+     */
+    private void unlist(int slab, int sizeClass) {
+        int next = nextAvailable[slab];
+        int previous = previousAvailable[slab];
+        if (previous >= 0) {
+            nextAvailable[previous] = next;
+        } else {
+            available[sizeClass] = next;
+        }
+        if (next >= 0) {
+            previousAvailable[next] = previous;
+        }
+    }
+
+    private void write(long address, long msb, long lsb, byte[] state) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        slab.putInt(offset, state.length);
+        slab.putLong(offset + 4, msb);
+        slab.putLong(offset + 12, lsb);
+        ByteBuffer block = slab.duplicate();
+        block.position(offset + HEADER);
+        block.put(state);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hellblazer.slp.ServiceEvent.EventType;
+
+/**
+ * Traces the propagation of service states through gossip. The states
+ * published by the origin of a service are stamped with the time of
+ * publication and a version, counted per registration from zero. Receivers
+ * measure the propagation delay of each version, and detect the versions
+ * skipped or received out of order. The stamp is carried as a reserved
+ * property of the serialized state, and is never materialized as a property
+ * of the service.
+ *
+ * @author hhildebrand
+ *
+ */
+class PropagationTracer {
+    private static final Charset ASCII  = Charset.forName("US-ASCII");
+    private static final byte[]  PREFIX = (GossipScope.TRACE + "=").getBytes(ASCII);
+
+    /**
+     * Decode the stamp of the serialized state, without materializing the
+     * service URL or properties
+     *
+     * @param state
+     * @return the origin time and version of the state, or null if the state
+     *         is not stamped
+     */
+    static long[] stampOf(byte[] state) {
+        int len = state[2] << 8 | state[3] & 0xff;
+        for (int i = len + 4; i < state.length;) {
+            int entry = state[i] & 0xff;
+            if (entry > PREFIX.length && matches(state, i + 1)) {
+                String stamp = new String(state, i + 1 + PREFIX.length,
+                                          entry - PREFIX.length, ASCII);
+                int separator = stamp.indexOf(':');
+                if (separator < 0) {
+                    return null;
+                }
+                try {
+                    return new long[] {
+                            Long.parseLong(stamp.substring(0, separator)),
+                            Long.parseLong(stamp.substring(separator + 1)) };
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            i += entry + 1;
+        }
+        return null;
+    }
+
+    private static boolean matches(byte[] state, int offset) {
+        for (int i = 0; i < PREFIX.length; i++) {
+            if (state[offset + i] != PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final ConcurrentMap<UUID, AtomicLong> published = new ConcurrentHashMap<UUID, AtomicLong>();
+    private final ConcurrentMap<UUID, Long>       received  = new ConcurrentHashMap<UUID, Long>();
+
+    /**
+     * Forget the versions of the service
+     *
+     * @param id
+     */
+    public void forget(UUID id) {
+        published.remove(id);
+        received.remove(id);
+    }
+
+    /**
+     * Measure the propagation of the received state
+     *
+     * @param id
+     * @param state
+     * @param type
+     *            - the gossip event which delivered the state
+     * @param metrics
+     *            - the metrics the propagation is recorded by
+     */
+    public void received(UUID id, byte[] state, EventType type,
+                         GossipScopeMetrics metrics) {
+        long[] stamp = stampOf(state);
+        if (stamp == null) {
+            return;
+        }
+        long version = stamp[1];
+        for (;;) {
+            Long last = received.get(id);
+            if (last == null) {
+                if (received.putIfAbsent(id, version) == null) {
+                    break;
+                }
+            } else if (version == last) {
+                return;
+            } else if (version < last) {
+                metrics.reordered();
+                return;
+            } else if (received.replace(id, last, version)) {
+                if (version > last + 1) {
+                    metrics.skipped(version - last - 1);
+                }
+                break;
+            }
+        }
+        metrics.propagated(type, System.currentTimeMillis() - stamp[0]);
+    }
+
+    /**
+     * Stamp the properties of the state to be published
+     *
+     * @param id
+     *            - the registration of the service, or null if the state
+     *            registers the service
+     * @param properties
+     * @return a copy of the properties, stamped with the current time and the
+     *         next version of the service
+     */
+    public Map<String, String> stamp(UUID id, Map<String, String> properties) {
+        long version = 0;
+        if (id != null) {
+            AtomicLong counter = published.get(id);
+            if (counter == null) {
+                counter = new AtomicLong();
+                AtomicLong existing = published.putIfAbsent(id, counter);
+                if (existing != null) {
+                    counter = existing;
+                }
+            }
+            version = counter.incrementAndGet();
+        }
+        Map<String, String> stamped = GossipScope.denormalize(properties);
+        stamped.put(GossipScope.TRACE,
+                    String.format("%s:%s", System.currentTimeMillis(), version));
+        return stamped;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A checkpoint of the registry of a scope, persisted to a memory mapped file
+ * so that a restarted scope can answer lookups before gossip has converged.
+ * The checkpoint holds the registration, last seen time and serialized state
+ * of each service.
+ * <p>
+ * The file consists of a header of the magic number, format version, entry
+ * count and the time the checkpoint was taken, followed by the entries. A
+ * checkpoint is written to a temporary file which then atomically replaces the
+ * previous checkpoint, so a crash while writing never corrupts it.
+ * <p>
+ * The file is read and written through a single window of the file mapped at
+ * a time; a window is unmapped as soon as it is replaced, rather than when it
+ * is collected.
+ *
+ * @author hhildebrand
+ *
+ */
+class RegistryCheckpoint {
+
+    /**
+     * A service of the checkpoint
+     */
+    static class Entry {
+        final UUID   id;
+        final long   lastSeen;
+        final byte[] state;
+
+        Entry(UUID id, byte[] state, long lastSeen) {
+            this.id = id;
+            this.state = state;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * Appends the entries of a checkpoint to the temporary file, remapping the
+     * window of the file as it grows
+     */
+    class Writer {
+        private final FileChannel      channel;
+        private boolean                committed;
+        private int                    count;
+        private final RandomAccessFile file;
+        private long                   position = HEADER;
+        private final File             temporary;
+        private final long             timestamp;
+        private MappedByteBuffer       window;
+
+        private Writer(long timestamp) throws IOException {
+            this.timestamp = timestamp;
+            temporary = new File(checkpoint.getPath() + ".tmp");
+            file = new RandomAccessFile(temporary, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            window = channel.map(MapMode.READ_WRITE, position, WINDOW);
+        }
+
+        /**
+         * @param id
+         * @param state
+         * @param lastSeen
+         *            - the time, in milliseconds, the service was last seen
+         * @throws IOException
+         */
+        public void append(UUID id, byte[] state, long lastSeen)
+                                                                throws IOException {
+            int size = ENTRY_HEADER + state.length;
+            if (window.remaining() < size) {
+                MappedByteBuffer filled = window;
+                window = channel.map(MapMode.READ_WRITE, position,
+                                     Math.max(WINDOW, size));
+                filled.force();
+                DirectBuffers.unmap(filled);
+            }
+            window.putLong(id.getMostSignificantBits());
+            window.putLong(id.getLeastSignificantBits());
+            window.putLong(lastSeen);
+            window.putInt(state.length);
+            window.put(state);
+            position += size;
+            count++;
+        }
+
+        /**
+         * Release the resources of the writer. The checkpoint is discarded if
+         * it has not been committed
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            if (!committed) {
+                DirectBuffers.unmap(window);
+                window = null;
+                file.close();
+                Files.deleteIfExists(temporary.toPath());
+            }
+        }
+
+        /**
+         * Complete the checkpoint, atomically replacing the previous
+         * checkpoint
+         *
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            window.force();
+            DirectBuffers.unmap(window);
+            window = null;
+            MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0,
+                                                  HEADER);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(count);
+            header.putLong(timestamp);
+            header.force();
+            DirectBuffers.unmap(header);
+            channel.truncate(position);
+            file.close();
+            Files.move(temporary.toPath(), checkpoint.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+    }
+
+    private static final int ENTRY_HEADER = 28;
+    private static final int HEADER       = 20;
+    private static final int MAGIC        = 0x4E585553;
+    private static final int VERSION      = 1;
+    private static final int WINDOW       = 1 << 20;
+
+    private final File       checkpoint;
+
+    /**
+     * @param checkpoint
+     *            - the file the checkpoint is persisted to
+     */
+    public RegistryCheckpoint(File checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public File getFile() {
+        return checkpoint;
+    }
+
+    /**
+     * Read the entries of the checkpoint
+     *
+     * @return the entries of the checkpoint, or the empty list if no
+     *         checkpoint exists
+     * @throws IOException
+     *             - if the checkpoint is unreadable or corrupt
+     */
+    public List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!checkpoint.exists()) {
+            return entries;
+        }
+        RandomAccessFile file = new RandomAccessFile(checkpoint, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < HEADER) {
+                throw new IOException(
+                                      String.format("Truncated registry checkpoint %s",
+                                                    checkpoint));
+            }
+            MappedByteBuffer window = channel.map(MapMode.READ_ONLY, 0, HEADER);
+            try {
+                if (window.getInt() != MAGIC || window.getInt() != VERSION) {
+                    throw new IOException(
+                                          String.format("Invalid registry checkpoint %s",
+                                                        checkpoint));
+                }
+                int count = window.getInt();
+                DirectBuffers.unmap(window);
+                window = null;
+                long position = HEADER;
+                for (int i = 0; i < count; i++) {
+                    if (window == null || window.remaining() < ENTRY_HEADER) {
+                        window = remap(window, channel, position,
+                                       ENTRY_HEADER, size);
+                    }
+                    long msb = window.getLong();
+                    long lsb = window.getLong();
+                    long lastSeen = window.getLong();
+                    int length = window.getInt();
+                    if (length < 0 || window.remaining() < length) {
+                        window = remap(window, channel,
+                                       position + ENTRY_HEADER, length, size);
+                    }
+                    byte[] state = new byte[length];
+                    window.get(state);
+                    entries.add(new Entry(new UUID(msb, lsb), state, lastSeen));
+                    position += ENTRY_HEADER + length;
+                }
+                return entries;
+            } finally {
+                DirectBuffers.unmap(window);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("RegistryCheckpoint [%s]", checkpoint);
+    }
+
+    /**
+     * @param timestamp
+     *            - the time the checkpoint is taken
+     * @return a writer of a new checkpoint
+     * @throws IOException
+     */
+    public Writer writer(long timestamp) throws IOException {
+        return new Writer(timestamp);
+    }
+
+    /**
+     * Unmap the current window, and map the window of the file at the
+     * position
+     */
+    private MappedByteBuffer remap(MappedByteBuffer current,
+                                   FileChannel channel, long position,
+                                   int required, long size) throws IOException {
+        if (required < 0 || position + required > size) {
+            throw new IOException(
+                                  String.format("Truncated registry checkpoint %s",
+                                                checkpoint));
+        }
+        MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position,
+                                              Math.min(Math.max(WINDOW,
+                                                                required),
+                                                       size - position));
+        DirectBuffers.unmap(current);
+        return window;
+    }
+}
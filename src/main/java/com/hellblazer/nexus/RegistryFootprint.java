@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * The memory footprint of a scope: the services it has materialized, by
+ * service type, the dormant states it holds, its listeners and the listener
+ * notifications pending dispatch. The footprint is accounted incrementally as
+ * services are ingested and withdrawn, so it is obtained without walking the
+ * registry.
+ *
+ * @author hhildebrand
+ *
+ */
+public class RegistryFootprint {
+    private final long                              dormantBytes;
+    private final long                              dormantServices;
+    private final long                              heapBytes;
+    private final int                               listeners;
+    private final long                              offHeapBytes;
+    private final long                              pendingNotifications;
+    private final long                              services;
+    private final Map<String, ServiceTypeFootprint> serviceTypes;
+    private final long                              stateBytes;
+
+    @ConstructorProperties({ "serviceTypes", "services", "stateBytes",
+            "heapBytes", "offHeapBytes", "dormantServices", "dormantBytes",
+            "listeners", "pendingNotifications" })
+    public RegistryFootprint(Map<String, ServiceTypeFootprint> serviceTypes,
+                             long services, long stateBytes, long heapBytes,
+                             long offHeapBytes, long dormantServices,
+                             long dormantBytes, int listeners,
+                             long pendingNotifications) {
+        this.serviceTypes = serviceTypes;
+        this.services = services;
+        this.stateBytes = stateBytes;
+        this.heapBytes = heapBytes;
+        this.offHeapBytes = offHeapBytes;
+        this.dormantServices = dormantServices;
+        this.dormantBytes = dormantBytes;
+        this.listeners = listeners;
+        this.pendingNotifications = pendingNotifications;
+    }
+
+    /**
+     * @return the size of the dormant states, held on the heap
+     */
+    public long getDormantBytes() {
+        return dormantBytes;
+    }
+
+    /**
+     * @return the number of states held dormant, as their service types are
+     *         not of interest
+     */
+    public long getDormantServices() {
+        return dormantServices;
+    }
+
+    /**
+     * @return the estimated heap retained by the references and properties of
+     *         the materialized services, and by the registry entries holding
+     *         them. Strings pooled across services are not included
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * @return the number of registered listeners
+     */
+    public int getListeners() {
+        return listeners;
+    }
+
+    /**
+     * @return the direct memory allocated to store the services off heap
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * @return the number of listener notifications queued and not yet
+     *         dispatched
+     */
+    public long getPendingNotifications() {
+        return pendingNotifications;
+    }
+
+    /**
+     * @return the number of materialized services
+     */
+    public long getServices() {
+        return services;
+    }
+
+    /**
+     * @return the footprint of the materialized services of each service type
+     */
+    public Map<String, ServiceTypeFootprint> getServiceTypes() {
+        return serviceTypes;
+    }
+
+    /**
+     * @return the size of the serialized states of the materialized services
+     */
+    public long getStateBytes() {
+        return stateBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("RegistryFootprint [services=%s, stateBytes=%s, heapBytes=%s, offHeapBytes=%s, dormantServices=%s, dormantBytes=%s, listeners=%s, pendingNotifications=%s, serviceTypes=%s]",
+                             services, stateBytes, heapBytes, offHeapBytes,
+                             dormantServices, dormantBytes, listeners,
+                             pendingNotifications, serviceTypes);
+    }
+}
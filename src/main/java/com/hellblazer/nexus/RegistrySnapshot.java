@@ -0,0 +1,636 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+
+/**
+ * An immutable, versioned snapshot of the service registry. The snapshot is a
+ * persistent hash array mapped trie keyed by service registration; updates
+ * copy only the path to the changed entry and share the rest of the trie with
+ * the previous snapshot. A snapshot may be queried repeatedly and concurrently
+ * without locks, and never reflects a partially applied update.
+ *
+ * @author hhildebrand
+ *
+ */
+public final class RegistrySnapshot implements Iterable<ServiceReference> {
+
+    /**
+     * An interior node of the trie. Each slot holds either a reference or a
+     * child node
+     */
+    private static final class BitmapNode {
+        private final Object[] array;
+        private final int      bitmap;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    /**
+     * The references whose registrations have colliding hashes
+     */
+    private static final class CollisionNode {
+        private final ServiceReferenceImpl[] entries;
+        private final int                    hash;
+
+        private CollisionNode(int hash, ServiceReferenceImpl[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Lazily filters the references of the trie
+     */
+    private static class FilteringIterator implements
+            Iterator<ServiceReference> {
+        private final Filter                     filter;
+        private ServiceReference                 next;
+        private final Iterator<ServiceReference> references;
+
+        private FilteringIterator(Iterator<ServiceReference> references,
+                                  Filter filter) {
+            this.references = references;
+            this.filter = filter;
+            advance();
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public ServiceReference next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            ServiceReference current = next;
+            advance();
+            return current;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#remove()
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                                                    "Registry snapshots are immutable");
+        }
+
+        private void advance() {
+            next = null;
+            while (references.hasNext()) {
+                ServiceReference candidate = references.next();
+                if (filter.match(candidate)) {
+                    next = candidate;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans a subtree of the trie, forking the scans of the child nodes of the
+     * upper levels of the trie
+     */
+    private static class ScanTask extends
+            RecursiveTask<List<ServiceReference>> {
+        private static final int  SPLIT_DEPTH      = 2;
+        private static final long serialVersionUID = 1L;
+
+        private final int         depth;
+        private final Filter      filter;
+        private final Object      node;
+
+        private ScanTask(Object node, Filter filter, int depth) {
+            this.node = node;
+            this.filter = filter;
+            this.depth = depth;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.RecursiveTask#compute()
+         */
+        @Override
+        protected List<ServiceReference> compute() {
+            List<ServiceReference> matched = new ArrayList<ServiceReference>();
+            if (depth >= SPLIT_DEPTH || !(node instanceof BitmapNode)) {
+                Iterator<ServiceReference> references = new TrieIterator(node);
+                while (references.hasNext()) {
+                    ServiceReference ref = references.next();
+                    if (filter.match(ref)) {
+                        matched.add(ref);
+                    }
+                }
+                return matched;
+            }
+            List<ScanTask> forked = new ArrayList<ScanTask>();
+            for (Object slot : ((BitmapNode) node).array) {
+                if (slot instanceof ServiceReferenceImpl) {
+                    if (filter.match((ServiceReference) slot)) {
+                        matched.add((ServiceReference) slot);
+                    }
+                } else {
+                    ScanTask task = new ScanTask(slot, filter, depth + 1);
+                    task.fork();
+                    forked.add(task);
+                }
+            }
+            for (ScanTask task : forked) {
+                matched.addAll(task.join());
+            }
+            return matched;
+        }
+    }
+
+    private static class TrieIterator implements Iterator<ServiceReference> {
+        private ServiceReferenceImpl[] collision;
+        private int                    collisionIndex;
+        private ServiceReferenceImpl   next;
+        private final Deque<Object[]>  nodes   = new ArrayDeque<Object[]>();
+        private final Deque<Integer>   indexes = new ArrayDeque<Integer>();
+
+        private TrieIterator(Object root) {
+            if (root != null) {
+                push(root);
+            }
+            advance();
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public ServiceReference next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            ServiceReference current = next;
+            advance();
+            return current;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#remove()
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                                                    "Registry snapshots are immutable");
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if (collision != null) {
+                    if (collisionIndex < collision.length) {
+                        next = collision[collisionIndex++];
+                        return;
+                    }
+                    collision = null;
+                }
+                if (nodes.isEmpty()) {
+                    return;
+                }
+                Object[] array = nodes.peek();
+                int index = indexes.pop();
+                if (index >= array.length) {
+                    nodes.pop();
+                    continue;
+                }
+                indexes.push(index + 1);
+                Object slot = array[index];
+                if (slot instanceof ServiceReferenceImpl) {
+                    next = (ServiceReferenceImpl) slot;
+                } else {
+                    push(slot);
+                }
+            }
+        }
+
+        private void push(Object node) {
+            if (node instanceof BitmapNode) {
+                nodes.push(((BitmapNode) node).array);
+                indexes.push(0);
+            } else {
+                collision = ((CollisionNode) node).entries;
+                collisionIndex = 0;
+            }
+        }
+    }
+
+    private static final int              BITS  = 5;
+    private static final RegistrySnapshot EMPTY = new RegistrySnapshot(
+                                                                       null,
+                                                                       0, 0);
+    private static final int              MASK  = (1 << BITS) - 1;
+
+    /**
+     * Answer the filter matching the service type and query, as used by the
+     * service scope lookups
+     *
+     * @param serviceType
+     * @param query
+     * @return
+     * @throws InvalidSyntaxException
+     */
+    public static Filter filterFor(String serviceType, String query)
+                                                                    throws InvalidSyntaxException {
+        if (serviceType == null) {
+            serviceType = "*";
+        }
+        if (query == null) {
+            return new Filter(String.format("(%s=%s)",
+                                            ServiceScope.SERVICE_TYPE,
+                                            serviceType));
+        }
+        return new Filter(String.format("(&(%s=%s) %s)",
+                                        ServiceScope.SERVICE_TYPE,
+                                        serviceType, query));
+    }
+
+    static RegistrySnapshot empty() {
+        return EMPTY;
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << (hash >>> shift & MASK);
+    }
+
+    private static Object createNode(int shift, ServiceReferenceImpl a,
+                                     ServiceReferenceImpl b) {
+        int hashA = hash(a.getRegistration());
+        int hashB = hash(b.getRegistration());
+        if (hashA == hashB || shift >= Integer.SIZE) {
+            return new CollisionNode(hashA, new ServiceReferenceImpl[] { a, b });
+        }
+        int bitA = bitpos(hashA, shift);
+        int bitB = bitpos(hashB, shift);
+        if (bitA == bitB) {
+            return new BitmapNode(bitA,
+                                  new Object[] { createNode(shift + BITS, a, b) });
+        }
+        if ((hashA >>> shift & MASK) < (hashB >>> shift & MASK)) {
+            return new BitmapNode(bitA | bitB, new Object[] { a, b });
+        }
+        return new BitmapNode(bitA | bitB, new Object[] { b, a });
+    }
+
+    private static ServiceReferenceImpl get(Object node, int hash, UUID key,
+                                            int shift) {
+        while (node != null) {
+            if (node instanceof CollisionNode) {
+                for (ServiceReferenceImpl entry : ((CollisionNode) node).entries) {
+                    if (entry.getRegistration().equals(key)) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+            BitmapNode bitmapNode = (BitmapNode) node;
+            int bit = bitpos(hash, shift);
+            if ((bitmapNode.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = bitmapNode.array[index(bitmapNode.bitmap, bit)];
+            if (slot instanceof ServiceReferenceImpl) {
+                ServiceReferenceImpl entry = (ServiceReferenceImpl) slot;
+                return entry.getRegistration().equals(key) ? entry : null;
+            }
+            node = slot;
+            shift += BITS;
+        }
+        return null;
+    }
+
+    private static int hash(UUID key) {
+        int h = key.hashCode();
+        return h ^ h >>> 16;
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & bit - 1);
+    }
+
+    private static Object put(Object node, int hash, ServiceReferenceImpl ref,
+                              int shift) {
+        if (node == null) {
+            return new BitmapNode(bitpos(hash, shift), new Object[] { ref });
+        }
+        if (node instanceof CollisionNode) {
+            CollisionNode collision = (CollisionNode) node;
+            if (collision.hash != hash) {
+                // split the collision node into a bitmap node at this level
+                BitmapNode split = new BitmapNode(
+                                                  bitpos(collision.hash, shift),
+                                                  new Object[] { collision });
+                return put(split, hash, ref, shift);
+            }
+            ServiceReferenceImpl[] entries = collision.entries;
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].getRegistration().equals(ref.getRegistration())) {
+                    ServiceReferenceImpl[] replaced = entries.clone();
+                    replaced[i] = ref;
+                    return new CollisionNode(hash, replaced);
+                }
+            }
+            ServiceReferenceImpl[] added = new ServiceReferenceImpl[entries.length + 1];
+            System.arraycopy(entries, 0, added, 0, entries.length);
+            added[entries.length] = ref;
+            return new CollisionNode(hash, added);
+        }
+        BitmapNode bitmapNode = (BitmapNode) node;
+        int bit = bitpos(hash, shift);
+        int idx = index(bitmapNode.bitmap, bit);
+        if ((bitmapNode.bitmap & bit) == 0) {
+            Object[] array = new Object[bitmapNode.array.length + 1];
+            System.arraycopy(bitmapNode.array, 0, array, 0, idx);
+            array[idx] = ref;
+            System.arraycopy(bitmapNode.array, idx, array, idx + 1,
+                             bitmapNode.array.length - idx);
+            return new BitmapNode(bitmapNode.bitmap | bit, array);
+        }
+        Object slot = bitmapNode.array[idx];
+        Object replacement;
+        if (slot instanceof ServiceReferenceImpl) {
+            ServiceReferenceImpl entry = (ServiceReferenceImpl) slot;
+            if (entry.getRegistration().equals(ref.getRegistration())) {
+                replacement = ref;
+            } else {
+                replacement = createNode(shift + BITS, entry, ref);
+            }
+        } else {
+            replacement = put(slot, hash, ref, shift + BITS);
+        }
+        Object[] array = bitmapNode.array.clone();
+        array[idx] = replacement;
+        return new BitmapNode(bitmapNode.bitmap, array);
+    }
+
+    private static Object remove(Object node, int hash, UUID key, int shift) {
+        if (node instanceof CollisionNode) {
+            CollisionNode collision = (CollisionNode) node;
+            ServiceReferenceImpl[] entries = collision.entries;
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].getRegistration().equals(key)) {
+                    if (entries.length == 1) {
+                        return null;
+                    }
+                    ServiceReferenceImpl[] removed = new ServiceReferenceImpl[entries.length - 1];
+                    System.arraycopy(entries, 0, removed, 0, i);
+                    System.arraycopy(entries, i + 1, removed, i,
+                                     entries.length - i - 1);
+                    return new CollisionNode(collision.hash, removed);
+                }
+            }
+            return node;
+        }
+        BitmapNode bitmapNode = (BitmapNode) node;
+        int bit = bitpos(hash, shift);
+        if ((bitmapNode.bitmap & bit) == 0) {
+            return node;
+        }
+        int idx = index(bitmapNode.bitmap, bit);
+        Object slot = bitmapNode.array[idx];
+        Object replacement;
+        if (slot instanceof ServiceReferenceImpl) {
+            if (!((ServiceReferenceImpl) slot).getRegistration().equals(key)) {
+                return node;
+            }
+            replacement = null;
+        } else {
+            replacement = remove(slot, hash, key, shift + BITS);
+            if (replacement == slot) {
+                return node;
+            }
+        }
+        if (replacement != null) {
+            Object[] array = bitmapNode.array.clone();
+            array[idx] = replacement;
+            return new BitmapNode(bitmapNode.bitmap, array);
+        }
+        if (bitmapNode.array.length == 1) {
+            return null;
+        }
+        Object[] array = new Object[bitmapNode.array.length - 1];
+        System.arraycopy(bitmapNode.array, 0, array, 0, idx);
+        System.arraycopy(bitmapNode.array, idx + 1, array, idx,
+                         bitmapNode.array.length - idx - 1);
+        return new BitmapNode(bitmapNode.bitmap & ~bit, array);
+    }
+
+    private final Object root;
+    private final int    size;
+    private final long   version;
+
+    private RegistrySnapshot(Object root, int size, long version) {
+        this.root = root;
+        this.size = size;
+        this.version = version;
+    }
+
+    /**
+     * @param serviceRegistration
+     * @return the reference registered, or null if no such registration
+     *         exists in this snapshot
+     */
+    public ServiceReference getReference(UUID serviceRegistration) {
+        return get(serviceRegistration);
+    }
+
+    /**
+     * @param serviceType
+     * @return a reference of the service type, or null if none exists in this
+     *         snapshot
+     * @throws InvalidSyntaxException
+     */
+    public ServiceReference getServiceReference(String serviceType)
+                                                                   throws InvalidSyntaxException {
+        Filter filter = filterFor(serviceType, null);
+        for (ServiceReference ref : this) {
+            if (filter.match(ref)) {
+                return ref;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param serviceType
+     * @param query
+     * @return the references of the service type matching the query
+     * @throws InvalidSyntaxException
+     */
+    public List<ServiceReference> getServiceReferences(String serviceType,
+                                                       String query)
+                                                                    throws InvalidSyntaxException {
+        Filter filter = filterFor(serviceType, query);
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        for (ServiceReference ref : this) {
+            if (filter.match(ref)) {
+                references.add(ref);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * @param serviceType
+     * @param query
+     * @param limit
+     *            - the maximum number of references answered
+     * @return the first references of the service type matching the query.
+     *         The scan terminates as soon as the limit is reached
+     * @throws InvalidSyntaxException
+     */
+    public List<ServiceReference> getServiceReferences(String serviceType,
+                                                       String query, int limit)
+                                                                               throws InvalidSyntaxException {
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        Iterator<ServiceReference> matching = iterator(serviceType, query);
+        while (references.size() < limit && matching.hasNext()) {
+            references.add(matching.next());
+        }
+        return references;
+    }
+
+    /**
+     * @return the version of the registry this snapshot captures. Versions
+     *         increase with every update of the registry
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Iterable#iterator()
+     */
+    @Override
+    public Iterator<ServiceReference> iterator() {
+        return new TrieIterator(root);
+    }
+
+    /**
+     * @param serviceType
+     * @param query
+     * @return an iterator lazily answering the references of the service type
+     *         matching the query
+     * @throws InvalidSyntaxException
+     */
+    public Iterator<ServiceReference> iterator(String serviceType, String query)
+                                                                                throws InvalidSyntaxException {
+        return new FilteringIterator(iterator(), filterFor(serviceType, query));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("RegistrySnapshot [version=%s, size=%s]",
+                             version, size);
+    }
+
+    ServiceReferenceImpl get(UUID serviceRegistration) {
+        return get(root, hash(serviceRegistration), serviceRegistration, 0);
+    }
+
+    /**
+     * Scan the snapshot in parallel, splitting the scan of the trie across the
+     * fork join pool
+     * 
+     * @param filter
+     * @param pool
+     * @return the references matching the filter
+     */
+    List<ServiceReference> parallelScan(Filter filter, ForkJoinPool pool) {
+        if (root == null) {
+            return new ArrayList<ServiceReference>();
+        }
+        return pool.invoke(new ScanTask(root, filter, 0));
+    }
+
+    /**
+     * @param ref
+     * @return the snapshot with the reference added or replaced
+     */
+    RegistrySnapshot put(ServiceReferenceImpl ref) {
+        UUID key = ref.getRegistration();
+        int hash = hash(key);
+        boolean added = get(root, hash, key, 0) == null;
+        return new RegistrySnapshot(put(root, hash, ref, 0), added ? size + 1
+                                                                  : size,
+                                    version + 1);
+    }
+
+    /**
+     * @param serviceRegistration
+     * @return the snapshot with the registration removed
+     */
+    RegistrySnapshot remove(UUID serviceRegistration) {
+        if (root == null) {
+            return this;
+        }
+        Object removed = remove(root, hash(serviceRegistration),
+                                serviceRegistration, 0);
+        if (removed == root) {
+            return this;
+        }
+        return new RegistrySnapshot(removed, size - 1, version + 1);
+    }
+}
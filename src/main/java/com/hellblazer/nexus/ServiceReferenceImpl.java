@@ -22,27 +22,28 @@ import com.hellblazer.slp.ServiceReference;
 import com.hellblazer.slp.ServiceURL;
 
 /**
- * @author hhildebrand
- *
- */
-/**
- * A simple service reference implementation.
+ * A simple, immutable service reference implementation. Property updates are
+ * represented by a new reference. The properties are held in a compact array
+ * map, as the registry holds many references with few properties each.
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
-class ServiceReferenceImpl extends ServiceReference {
+final class ServiceReferenceImpl extends ServiceReference {
 
+    /**
+     * @param url
+     * @param properties
+     *            - the properties of the reference, copied into a compact
+     *            immutable map
+     * @param registration
+     */
     public ServiceReferenceImpl(ServiceURL url, Map<String, String> properties,
 	    UUID registration) {
-	super(url, properties, registration);
+	super(url, CompactProperties.of(properties), registration);
     }
 
     protected Map<String, String> currentProperties() {
 	return properties;
     }
-
-    protected void setProperties(Map<String, String> properties) {
-	this.properties = properties;
-    }
 }
\ No newline at end of file
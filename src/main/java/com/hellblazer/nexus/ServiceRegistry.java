@@ -0,0 +1,253 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * The heap registry of services materialized by a scope. Every update atomically
+ * replaces the current snapshot, so readers never observe a partially applied
+ * update. The numeric index and the footprint account of the registry are
+ * maintained after each update, under a lock striped by registration: the
+ * footprint delta is derived from the reference the update actually replaced,
+ * and the index is reconciled with the latest snapshot, so that concurrent
+ * updates of a registration leave it indexed as the registry holds it.
+ *
+ * @author hhildebrand
+ *
+ */
+class ServiceRegistry implements ServiceStore {
+    private static final int                        LOCKS   = 64;
+
+    private final FootprintAccount                  account;
+    private final AtomicReference<RegistrySnapshot> current = new AtomicReference<RegistrySnapshot>(
+                                                                                                    RegistrySnapshot.empty());
+    private final NumericIndex                      index;
+    private final Object[]                          locks   = new Object[LOCKS];
+
+    public ServiceRegistry(NumericIndex index, FootprintAccount account) {
+        this.index = index;
+        this.account = account;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public ServiceReferenceImpl get(UUID serviceRegistration) {
+        return current.get().get(serviceRegistration);
+    }
+
+    @Override
+    public Iterator<ServiceReference> iterator() {
+        return current.get().iterator();
+    }
+
+    @Override
+    public Iterator<ServiceReference> iterator(String serviceType, String query)
+                                                                                throws InvalidSyntaxException {
+        return current.get().iterator(serviceType, query);
+    }
+
+    @Override
+    public List<ServiceReference> parallelScan(String serviceType,
+                                               String query, ForkJoinPool pool)
+                                                                               throws InvalidSyntaxException {
+        return current.get().parallelScan(RegistrySnapshot.filterFor(serviceType,
+                                                                     query),
+                                          pool);
+    }
+
+    @Override
+    public boolean put(ServiceReferenceImpl ref) {
+        while (true) {
+            RegistrySnapshot snapshot = current.get();
+            if (current.compareAndSet(snapshot, snapshot.put(ref))) {
+                ServiceReferenceImpl previous = snapshot.get(ref.getRegistration());
+                added(ref, previous);
+                return previous == null;
+            }
+        }
+    }
+
+    /**
+     * The registry holds the references, so the state is not retained
+     */
+    @Override
+    public boolean put(ServiceReferenceImpl ref, byte[] state) {
+        return put(ref);
+    }
+
+    @Override
+    public void putAll(Collection<ServiceReferenceImpl> refs) {
+        while (true) {
+            RegistrySnapshot snapshot = current.get();
+            RegistrySnapshot updated = snapshot;
+            List<ServiceReferenceImpl> previous = new ArrayList<ServiceReferenceImpl>(
+                                                                                      refs.size());
+            for (ServiceReferenceImpl ref : refs) {
+                previous.add(updated.get(ref.getRegistration()));
+                updated = updated.put(ref);
+            }
+            if (current.compareAndSet(snapshot, updated)) {
+                int i = 0;
+                for (ServiceReferenceImpl ref : refs) {
+                    added(ref, previous.get(i++));
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(ServiceReferenceImpl ref) {
+        while (true) {
+            RegistrySnapshot snapshot = current.get();
+            if (snapshot.get(ref.getRegistration()) != null) {
+                return false;
+            }
+            if (current.compareAndSet(snapshot, snapshot.put(ref))) {
+                added(ref, null);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The registry holds the references, so the state is not retained
+     */
+    @Override
+    public boolean putIfAbsent(ServiceReferenceImpl ref, byte[] state) {
+        return putIfAbsent(ref);
+    }
+
+    @Override
+    public ServiceReferenceImpl remove(UUID serviceRegistration) {
+        while (true) {
+            RegistrySnapshot snapshot = current.get();
+            ServiceReferenceImpl removed = snapshot.get(serviceRegistration);
+            if (removed == null) {
+                return null;
+            }
+            if (current.compareAndSet(snapshot,
+                                      snapshot.remove(serviceRegistration))) {
+                removed(removed);
+                return removed;
+            }
+        }
+    }
+
+    @Override
+    public List<ServiceReferenceImpl> removeAll(Collection<UUID> serviceRegistrations) {
+        while (true) {
+            RegistrySnapshot snapshot = current.get();
+            RegistrySnapshot updated = snapshot;
+            List<ServiceReferenceImpl> removed = new ArrayList<ServiceReferenceImpl>();
+            for (UUID serviceRegistration : serviceRegistrations) {
+                ServiceReferenceImpl ref = updated.get(serviceRegistration);
+                if (ref != null) {
+                    removed.add(ref);
+                    updated = updated.remove(serviceRegistration);
+                }
+            }
+            if (current.compareAndSet(snapshot, updated)) {
+                for (ServiceReferenceImpl ref : removed) {
+                    removed(ref);
+                }
+                return removed;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return current.get().size();
+    }
+
+    /**
+     * The snapshot is obtained in constant time
+     */
+    @Override
+    public RegistrySnapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Account for the reference the update replaced, and reconcile the index
+     *
+     * @param ref
+     *            - the reference put
+     * @param replaced
+     *            - the reference the update replaced, or null if the service
+     *            was added
+     */
+    private void added(ServiceReferenceImpl ref, ServiceReferenceImpl replaced) {
+        UUID id = ref.getRegistration();
+        synchronized (lockOf(id)) {
+            if (replaced == null) {
+                account.added(ref);
+            } else {
+                account.replaced(replaced, ref);
+            }
+            reindex(id, ref);
+        }
+    }
+
+    private Object lockOf(UUID id) {
+        int hash = id.hashCode();
+        return locks[(hash ^ hash >>> 16) & LOCKS - 1];
+    }
+
+    /**
+     * Bring the index of the registration up to date with the latest
+     * snapshot, rather than with the update which happened to get here last
+     *
+     * @param id
+     * @param ref
+     *            - the reference of the update
+     */
+    private void reindex(UUID id, ServiceReferenceImpl ref) {
+        ServiceReferenceImpl latest = current.get().get(id);
+        if (latest == null) {
+            index.unindex(ref);
+        } else {
+            index.index(latest);
+        }
+    }
+
+    /**
+     * Account for the removed reference, and reconcile the index
+     *
+     * @param ref
+     */
+    private void removed(ServiceReferenceImpl ref) {
+        UUID id = ref.getRegistration();
+        synchronized (lockOf(id)) {
+            account.removed(ref);
+            reindex(id, ref);
+        }
+    }
+}
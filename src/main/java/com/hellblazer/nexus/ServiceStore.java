@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * The store of the services materialized by a scope, keyed by registration.
+ * The store maintains the numeric index of the scope after each update.
+ *
+ * @author hhildebrand
+ *
+ */
+interface ServiceStore extends Iterable<ServiceReference> {
+
+    /**
+     * @param serviceRegistration
+     * @return the reference of the registration, or null
+     */
+    ServiceReferenceImpl get(UUID serviceRegistration);
+
+    /**
+     * @param serviceType
+     * @param query
+     * @return an iterator lazily answering the references of the service type
+     *         matching the query
+     * @throws InvalidSyntaxException
+     */
+    Iterator<ServiceReference> iterator(String serviceType, String query)
+                                                                         throws InvalidSyntaxException;
+
+    /**
+     * Scan the store for the references of the service type matching the
+     * query, splitting the scan across the fork join pool
+     *
+     * @param serviceType
+     * @param query
+     * @param pool
+     * @return the matching references
+     * @throws InvalidSyntaxException
+     */
+    List<ServiceReference> parallelScan(String serviceType, String query,
+                                        ForkJoinPool pool)
+                                                          throws InvalidSyntaxException;
+
+    /**
+     * @param ref
+     * @return true if the registration was added, false if it was replaced
+     */
+    boolean put(ServiceReferenceImpl ref);
+
+    /**
+     * Put the reference received in its serialized state, which stores that
+     * keep the state need not serialize again
+     *
+     * @param ref
+     * @param state
+     *            - the serialized state of the reference
+     * @return true if the registration was added, false if it was replaced
+     */
+    boolean put(ServiceReferenceImpl ref, byte[] state);
+
+    /**
+     * Add the batch of references as a single update of the store
+     *
+     * @param refs
+     */
+    void putAll(Collection<ServiceReferenceImpl> refs);
+
+    /**
+     * @param ref
+     * @return true if the reference was added, false if the registration
+     *         already exists
+     */
+    boolean putIfAbsent(ServiceReferenceImpl ref);
+
+    /**
+     * @param ref
+     * @param state
+     *            - the serialized state of the reference
+     * @return true if the reference was added, false if the registration
+     *         already exists
+     */
+    boolean putIfAbsent(ServiceReferenceImpl ref, byte[] state);
+
+    /**
+     * @param serviceRegistration
+     * @return the removed reference, or null
+     */
+    ServiceReferenceImpl remove(UUID serviceRegistration);
+
+    /**
+     * Remove the batch of registrations as a single update of the store
+     *
+     * @param serviceRegistrations
+     * @return the removed references
+     */
+    List<ServiceReferenceImpl> removeAll(Collection<UUID> serviceRegistrations);
+
+    int size();
+
+    /**
+     * @return an immutable snapshot of the store
+     */
+    RegistrySnapshot snapshot();
+}
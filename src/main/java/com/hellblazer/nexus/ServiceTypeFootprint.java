@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The footprint of the services of a service type materialized by a scope
+ *
+ * @author hhildebrand
+ *
+ */
+public class ServiceTypeFootprint {
+    private final long heapBytes;
+    private final long services;
+    private final long stateBytes;
+
+    @ConstructorProperties({ "services", "stateBytes", "heapBytes" })
+    public ServiceTypeFootprint(long services, long stateBytes, long heapBytes) {
+        this.services = services;
+        this.stateBytes = stateBytes;
+        this.heapBytes = heapBytes;
+    }
+
+    /**
+     * @return the estimated heap retained by the references of the services
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    public long getServices() {
+        return services;
+    }
+
+    /**
+     * @return the size of the serialized states of the services
+     */
+    public long getStateBytes() {
+        return stateBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("ServiceTypeFootprint [services=%s, stateBytes=%s, heapBytes=%s]",
+                             services, stateBytes, heapBytes);
+    }
+}
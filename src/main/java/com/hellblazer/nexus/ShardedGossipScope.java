@@ -0,0 +1,434 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.NetworkedScope;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceType;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * A service discovery scope which partitions the service types across several
+ * gossip rings, each served by its own GossipScope. Services are routed to
+ * their shard by their abstract service type, using the shard table if the
+ * type is mapped, or the hash of the type if not. Every member of the cluster
+ * must use the same shard table and number of shards. The shard owning a
+ * registration is the shard which registered it, so that registrations
+ * withdrawn by their shard, as when their lease expires, are not retained.
+ *
+ * @author hhildebrand
+ *
+ */
+public class ShardedGossipScope implements NetworkedScope {
+    private final static Logger log = LoggerFactory.getLogger(ShardedGossipScope.class);
+
+    /**
+     * Answer the abstract service type of the service type. The abstract type
+     * of "service:jmx:http" is "service:jmx"
+     *
+     * @param serviceType
+     * @return
+     */
+    public static String abstractTypeOf(String serviceType) {
+        int start = serviceType.startsWith(ServiceType.SERVICE_PREFIX) ? ServiceType.SERVICE_PREFIX.length()
+                                                                      : 0;
+        int i = serviceType.indexOf(':', start);
+        if (i < 0) {
+            return serviceType;
+        }
+        return serviceType.substring(0, i);
+    }
+
+    private final List<GossipScope>    shards;
+    private final Map<String, Integer> shardTable = new HashMap<String, Integer>();
+
+    /**
+     * @param shards
+     *            - the scopes serving each shard
+     * @param shardTable
+     *            - the mapping of service types to shard index
+     */
+    public ShardedGossipScope(List<GossipScope> shards,
+                              Map<String, Integer> shardTable) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException(
+                                               "Must have at least one shard");
+        }
+        this.shards = new ArrayList<GossipScope>(shards);
+        for (Map.Entry<String, Integer> entry : shardTable.entrySet()) {
+            int shard = entry.getValue();
+            if (shard < 0 || shard >= shards.size()) {
+                throw new IllegalArgumentException(
+                                                   String.format("Invalid shard %s for service type %s, number of shards: %s",
+                                                                 shard,
+                                                                 entry.getKey(),
+                                                                 shards.size()));
+            }
+            this.shardTable.put(abstractTypeOf(entry.getKey()), shard);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#addServiceListener(com.hellblazer.slp.ServiceListener, java.lang.String)
+     */
+    @Override
+    public void addServiceListener(ServiceListener listener, String query)
+                                                                          throws InvalidSyntaxException {
+        for (GossipScope shard : shards) {
+            shard.addServiceListener(listener, query);
+        }
+    }
+
+    /**
+     * Widen the set of service types materialized by the owning shards.
+     *
+     * @param serviceType
+     */
+    public void addInterest(String serviceType) {
+        for (GossipScope shard : shardsFor(serviceType)) {
+            shard.addInterest(serviceType);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.NetworkedScope#getLocalAddress()
+     */
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return shards.get(0).getLocalAddress();
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#getReference(java.util.UUID)
+     */
+    @Override
+    public ServiceReference getReference(UUID serviceRegistration) {
+        for (GossipScope shard : shards) {
+            ServiceReference reference = shard.getReference(serviceRegistration);
+            if (reference != null) {
+                return reference;
+            }
+        }
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#getServiceReference(java.lang.String)
+     */
+    @Override
+    public ServiceReference getServiceReference(String serviceType)
+                                                                   throws InvalidSyntaxException {
+        for (GossipScope shard : shardsFor(serviceType)) {
+            ServiceReference reference = shard.getServiceReference(serviceType);
+            if (reference != null) {
+                return reference;
+            }
+        }
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#getServiceReferences(java.lang.String, java.lang.String)
+     */
+    @Override
+    public List<ServiceReference> getServiceReferences(String serviceType,
+                                                       String query)
+                                                                    throws InvalidSyntaxException {
+        List<GossipScope> owners = shardsFor(serviceType);
+        if (owners.size() == 1) {
+            return owners.get(0).getServiceReferences(serviceType, query);
+        }
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        for (GossipScope shard : owners) {
+            references.addAll(shard.getServiceReferences(serviceType, query));
+        }
+        return references;
+    }
+
+    /**
+     * Answer the first references of the service type matching the query,
+     * terminating the lookup as soon as the limit is reached
+     *
+     * @param serviceType
+     * @param query
+     * @param limit
+     * @return
+     * @throws InvalidSyntaxException
+     */
+    public List<ServiceReference> getServiceReferences(String serviceType,
+                                                       String query, int limit)
+                                                                               throws InvalidSyntaxException {
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        for (GossipScope shard : shardsFor(serviceType)) {
+            if (references.size() >= limit) {
+                break;
+            }
+            references.addAll(shard.getServiceReferences(serviceType, query,
+                                                         limit
+                                                                 - references.size()));
+        }
+        return references;
+    }
+
+    public List<GossipScope> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param serviceRegistration
+     * @return true if the service is registered by one of the shards
+     */
+    public boolean isRegistered(UUID serviceRegistration) {
+        return ownerOf(serviceRegistration) != null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#register(com.hellblazer.slp.ServiceURL, java.util.Map)
+     */
+    @Override
+    public UUID register(ServiceURL url, Map<String, String> properties) {
+        if (url == null) {
+            throw new IllegalArgumentException("Service URL cannot be null");
+        }
+        GossipScope shard = shards.get(shardOf(url.getServiceType().toString()));
+        return shard.register(url, properties);
+    }
+
+    /**
+     * Register the batch of services, in one bulk registration per owning
+     * shard
+     *
+     * @param registrations
+     * @return the map of service url to its registration
+     */
+    public Map<ServiceURL, UUID> registerAll(Map<ServiceURL, Map<String, String>> registrations) {
+        Map<GossipScope, Map<ServiceURL, Map<String, String>>> byShard = new LinkedHashMap<GossipScope, Map<ServiceURL, Map<String, String>>>();
+        for (Map.Entry<ServiceURL, Map<String, String>> entry : registrations.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException(
+                                                   "Service URL cannot be null");
+            }
+            GossipScope shard = shards.get(shardOf(entry.getKey().getServiceType().toString()));
+            Map<ServiceURL, Map<String, String>> batch = byShard.get(shard);
+            if (batch == null) {
+                batch = new LinkedHashMap<ServiceURL, Map<String, String>>();
+                byShard.put(shard, batch);
+            }
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        Map<ServiceURL, UUID> registered = new LinkedHashMap<ServiceURL, UUID>();
+        for (Map.Entry<GossipScope, Map<ServiceURL, Map<String, String>>> entry : byShard.entrySet()) {
+            registered.putAll(entry.getKey().registerAll(entry.getValue()));
+        }
+        return registered;
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#removeServiceListener(com.hellblazer.slp.ServiceListener)
+     */
+    @Override
+    public void removeServiceListener(ServiceListener listener) {
+        for (GossipScope shard : shards) {
+            shard.removeServiceListener(listener);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#removeServiceListener(com.hellblazer.slp.ServiceListener, java.lang.String)
+     */
+    @Override
+    public void removeServiceListener(ServiceListener listener, String query)
+                                                                             throws InvalidSyntaxException {
+        for (GossipScope shard : shards) {
+            shard.removeServiceListener(listener, query);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#setProperties(java.util.UUID, java.util.Map)
+     */
+    @Override
+    public void setProperties(UUID serviceRegistration,
+                              Map<String, String> properties) {
+        GossipScope owner = ownerOf(serviceRegistration);
+        if (owner == null) {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("No service registered for %s",
+                                        serviceRegistration));
+            }
+            return;
+        }
+        owner.setProperties(serviceRegistration, properties);
+    }
+
+    /**
+     * Update the properties of the batch of registered services, in one bulk
+     * update per owning shard
+     *
+     * @param updates
+     */
+    public void setPropertiesAll(Map<UUID, Map<String, String>> updates) {
+        Map<GossipScope, Map<UUID, Map<String, String>>> byShard = new LinkedHashMap<GossipScope, Map<UUID, Map<String, String>>>();
+        for (Map.Entry<UUID, Map<String, String>> entry : updates.entrySet()) {
+            GossipScope owner = ownerOf(entry.getKey());
+            if (owner == null) {
+                if (log.isTraceEnabled()) {
+                    log.trace(String.format("No service registered for %s",
+                                            entry.getKey()));
+                }
+                continue;
+            }
+            Map<UUID, Map<String, String>> batch = byShard.get(owner);
+            if (batch == null) {
+                batch = new LinkedHashMap<UUID, Map<String, String>>();
+                byShard.put(owner, batch);
+            }
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<GossipScope, Map<UUID, Map<String, String>>> entry : byShard.entrySet()) {
+            entry.getKey().setPropertiesAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Answer the index of the shard owning the service type
+     *
+     * @param serviceType
+     * @return
+     */
+    public int shardOf(String serviceType) {
+        String abstractType = abstractTypeOf(serviceType);
+        Integer shard = shardTable.get(abstractType);
+        if (shard != null) {
+            return shard;
+        }
+        return (abstractType.hashCode() & Integer.MAX_VALUE) % shards.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#start()
+     */
+    @Override
+    public ShardedGossipScope start() {
+        for (GossipScope shard : shards) {
+            shard.start();
+        }
+        return this;
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#stop()
+     */
+    @Override
+    public ServiceScope stop() {
+        for (GossipScope shard : shards) {
+            shard.stop();
+        }
+        return this;
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#unregister(java.util.UUID)
+     */
+    @Override
+    public void unregister(UUID serviceRegistration) {
+        GossipScope owner = ownerOf(serviceRegistration);
+        if (owner == null) {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("No service registered for %s",
+                                        serviceRegistration));
+            }
+            return;
+        }
+        owner.unregister(serviceRegistration);
+    }
+
+    /**
+     * Unregister the batch of services, in one bulk unregistration per owning
+     * shard
+     *
+     * @param serviceRegistrations
+     */
+    public void unregisterAll(Collection<UUID> serviceRegistrations) {
+        Map<GossipScope, List<UUID>> byShard = new LinkedHashMap<GossipScope, List<UUID>>();
+        for (UUID serviceRegistration : serviceRegistrations) {
+            GossipScope owner = ownerOf(serviceRegistration);
+            if (owner == null) {
+                if (log.isTraceEnabled()) {
+                    log.trace(String.format("No service registered for %s",
+                                            serviceRegistration));
+                }
+                continue;
+            }
+            List<UUID> batch = byShard.get(owner);
+            if (batch == null) {
+                batch = new ArrayList<UUID>();
+                byShard.put(owner, batch);
+            }
+            batch.add(serviceRegistration);
+        }
+        for (Map.Entry<GossipScope, List<UUID>> entry : byShard.entrySet()) {
+            entry.getKey().unregisterAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Answer the shard which registered the service
+     *
+     * @param serviceRegistration
+     * @return the owning shard, or null if the service is not registered
+     */
+    private GossipScope ownerOf(UUID serviceRegistration) {
+        for (GossipScope shard : shards) {
+            if (shard.isRegistered(serviceRegistration)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answer the shards which may hold services of the type. Wildcard types
+     * cannot be routed, and are answered by all shards
+     *
+     * @param serviceType
+     * @return
+     */
+    private List<GossipScope> shardsFor(String serviceType) {
+        if (serviceType == null || serviceType.indexOf('*') >= 0) {
+            return shards;
+        }
+        List<GossipScope> owner = new ArrayList<GossipScope>(1);
+        owner.add(shards.get(shardOf(serviceType)));
+        return owner;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of canonical strings, used to share the property keys and
+ * common property values of the services in the registry. Keys are admitted
+ * on first sight, values only once they have been seen to repeat, so that
+ * values unique to a service do not displace the shared ones. The pool is
+ * split into two generations; when the younger fills, the older is discarded,
+ * so strings which are no longer in use age out of the pool.
+ *
+ * @author hhildebrand
+ *
+ */
+class StringPool {
+    /**
+     * A bounded set of strings, aged out a generation at a time. Strings found
+     * in the old generation are promoted to the young one.
+     */
+    private static class Generations {
+        private volatile ConcurrentMap<String, String> current  = new ConcurrentHashMap<String, String>();
+        private final int                              limit;
+        private volatile ConcurrentMap<String, String> previous = new ConcurrentHashMap<String, String>();
+        private final AtomicInteger                    size     = new AtomicInteger();
+
+        private Generations(int limit) {
+            this.limit = Math.max(1, limit);
+        }
+
+        private String get(String string) {
+            String canonical = current.get(string);
+            if (canonical != null) {
+                return canonical;
+            }
+            canonical = previous.get(string);
+            return canonical == null ? null : put(canonical);
+        }
+
+        private String put(String string) {
+            String canonical = current.putIfAbsent(string, string);
+            if (canonical != null) {
+                return canonical;
+            }
+            if (size.incrementAndGet() >= limit) {
+                age();
+            }
+            return string;
+        }
+
+        private synchronized void age() {
+            if (size.get() < limit) {
+                return;
+            }
+            previous = current;
+            current = new ConcurrentHashMap<String, String>();
+            size.set(0);
+        }
+
+        private int size() {
+            return current.size() + previous.size();
+        }
+    }
+
+    private final Generations pool;
+    private final Generations seen;
+
+    /**
+     * @param capacity
+     *            - the maximum number of canonical strings
+     */
+    public StringPool(int capacity) {
+        pool = new Generations(capacity / 2);
+        seen = new Generations(capacity / 2);
+    }
+
+    /**
+     * @param string
+     * @return the canonical instance of the string
+     */
+    public String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        String canonical = pool.get(string);
+        return canonical == null ? pool.put(string) : canonical;
+    }
+
+    /**
+     * Share the string if it has been seen before. The first sighting of a
+     * string is only remembered, and the instance remembered becomes canonical
+     * on the second
+     *
+     * @param string
+     * @return the canonical instance of the string, or the string itself if
+     *         it has not yet been seen to repeat
+     */
+    public String share(String string) {
+        if (string == null) {
+            return null;
+        }
+        String canonical = pool.get(string);
+        if (canonical != null) {
+            return canonical;
+        }
+        canonical = seen.get(string);
+        if (canonical == null) {
+            seen.put(string);
+            return string;
+        }
+        return pool.put(canonical);
+    }
+
+    /**
+     * @return the number of canonical strings
+     */
+    public int size() {
+        return pool.size();
+    }
+}
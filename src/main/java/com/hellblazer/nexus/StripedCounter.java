@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter striped across cache lines by thread, so that concurrent
+ * increments from the hot paths of the scope do not contend on a single
+ * location. Reads sum the stripes, and are not atomic with respect to
+ * concurrent increments.
+ *
+ * @author hhildebrand
+ *
+ */
+class StripedCounter {
+    /**
+     * The number of longs in a cache line, so that each stripe occupies its
+     * own line
+     */
+    private static final int PADDING = 8;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1,
+                                                                      Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B97F4A7C15L >>> 32) & STRIPES - 1;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+                                                              * PADDING);
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Answer the sum of the stripes, resetting each stripe as it is summed.
+     * Increments concurrent with the reset are counted by the next sum
+     *
+     * @return
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.getAndSet(i * PADDING, 0);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hierarchical timing wheel, scheduling large numbers of timeouts with
+ * constant time insertion and cancellation. Time advances in ticks of a fixed
+ * duration. Each level of the wheel has 64 slots, the slots of the first level
+ * spanning a single tick and the slots of each further level spanning all the
+ * slots of the level below. A timeout is placed in the slot of the lowest level
+ * whose span covers its deadline, and is cascaded down the levels as the wheel
+ * turns, until it expires from the first level.
+ * <p>
+ * The wheel does not own a thread: a single ticker advances the wheel to the
+ * current time, and runs the expired tasks.
+ *
+ * @author hhildebrand
+ *
+ */
+class TimingWheel {
+
+    /**
+     * A scheduled task of the wheel
+     */
+    final class Timeout {
+        private final long     deadline;
+        private int            level = -1;
+        private Timeout        next;
+        private Timeout        prev;
+        private int            slot;
+        private final Runnable task;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout
+         *
+         * @return true if the timeout was cancelled before it expired
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (level < 0) {
+                    return false;
+                }
+                unlink(this);
+                size--;
+                return true;
+            }
+        }
+
+        /**
+         * @return the tick at which the timeout expires
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isPending() {
+            synchronized (TimingWheel.this) {
+                return level >= 0;
+            }
+        }
+    }
+
+    private static final int    BITS   = 6;
+    private static final int    LEVELS = 6;
+    private static final Logger log    = LoggerFactory.getLogger(TimingWheel.class);
+    private static final int    MASK   = (1 << BITS) - 1;
+    private static final int    SLOTS  = 1 << BITS;
+
+    private long                current;
+    private final Timeout[][]   heads  = new Timeout[LEVELS][SLOTS];
+    private final long          origin;
+    private int                 size;
+    private final long          tick;
+
+    /**
+     * @param tick
+     *            - the duration of a tick
+     * @param unit
+     *            - the unit of the tick
+     * @param origin
+     *            - the time, in milliseconds, of the first tick
+     */
+    public TimingWheel(long tick, TimeUnit unit, long origin) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tick = unit.toMillis(tick);
+        if (this.tick == 0) {
+            throw new IllegalArgumentException(
+                                               "Tick must be at least one millisecond");
+        }
+        this.origin = origin;
+    }
+
+    /**
+     * Advance the wheel to the time, running the tasks which have expired
+     *
+     * @param now
+     *            - the current time in milliseconds
+     * @return the number of expired tasks
+     */
+    public int advance(long now) {
+        List<Runnable> expired = new ArrayList<Runnable>();
+        synchronized (this) {
+            long target = (now - origin) / tick;
+            while (current < target) {
+                current++;
+                turn(expired);
+            }
+        }
+        for (Runnable task : expired) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error(String.format("Error running expired task %s", task),
+                          e);
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * @return the number of ticks the wheel has advanced
+     */
+    public synchronized long getCurrentTick() {
+        return current;
+    }
+
+    /**
+     * @return the duration of a tick in milliseconds
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Schedule the task to run once the delay has elapsed. The task runs on
+     * the first tick at or after the delay
+     *
+     * @param task
+     * @param delay
+     * @param unit
+     * @return the timeout of the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delay,
+                                         TimeUnit unit) {
+        long ticks = (unit.toMillis(delay) + tick - 1) / tick;
+        Timeout timeout = new Timeout(task, current + Math.max(1, ticks));
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * @return the number of pending timeouts
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("TimingWheel [tick=%s ms, current=%s, size=%s]",
+                             tick, current, size);
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout timeout = heads[level][slot];
+        heads[level][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long delta = timeout.deadline - current;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << BITS * (level + 1)) {
+            level++;
+        }
+        int slot = (int) (Math.max(timeout.deadline, current) >>> BITS * level)
+                   & MASK;
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = heads[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        heads[level][slot] = timeout;
+    }
+
+    /**
+     * Process the current tick, cascading the timeouts of the upper levels
+     * whose span begins at this tick, and expiring the timeouts of the slot of
+     * the tick
+     *
+     * @param expired
+     */
+    private void turn(List<Runnable> expired) {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((current & (1L << BITS * level) - 1) != 0) {
+                break;
+            }
+            cascade(level, (int) (current >>> BITS * level) & MASK);
+        }
+        int slot = (int) current & MASK;
+        Timeout timeout = heads[0][slot];
+        heads[0][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.level = -1;
+            size--;
+            expired.add(timeout.task);
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev == null) {
+            heads[timeout.level][timeout.slot] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.next = null;
+        timeout.prev = null;
+        timeout.level = -1;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The policy governing how often the property updates of a registered service
+ * are published. Updates within the window are merged, and only the latest
+ * state is published at the end of the window. Updates whose numeric property
+ * values moved less than the threshold from the last published state are
+ * suppressed.
+ *
+ * @author hhildebrand
+ *
+ */
+public class UpdatePolicy {
+    private final double threshold;
+    private final long   window;
+
+    /**
+     * @param window
+     *            - the update window
+     * @param unit
+     *            - the unit of the window
+     * @param threshold
+     *            - the minimum change in a numeric property value which is
+     *            published
+     */
+    public UpdatePolicy(long window, TimeUnit unit, double threshold) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                                               "Threshold must not be negative");
+        }
+        this.window = unit.toMillis(window);
+        this.threshold = threshold;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the update window in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Answer true if the updated properties are not significantly different
+     * from the published properties
+     *
+     * @param published
+     * @param updated
+     * @return
+     */
+    public boolean isInsignificant(Map<String, String> published,
+                                   Map<String, String> updated) {
+        if (published == null || published.size() != updated.size()) {
+            return false;
+        }
+        for (Map.Entry<String, String> entry : updated.entrySet()) {
+            String previous = published.get(entry.getKey());
+            if (previous == null) {
+                return false;
+            }
+            if (previous.equals(entry.getValue())) {
+                continue;
+            }
+            if (threshold == 0.0) {
+                return false;
+            }
+            try {
+                if (Math.abs(Double.parseDouble(previous)
+                             - Double.parseDouble(entry.getValue())) >= threshold) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("UpdatePolicy [window=%s ms, threshold=%s]",
+                             window, threshold);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import com.hellblazer.gossip.Gossip;
+import com.hellblazer.gossip.GossipListener;
+
+/**
+ * The endpoint of a Chinese Whispers gossip ring
+ *
+ * @author hhildebrand
+ *
+ */
+class WhisperingEndpoint implements GossipEndpoint {
+    private final Gossip gossip;
+
+    WhisperingEndpoint(Gossip gossip) {
+        this.gossip = gossip;
+    }
+
+    @Override
+    public void deregister(UUID id) {
+        gossip.deregister(id);
+    }
+
+    public Gossip getGossip() {
+        return gossip;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return gossip.getLocalAddress();
+    }
+
+    @Override
+    public int getMaxStateSize() {
+        return gossip.getMaxStateSize();
+    }
+
+    @Override
+    public UUID register(byte[] state) {
+        return gossip.register(state);
+    }
+
+    @Override
+    public void setListener(GossipListener listener) {
+        gossip.setListener(listener);
+    }
+
+    @Override
+    public void start() {
+        gossip.start();
+    }
+
+    @Override
+    public void terminate() {
+        gossip.terminate();
+    }
+
+    @Override
+    public void update(UUID id, byte[] state) {
+        gossip.update(id, state);
+    }
+}
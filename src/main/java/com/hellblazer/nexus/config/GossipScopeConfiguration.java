@@ -16,8 +16,20 @@
 
 package com.hellblazer.nexus.config;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
 import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.nexus.FlapDamping;
 import com.hellblazer.nexus.GossipScope;
+import com.hellblazer.nexus.ShardedGossipScope;
+import com.hellblazer.nexus.UpdatePolicy;
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.config.ServiceScopeConfiguration;
 
@@ -26,14 +38,155 @@ import com.hellblazer.slp.config.ServiceScopeConfiguration;
  * 
  */
 public class GossipScopeConfiguration implements ServiceScopeConfiguration {
-    public int                 notificationThreads = 2;
-    public GossipConfiguration gossip              = new GossipConfiguration();
+    /**
+     * The file the registry is periodically persisted to, and preloaded from
+     * when the scope is started. If null, the registry is not persisted. The
+     * shards of a sharded scope are persisted to the file suffixed by the
+     * index of the shard
+     */
+    public String                    checkpoint          = null;
+    /**
+     * The interval, in milliseconds, between checkpoints of the registry
+     */
+    public long                      checkpointInterval  = 30000;
+    /**
+     * The maximum age, in milliseconds, of the services preloaded from the
+     * checkpoint. Preloaded services which gossip has not confirmed within
+     * this bound of the time they were last seen are evicted
+     */
+    public long                      checkpointStaleness = 120000;
+    /**
+     * The half life, in milliseconds, of the flap penalty of a service. Zero
+     * disables flap damping
+     */
+    public long                      flapHalfLife        = 0;
+    /**
+     * The window, in milliseconds, within which a withdrawn service is
+     * restored silently
+     */
+    public long                      flapHoldDown        = 0;
+    /**
+     * The penalty of each withdrawal of a service
+     */
+    public double                    flapPenalty         = 1000;
+    /**
+     * The penalty below which suppressed events resume
+     */
+    public double                    flapReuse           = 750;
+    /**
+     * The penalty at which the events of a service are suppressed
+     */
+    public double                    flapSuppress        = 2000;
+    public GossipConfiguration       gossip              = new GossipConfiguration();
+    /**
+     * The numeric properties decoded at ingest and indexed per service type,
+     * for range and ordered lookups
+     */
+    public List<String>              indexedProperties   = new ArrayList<String>();
+    /**
+     * The service types this node consumes, when partial replication is
+     * enabled. Widened by the service types of listeners and lookups
+     */
+    public List<String>              interests           = new ArrayList<String>();
+    /**
+     * The JMX object name under which the statistics of the scope are
+     * registered with the platform MBean server. If null, the scope is not
+     * instrumented. The statistics of the shards of a sharded scope are
+     * registered with the name qualified by the index of the shard
+     */
+    public String                    jmxName             = null;
+    public int                       notificationThreads = 2;
+    /**
+     * Store the state of the services off heap, materializing references only
+     * for the results of lookups
+     */
+    public boolean                   offHeap             = false;
+    /**
+     * The size of the registry above which unindexed lookups are scanned in
+     * parallel
+     */
+    public int                       parallelThreshold   = GossipScope.DEFAULT_PARALLEL_THRESHOLD;
+    /**
+     * Only materialize the services whose types are of interest
+     */
+    public boolean                   partialReplication  = false;
+    /**
+     * The gossip rings of a sharded scope. If empty, the scope is served by
+     * the single gossip ring
+     */
+    public List<GossipConfiguration> shards              = new ArrayList<GossipConfiguration>();
+    /**
+     * The mapping of abstract service type to shard index. Unmapped types are
+     * assigned to shards by hash
+     */
+    public Map<String, Integer>      shardTable          = new HashMap<String, Integer>();
+    /**
+     * Stamp the published service states for propagation tracing, measured
+     * by the receiving scopes which are instrumented
+     */
+    public boolean                   tracing             = false;
+    /**
+     * The minimum change in a numeric property value which is published. Zero
+     * publishes every change
+     */
+    public double                    updateThreshold     = 0.0;
+    /**
+     * The window, in milliseconds, within which property updates of a
+     * registered service are merged. Zero publishes every update immediately
+     */
+    public long                      updateWindow        = 0;
 
     /* (non-Javadoc)
      * @see com.hellblazer.slp.config.ServiceScopeConfiguration#construct()
      */
     @Override
     public ServiceScope construct() throws Exception {
-        return new GossipScope(gossip.construct(), notificationThreads);
+        if (shards.isEmpty()) {
+            return construct(gossip, checkpoint, jmxName);
+        }
+        List<GossipScope> scopes = new ArrayList<GossipScope>();
+        for (GossipConfiguration shard : shards) {
+            scopes.add(construct(shard,
+                                 checkpoint == null ? null
+                                                   : checkpoint + "."
+                                                     + scopes.size(),
+                                 jmxName == null ? null
+                                                : jmxName + ",shard="
+                                                  + scopes.size()));
+        }
+        return new ShardedGossipScope(scopes, shardTable);
+    }
+
+    private GossipScope construct(GossipConfiguration ring, String file,
+                                  String name) throws Exception {
+        GossipScope scope = new GossipScope(ring.construct(),
+                                            notificationThreads, offHeap);
+        scope.setParallelThreshold(parallelThreshold);
+        scope.setTracing(tracing);
+        if (partialReplication) {
+            scope.setInterests(interests);
+        }
+        if (!indexedProperties.isEmpty()) {
+            scope.setIndexedProperties(indexedProperties);
+        }
+        if (updateWindow > 0 || updateThreshold > 0.0) {
+            scope.setUpdatePolicy(new UpdatePolicy(updateWindow,
+                                                   TimeUnit.MILLISECONDS,
+                                                   updateThreshold));
+        }
+        if (flapHalfLife > 0) {
+            scope.setFlapDamping(new FlapDamping(flapPenalty, flapSuppress,
+                                                 flapReuse, flapHalfLife,
+                                                 flapHoldDown,
+                                                 TimeUnit.MILLISECONDS));
+        }
+        if (file != null) {
+            scope.setCheckpoint(new File(file), checkpointInterval,
+                                checkpointStaleness, TimeUnit.MILLISECONDS);
+        }
+        if (name != null) {
+            scope.registerStatistics(new ObjectName(name));
+        }
+        return scope;
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the timers of a scope to take effect, polling a condition until
+ * it holds or a deadline passes, so that tests do not depend on the scheduling
+ * of the timers within a fixed sleep.
+ *
+ * @author hhildebrand
+ *
+ */
+public class Await {
+    private static final long POLL = 10;
+
+    /**
+     * @param condition
+     * @param timeout
+     * @param unit
+     * @return true if the condition held before the timeout elapsed
+     * @throws Exception
+     */
+    public static boolean until(Callable<Boolean> condition, long timeout,
+                                TimeUnit unit) throws Exception {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!condition.call()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(POLL);
+        }
+        return true;
+    }
+}
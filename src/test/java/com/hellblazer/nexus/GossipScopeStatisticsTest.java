@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class GossipScopeStatisticsTest {
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(0x1638);
+        long max = 0;
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(1000000);
+            max = Math.max(max, value);
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(max, histogram.getMax());
+        assertEquals(500000.0, histogram.getMean(), 5000.0);
+        assertEquals(500000.0, histogram.getValueAt(0.5), 500000.0 / 16);
+        assertEquals(990000.0, histogram.getValueAt(0.99), 990000.0 / 16);
+        assertEquals(max, histogram.getValueAt(1.0));
+
+        for (long value = 0; value < 1L << 20; value += 7) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(Histogram.highestOf(bucket) >= value);
+            assertTrue(bucket == 0
+                       || Histogram.highestOf(bucket - 1) < value);
+        }
+        assertTrue(Histogram.highestOf(Histogram.bucketOf(Long.MAX_VALUE)) == Long.MAX_VALUE);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAt(0.99));
+    }
+
+    @Test
+    public void testPropagation() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        GossipScopeStatistics statistics = new GossipScopeStatistics(scope);
+        scope.setMetrics(statistics);
+
+        PropagationTracer origin = new PropagationTracer();
+        ServiceURL url = new ServiceURL("service:traced://traced:1");
+        Map<String, String> properties = Collections.singletonMap("load", "1");
+        UUID id = UUID.randomUUID();
+        byte[] registration = GossipScope.serialize(url,
+                                                    origin.stamp(null,
+                                                                 properties),
+                                                    1433);
+        byte[][] versions = new byte[4][];
+        for (int i = 1; i < versions.length; i++) {
+            versions[i] = GossipScope.serialize(url,
+                                                origin.stamp(id, properties),
+                                                1433);
+        }
+        assertEquals(3, PropagationTracer.stampOf(versions[3])[1]);
+
+        scope.register(id, registration);
+        scope.update(id, versions[1]);
+        scope.update(id, versions[3]);
+        scope.update(id, versions[2]);
+        scope.update(id, versions[3]);
+
+        assertEquals(1, statistics.getRegistrationPropagation().getCount());
+        assertEquals(2, statistics.getUpdatePropagation().getCount());
+        assertTrue(statistics.getUpdatePropagation().getMax() < 60000);
+        assertEquals(1, statistics.getSkippedVersions());
+        assertEquals(1, statistics.getReorderedVersions());
+        assertEquals(null,
+                     scope.getReference(id).getProperties().get(GossipScope.TRACE));
+        assertEquals("1", scope.getReference(id).getProperties().get("load"));
+
+        scope.deregister(id);
+        scope.register(id, registration);
+        assertEquals(2, statistics.getRegistrationPropagation().getCount());
+        assertEquals(1, statistics.getReorderedVersions());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        GossipScopeStatistics statistics = new GossipScopeStatistics(scope);
+        scope.setMetrics(statistics);
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+            }
+        };
+        scope.addServiceListener(listener,
+                                 String.format("(%s=service:foo)",
+                                               ServiceScope.SERVICE_TYPE));
+        scope.addServiceListener(listener,
+                                 String.format("(%s=service:bar)",
+                                               ServiceScope.SERVICE_TYPE));
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("load", "1");
+        for (int i = 0; i < 10; i++) {
+            UUID id = UUID.randomUUID();
+            scope.register(id,
+                           GossipScope.serialize(new ServiceURL(
+                                                                "service:foo://foo:"
+                                                                        + i),
+                                                 properties, 1433));
+            scope.update(id,
+                         GossipScope.serialize(new ServiceURL(
+                                                              "service:foo://foo:"
+                                                                      + i),
+                                               properties, 1433));
+            if (i % 2 == 0) {
+                scope.deregister(id);
+            }
+        }
+        scope.register(UUID.randomUUID(),
+                       GossipScope.serialize(new ServiceURL("service:bar://bar"),
+                                             Collections.<String, String> emptyMap(),
+                                             1433));
+        scope.getServiceReferences("service:foo", "(load=1)");
+
+        assertEquals(11, statistics.getRegistrations());
+        assertEquals(10, statistics.getUpdates());
+        assertEquals(5, statistics.getDeregistrations());
+        assertEquals(21, statistics.getDeserializeTime().getCount());
+        assertEquals(26, statistics.getFilterEvaluations().getCount());
+        assertEquals(2, statistics.getFilterEvaluations().getMax());
+        assertEquals(26, statistics.getFilterTime().getCount());
+        assertEquals(0, statistics.getListenerErrors());
+        assertEquals(0, statistics.getDispatchQueueDepth());
+        assertEquals(1, statistics.getListenerLatency().size());
+        assertEquals(26,
+                     statistics.getListenerLatency().values().iterator().next().getCount());
+        assertEquals(1,
+                     statistics.getLookupLatency().get("service:foo (load=1)").getCount());
+        assertEquals(Integer.valueOf(5),
+                     statistics.getServiceCounts().get("service:foo"));
+        assertEquals(Integer.valueOf(1),
+                     statistics.getServiceCounts().get("service:bar"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+                                         "com.hellblazer.nexus:type=GossipScope,name=test");
+        server.registerMBean(statistics, name);
+        try {
+            assertEquals(11L, server.getAttribute(name, "Registrations"));
+            CompositeData deserialize = (CompositeData) server.getAttribute(name,
+                                                                            "DeserializeTime");
+            assertEquals(21L, deserialize.get("count"));
+            TabularData counts = (TabularData) server.getAttribute(name,
+                                                                   "ServiceCounts");
+            assertEquals(2, counts.size());
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            assertEquals(0L, server.getAttribute(name, "Registrations"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testRegistration() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        ObjectName name = new ObjectName(
+                                         "com.hellblazer.nexus:type=GossipScope,name=registration");
+        GossipScopeStatistics statistics = scope.registerStatistics(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+            }
+
+            @Override
+            public String toString() {
+                return "listener";
+            }
+        };
+        statistics.notified(listener, ServiceEvent.EventType.REGISTERED, 10,
+                            null);
+        statistics.notified(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+            }
+
+            @Override
+            public String toString() {
+                return "listener";
+            }
+        }, ServiceEvent.EventType.REGISTERED, 10, null);
+        statistics.notified(listener, ServiceEvent.EventType.MODIFIED, 10,
+                            null);
+        // listeners are measured by identity, not by name
+        Map<String, HistogramSummary> latency = statistics.getListenerLatency();
+        assertEquals(2, latency.size());
+        long notified = 0;
+        for (HistogramSummary summary : latency.values()) {
+            notified += summary.getCount();
+        }
+        assertEquals(3, notified);
+
+        scope.stop();
+        assertFalse(server.isRegistered(name));
+    }
+}
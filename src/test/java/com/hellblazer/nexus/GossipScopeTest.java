@@ -17,16 +17,27 @@
 package com.hellblazer.nexus;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.MBeanServer;
@@ -39,6 +50,7 @@ import org.junit.Test;
 import com.hellblazer.gossip.configuration.GossipConfiguration;
 import com.hellblazer.slp.ServiceEvent;
 import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.ServiceType;
 import com.hellblazer.slp.ServiceURL;
@@ -117,6 +129,664 @@ public class GossipScopeTest {
         assertEquals(jmxServiceURL, deserialized.getUrl());
     }
 
+    @Test
+    public void testDisjunctiveInterests() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                count.incrementAndGet();
+            }
+        };
+
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setInterests(Collections.<String> emptyList());
+        scope.addServiceListener(listener,
+                                 String.format("(|(%s=service:a)(zone=x))",
+                                               ServiceScope.SERVICE_TYPE));
+
+        UUID b = UUID.randomUUID();
+        scope.register(b,
+                       GossipScope.serialize(new ServiceURL(
+                                                            "service:b://b:5"),
+                                             Collections.singletonMap("zone",
+                                                                      "x"),
+                                             1433));
+        assertEquals(1, count.get());
+        assertEquals(0, scope.getFootprint().getDormantServices());
+
+        InterestSet interests = new InterestSet(false);
+        interests.addQuery(String.format("(|(%s=service:a)(&(%s=service:b)(zone=x)))",
+                                         ServiceScope.SERVICE_TYPE,
+                                         ServiceScope.SERVICE_TYPE));
+        assertFalse(interests.isEverything());
+        assertTrue(interests.matches("service:b"));
+        assertFalse(interests.matches("service:c"));
+    }
+
+    @Test
+    public void testNarrowedInterests() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+
+        UUID foo = UUID.randomUUID();
+        UUID bar = UUID.randomUUID();
+        scope.register(foo,
+                       GossipScope.serialize(new ServiceURL(
+                                                            "service:foo://foo:5"),
+                                             Collections.<String, String> emptyMap(),
+                                             1433));
+        scope.register(bar,
+                       GossipScope.serialize(new ServiceURL(
+                                                            "service:bar://bar:6"),
+                                             Collections.<String, String> emptyMap(),
+                                             1433));
+        assertEquals(2, scope.getFootprint().getServices());
+
+        scope.setInterests(Collections.singletonList("service:foo"));
+        assertEquals(1, scope.getFootprint().getServices());
+        assertEquals(1, scope.getFootprint().getDormantServices());
+        assertEquals(bar, scope.getReference(bar).getRegistration());
+
+        scope.update(bar,
+                     GossipScope.serialize(new ServiceURL("service:bar://bar:7"),
+                                           Collections.<String, String> emptyMap(),
+                                           1433));
+        assertEquals(1, scope.getFootprint().getServices());
+        assertEquals(1, scope.getFootprint().getDormantServices());
+    }
+
+    @Test
+    public void testPartialReplication() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                count.incrementAndGet();
+            }
+        };
+
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setInterests(Collections.<String> emptyList());
+        scope.addServiceListener(listener,
+                                 String.format("(%s=service:foo)",
+                                               ServiceScope.SERVICE_TYPE));
+
+        UUID foo = UUID.randomUUID();
+        UUID bar = UUID.randomUUID();
+        scope.register(foo,
+                       GossipScope.serialize(new ServiceURL(
+                                                            "service:foo://foo:5"),
+                                             Collections.<String, String> emptyMap(),
+                                             1433));
+        byte[] barState = GossipScope.serialize(new ServiceURL(
+                                                               "service:bar://bar:6"),
+                                                Collections.<String, String> emptyMap(),
+                                                1433);
+        assertEquals("service:bar", GossipScope.serviceTypeOf(barState));
+        scope.register(bar, barState);
+
+        assertEquals(1, count.get());
+        assertEquals(bar, scope.getReference(bar).getRegistration());
+        assertEquals(1,
+                     scope.getServiceReferences("service:bar", null).size());
+        assertEquals(1,
+                     scope.getServiceReferences("service:foo", null).size());
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testConcurrentInterestWidening() throws Exception {
+        final GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setInterests(Collections.<String> emptyList());
+        for (int i = 0; i < 500; i++) {
+            final String serviceType = "service:widened" + i;
+            final UUID id = UUID.randomUUID();
+            final byte[] state = GossipScope.serialize(new ServiceURL(
+                                                                      serviceType
+                                                                              + "://host:1"),
+                                                       Collections.<String, String> emptyMap(),
+                                                       1433);
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            Thread ingest = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    scope.register(id, state);
+                }
+            };
+            ingest.start();
+            barrier.await();
+            scope.addInterest(serviceType);
+            ingest.join();
+            assertEquals(id, scope.snapshot().get(id).getRegistration());
+        }
+    }
+
+    @Test
+    public void testBulkRegistration() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger dispatches = new AtomicInteger();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                count.incrementAndGet();
+            }
+        };
+
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                dispatches.incrementAndGet();
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.addServiceListener(listener,
+                                 String.format("(%s=service:foo)",
+                                               ServiceScope.SERVICE_TYPE));
+
+        Map<ServiceURL, Map<String, String>> registrations = new LinkedHashMap<ServiceURL, Map<String, String>>();
+        for (int i = 0; i < 100; i++) {
+            registrations.put(new ServiceURL(
+                                             String.format("service:foo://foo:%s",
+                                                           i)),
+                              Collections.singletonMap("index",
+                                                       String.valueOf(i)));
+        }
+        Map<ServiceURL, UUID> registered = scope.registerAll(registrations);
+        assertEquals(100, registered.size());
+        assertEquals(100, count.get());
+        assertEquals(1, dispatches.get());
+        assertEquals(100, scope.getServiceReferences("service:foo", null).size());
+
+        Map<UUID, Map<String, String>> updates = new HashMap<UUID, Map<String, String>>();
+        for (UUID registration : registered.values()) {
+            updates.put(registration, Collections.singletonMap("load", "1"));
+        }
+        scope.setPropertiesAll(updates);
+        assertEquals(200, count.get());
+        assertEquals(2, dispatches.get());
+        assertEquals(100,
+                     scope.getServiceReferences("service:foo", "(load=1)").size());
+
+        scope.unregisterAll(registered.values());
+        assertEquals(300, count.get());
+        assertEquals(3, dispatches.get());
+        assertEquals(0, scope.getServiceReferences("service:foo", null).size());
+    }
+
+    @Test
+    public void testThrottledUpdates() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                if (event.getType() == ServiceEvent.EventType.MODIFIED) {
+                    count.incrementAndGet();
+                }
+            }
+        };
+
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.addServiceListener(listener,
+                                 String.format("(%s=service:foo)",
+                                               ServiceScope.SERVICE_TYPE));
+        UUID registration = scope.register(new ServiceURL(
+                                                          "service:foo://foo:5"),
+                                           Collections.singletonMap("load",
+                                                                    "0.5"));
+
+        scope.setUpdatePolicy(registration,
+                              new UpdatePolicy(0, TimeUnit.MILLISECONDS, 0.1));
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.55"));
+        assertEquals(0, count.get());
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.7"));
+        assertEquals(1, count.get());
+
+        scope.setUpdatePolicy(registration,
+                              new UpdatePolicy(500, TimeUnit.MILLISECONDS, 0));
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.1"));
+        assertEquals(2, count.get());
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.2"));
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.3"));
+        assertEquals(2, count.get());
+        assertEquals("0.1",
+                     scope.getReference(registration).getProperties().get("load"));
+        assertTrue(Await.until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return count.get() == 3;
+            }
+        }, 10, TimeUnit.SECONDS));
+        assertEquals("0.3",
+                     scope.getReference(registration).getProperties().get("load"));
+    }
+
+    @Test
+    public void testThrottledBulkUpdates() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        UUID registration = scope.register(new ServiceURL(
+                                                          "service:foo://foo:5"),
+                                           Collections.singletonMap("load",
+                                                                    "0.5"));
+        scope.setUpdatePolicy(registration,
+                              new UpdatePolicy(1, TimeUnit.HOURS, 0));
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.1"));
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.2"));
+        assertEquals("0.1",
+                     scope.getReference(registration).getProperties().get("load"));
+
+        scope.setPropertiesAll(Collections.singletonMap(registration,
+                                                        Collections.singletonMap("load",
+                                                                                 "0.3")));
+        assertEquals("0.3",
+                     scope.getReference(registration).getProperties().get("load"));
+
+        // The pending update was cancelled along with its throttle window
+        scope.setProperties(registration,
+                            Collections.singletonMap("load", "0.4"));
+        assertEquals("0.4",
+                     scope.getReference(registration).getProperties().get("load"));
+    }
+
+    @Test
+    public void testNumericIndex() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setIndexedProperties(Arrays.asList("load"));
+        for (int i = 0; i < 100; i++) {
+            scope.register(new ServiceURL(
+                                          String.format("service:db://db:%s",
+                                                        i)),
+                           Collections.singletonMap("load",
+                                                    String.valueOf((i * 37 % 100) / 100.0)));
+        }
+        scope.register(new ServiceURL("service:cache://cache:1"),
+                       Collections.singletonMap("load", "0.0"));
+
+        List<ServiceReference> lightlyLoaded = scope.getServiceReferencesInRange("service:db",
+                                                                                 "load",
+                                                                                 0.0,
+                                                                                 0.099);
+        assertEquals(10, lightlyLoaded.size());
+        double previous = -1.0;
+        for (ServiceReference ref : lightlyLoaded) {
+            double load = Double.parseDouble(ref.getProperties().get("load"));
+            assertTrue(load >= previous);
+            previous = load;
+        }
+
+        List<ServiceReference> leastLoaded = scope.getServiceReferencesOrderedBy("service:db",
+                                                                                 "load",
+                                                                                 true,
+                                                                                 1);
+        assertEquals(1, leastLoaded.size());
+        assertEquals("0.0", leastLoaded.get(0).getProperties().get("load"));
+        UUID least = leastLoaded.get(0).getRegistration();
+
+        scope.setProperties(least, Collections.singletonMap("load", "0.995"));
+        List<ServiceReference> mostLoaded = scope.getServiceReferencesOrderedBy("service:db",
+                                                                                "load",
+                                                                                false,
+                                                                                1);
+        assertEquals(least, mostLoaded.get(0).getRegistration());
+        assertEquals(2, scope.getServiceReferencesInRange("*", "load", 0.0,
+                                                          0.01).size());
+
+        scope.unregister(least);
+        assertEquals(0,
+                     scope.getServiceReferencesInRange("service:db", "load",
+                                                       0.995, 1.0).size());
+
+        // concrete types are answered by their abstract type
+        UUID mysql = scope.register(new ServiceURL("service:db:mysql://db:1"),
+                                    Collections.singletonMap("load", "0.995"));
+        List<ServiceReference> concrete = scope.getServiceReferencesInRange("service:db",
+                                                                            "load",
+                                                                            0.995,
+                                                                            1.0);
+        assertEquals(1, concrete.size());
+        assertEquals(mysql, concrete.get(0).getRegistration());
+        assertEquals(mysql,
+                     scope.getServiceReferencesOrderedBy("service:db", "load",
+                                                         false, 1).get(0).getRegistration());
+    }
+
+    @Test
+    public void testIntegralIndex() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setIndexedProperties(Arrays.asList("epoch"));
+        long base = 1L << 53;
+        List<UUID> registrations = new ArrayList<UUID>();
+        for (long i : new long[] { 3, 1, 0 }) {
+            registrations.add(0,
+                              scope.register(new ServiceURL(
+                                                            String.format("service:db://db:%s",
+                                                                          i)),
+                                             Collections.singletonMap("epoch",
+                                                                      String.valueOf(base
+                                                                                     + i))));
+        }
+        // exactly 2^53 + 2
+        scope.register(new ServiceURL("service:db://db:2"),
+                       Collections.singletonMap("epoch", "9.007199254740994E15"));
+
+        List<ServiceReference> exact = scope.getServiceReferencesInRange("service:db",
+                                                                         "epoch",
+                                                                         base + 1,
+                                                                         base + 1);
+        assertEquals(1, exact.size());
+        assertEquals(registrations.get(1), exact.get(0).getRegistration());
+
+        List<ServiceReference> ordered = scope.getServiceReferencesOrderedBy("service:db",
+                                                                             "epoch",
+                                                                             true,
+                                                                             4);
+        assertEquals(registrations.get(0), ordered.get(0).getRegistration());
+        assertEquals(registrations.get(1), ordered.get(1).getRegistration());
+        assertEquals("9.007199254740994E15",
+                     ordered.get(2).getProperties().get("epoch"));
+        assertEquals(registrations.get(2), ordered.get(3).getRegistration());
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        Map<ServiceURL, Map<String, String>> registrations = new LinkedHashMap<ServiceURL, Map<String, String>>();
+        for (int i = 0; i < 2000; i++) {
+            registrations.put(new ServiceURL(
+                                             String.format("service:%s://host:%s",
+                                                           i % 2 == 0 ? "db"
+                                                                     : "cache",
+                                                           i)),
+                              Collections.singletonMap("zone",
+                                                       String.valueOf(i % 4)));
+        }
+        scope.registerAll(registrations);
+
+        assertEquals(500, scope.getServiceReferences("service:db", "(zone=0)")
+                               .size());
+        assertEquals(10,
+                     scope.getServiceReferences("service:db", "(zone=0)", 10)
+                          .size());
+        int count = 0;
+        Iterator<ServiceReference> iterator = scope.iterateServiceReferences("service:cache",
+                                                                             null);
+        while (iterator.hasNext()) {
+            assertEquals("service:cache",
+                         iterator.next().getProperties()
+                                 .get(ServiceScope.SERVICE_TYPE));
+            count++;
+        }
+        assertEquals(1000, count);
+
+        scope.setParallelThreshold(100);
+        assertEquals(500, scope.getServiceReferences("service:db", "(zone=0)")
+                               .size());
+        assertEquals(2000, scope.getServiceReferences("*", null).size());
+    }
+
+    @Test
+    public void testFlapDamping() throws Exception {
+        final Map<UUID, List<ServiceEvent.EventType>> events = new ConcurrentHashMap<UUID, List<ServiceEvent.EventType>>();
+        final GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setFlapDamping(new FlapDamping(1500, 2000, 750, 500, 500,
+                                             TimeUnit.MILLISECONDS));
+        scope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                UUID id = event.getReference().getRegistration();
+                List<ServiceEvent.EventType> types = events.get(id);
+                if (types == null) {
+                    types = new CopyOnWriteArrayList<ServiceEvent.EventType>();
+                    events.put(id, types);
+                }
+                types.add(event.getType());
+            }
+        }, String.format("(%s=service:flappy)", ServiceScope.SERVICE_TYPE));
+        scope.start();
+        try {
+            byte[] state = GossipScope.serialize(new ServiceURL(
+                                                                "service:flappy://host:1"),
+                                                 Collections.<String, String> emptyMap(),
+                                                 1433);
+            final UUID flapping = UUID.randomUUID();
+            final UUID withdrawn = UUID.randomUUID();
+            scope.register(flapping, state);
+            scope.register(withdrawn, state);
+
+            // restored within the hold down window
+            scope.deregister(flapping);
+            assertTrue(scope.getFlapState(flapping).isHeldDown());
+            scope.register(flapping, state);
+            assertEquals(Arrays.asList(ServiceEvent.EventType.REGISTERED),
+                         events.get(flapping));
+            assertEquals(1, scope.getFlapState(flapping).getFlaps());
+
+            // suppressed
+            scope.deregister(flapping);
+            assertTrue(scope.getFlapState(flapping).isSuppressed());
+            scope.register(flapping, state);
+            scope.deregister(flapping);
+            assertEquals(Arrays.asList(ServiceEvent.EventType.REGISTERED),
+                         events.get(flapping));
+            assertEquals(3, scope.getFlapStates().get(0).getFlaps());
+
+            // held down, then withdrawn
+            scope.deregister(withdrawn);
+            assertEquals(Arrays.asList(ServiceEvent.EventType.REGISTERED),
+                         events.get(withdrawn));
+            final List<ServiceEvent.EventType> unregistered = Arrays.asList(ServiceEvent.EventType.REGISTERED,
+                                                                            ServiceEvent.EventType.UNREGISTERED);
+            assertTrue(Await.until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return unregistered.equals(events.get(withdrawn));
+                }
+            }, 10, TimeUnit.SECONDS));
+
+            // suppression lifted once the penalty decays
+            assertTrue(Await.until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    FlapState damping = scope.getFlapState(flapping);
+                    return (damping == null || !damping.isSuppressed())
+                           && unregistered.equals(events.get(flapping));
+                }
+            }, 10, TimeUnit.SECONDS));
+        } finally {
+            scope.stop();
+        }
+    }
+
+    @Test
+    public void testFlapDampingReleasedOnDisable() throws Exception {
+        final Map<UUID, List<ServiceEvent.EventType>> events = new ConcurrentHashMap<UUID, List<ServiceEvent.EventType>>();
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.setFlapDamping(new FlapDamping(1500, 2000, 750, 1, 1,
+                                             TimeUnit.HOURS));
+        scope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                UUID id = event.getReference().getRegistration();
+                List<ServiceEvent.EventType> types = events.get(id);
+                if (types == null) {
+                    types = new CopyOnWriteArrayList<ServiceEvent.EventType>();
+                    events.put(id, types);
+                }
+                types.add(event.getType());
+            }
+        }, String.format("(%s=service:flappy)", ServiceScope.SERVICE_TYPE));
+        GossipScopeStatistics statistics = new GossipScopeStatistics(scope);
+        scope.start();
+        try {
+            byte[] state = GossipScope.serialize(new ServiceURL(
+                                                                "service:flappy://host:1"),
+                                                 Collections.<String, String> emptyMap(),
+                                                 1433);
+            UUID held = UUID.randomUUID();
+            UUID suppressed = UUID.randomUUID();
+            scope.register(held, state);
+            scope.register(suppressed, state);
+            scope.deregister(held);
+            scope.deregister(suppressed);
+            scope.register(suppressed, state);
+            scope.deregister(suppressed);
+            assertEquals(Arrays.asList(ServiceEvent.EventType.REGISTERED),
+                         events.get(held));
+            assertEquals(Arrays.asList(ServiceEvent.EventType.REGISTERED),
+                         events.get(suppressed));
+            assertEquals(1, statistics.getHeldDownServices());
+            assertEquals(1, statistics.getSuppressedServices());
+            assertEquals(2, statistics.getFlapPenalties().size());
+            assertEquals(3000.0,
+                         statistics.getFlapPenalties().get(suppressed.toString()),
+                         1.0);
+
+            // the held and suppressed events are released
+            scope.setFlapDamping(null);
+            List<ServiceEvent.EventType> withdrawn = Arrays.asList(ServiceEvent.EventType.REGISTERED,
+                                                                   ServiceEvent.EventType.UNREGISTERED);
+            assertEquals(withdrawn, events.get(held));
+            assertEquals(withdrawn, events.get(suppressed));
+            assertEquals(0, statistics.getHeldDownServices());
+            assertEquals(0, statistics.getSuppressedServices());
+            assertTrue(statistics.getFlapPenalties().isEmpty());
+
+            // withdrawals are no longer damped
+            scope.register(held, state);
+            scope.deregister(held);
+            assertEquals(Arrays.asList(ServiceEvent.EventType.REGISTERED,
+                                       ServiceEvent.EventType.UNREGISTERED,
+                                       ServiceEvent.EventType.REGISTERED,
+                                       ServiceEvent.EventType.UNREGISTERED),
+                         events.get(held));
+            assertEquals(null, scope.getFlapState(held));
+        } finally {
+            scope.stop();
+        }
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        final Map<UUID, ServiceEvent.EventType> events = new ConcurrentHashMap<UUID, ServiceEvent.EventType>();
+        final GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+        scope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.put(event.getReference().getRegistration(),
+                           event.getType());
+            }
+        }, String.format("(%s=service:leased)", ServiceScope.SERVICE_TYPE));
+        scope.start();
+        try {
+            final UUID remote = UUID.randomUUID();
+            scope.register(remote,
+                           GossipScope.serialize(new ServiceURL(
+                                                                "service:leased://remote:1"),
+                                                 Collections.singletonMap(GossipScope.LEASE_TTL,
+                                                                          "300"),
+                                                 1433));
+            final Map<String, String> properties = Collections.singletonMap(GossipScope.LEASE_TTL,
+                                                                            "2000");
+            final UUID local = scope.register(new ServiceURL(
+                                                             "service:leased://local:2"),
+                                              properties);
+
+            // the remote service expires while the local lease is renewed
+            assertTrue(Await.until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    scope.setProperties(local, properties);
+                    return events.get(remote) == ServiceEvent.EventType.UNREGISTERED;
+                }
+            }, 10, TimeUnit.SECONDS));
+            assertEquals(null, scope.getReference(remote));
+            assertEquals(ServiceEvent.EventType.MODIFIED, events.get(local));
+
+            assertTrue(Await.until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return events.get(local) == ServiceEvent.EventType.UNREGISTERED;
+                }
+            }, 10, TimeUnit.SECONDS));
+            assertEquals(0,
+                         scope.getServiceReferences("service:leased", null)
+                              .size());
+        } finally {
+            scope.stop();
+        }
+    }
+
     @Test
     public void testMultipleRegistrations() throws Exception {
         final AtomicInteger count = new AtomicInteger();
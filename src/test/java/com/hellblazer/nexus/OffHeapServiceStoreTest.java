@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class OffHeapServiceStoreTest {
+
+    private static ServiceReferenceImpl reference(UUID registration,
+                                                  String type, int padding)
+                                                                           throws Exception {
+        ServiceURL url = new ServiceURL(String.format("service:%s://host:%s",
+                                                      type, padding));
+        Map<String, String> properties = new HashMap<String, String>();
+        for (int i = 0; padding > 0; i++, padding -= 200) {
+            char[] pad = new char[Math.min(200, padding)];
+            Arrays.fill(pad, 'p');
+            properties.put("pad" + i, new String(pad));
+        }
+        GossipScope.normalize(url, properties, registration);
+        return new ServiceReferenceImpl(url, properties, registration);
+    }
+
+    @Test
+    public void testConcurrentIndexing() throws Exception {
+        final NumericIndex index = new NumericIndex();
+        index.setProperties(Collections.singletonList("load"),
+                            Collections.<ServiceReference> emptyList());
+        final OffHeapServiceStore store = new OffHeapServiceStore(
+                                                                  index,
+                                                                  new FootprintAccount(),
+                                                                  1433);
+        final UUID registration = UUID.randomUUID();
+        final ServiceURL url = new ServiceURL("service:foo://foo:1");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        Map<String, String> properties = new HashMap<String, String>();
+                        properties.put("load", String.valueOf(i * 4 + offset));
+                        GossipScope.normalize(url, properties, registration);
+                        store.put(new ServiceReferenceImpl(url, properties,
+                                                           registration));
+                        if (i % 7 == offset) {
+                            store.remove(registration);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<NumericIndex.Key> indexed = index.range("service:foo", "load",
+                                                     Double.NEGATIVE_INFINITY,
+                                                     Double.POSITIVE_INFINITY);
+        ServiceReferenceImpl ref = store.get(registration);
+        if (ref == null) {
+            assertTrue(indexed.isEmpty());
+            assertEquals(0, store.size());
+        } else {
+            assertEquals(1, indexed.size());
+            assertEquals(Double.parseDouble(ref.getProperties().get("load")),
+                         indexed.get(0).getValue().doubleValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void testModel() throws Exception {
+        Random entropy = new Random(666);
+        OffHeapServiceStore store = new OffHeapServiceStore(new NumericIndex(),
+                                                            new FootprintAccount(),
+                                                            1433);
+        Map<UUID, ServiceReferenceImpl> model = new HashMap<UUID, ServiceReferenceImpl>();
+        List<UUID> keys = new ArrayList<UUID>();
+        for (int i = 0; i < 20000; i++) {
+            int op = entropy.nextInt(10);
+            if (op < 6 || keys.isEmpty()) {
+                UUID id = UUID.randomUUID();
+                ServiceReferenceImpl ref = reference(id,
+                                                     entropy.nextBoolean() ? "db"
+                                                                          : "cache",
+                                                     entropy.nextInt(200));
+                assertTrue(store.put(ref));
+                model.put(id, ref);
+                keys.add(id);
+            } else if (op < 8) {
+                UUID id = keys.get(entropy.nextInt(keys.size()));
+                ServiceReferenceImpl ref = reference(id, "db",
+                                                     entropy.nextInt(1000));
+                assertFalse(store.put(ref));
+                assertFalse(store.putIfAbsent(ref));
+                model.put(id, ref);
+            } else {
+                UUID id = keys.remove(entropy.nextInt(keys.size()));
+                ServiceReferenceImpl removed = store.remove(id);
+                assertEquals(model.remove(id).getProperties(),
+                             removed.getProperties());
+                assertNull(store.remove(id));
+            }
+        }
+        assertEquals(model.size(), store.size());
+        for (Map.Entry<UUID, ServiceReferenceImpl> entry : model.entrySet()) {
+            assertEquals(entry.getValue().getProperties(),
+                         store.get(entry.getKey()).getProperties());
+        }
+
+        Set<UUID> iterated = new HashSet<UUID>();
+        for (ServiceReference ref : store) {
+            assertTrue(iterated.add(ref.getRegistration()));
+        }
+        assertEquals(model.keySet(), iterated);
+
+        int dbs = 0;
+        for (ServiceReferenceImpl ref : model.values()) {
+            if (ref.getUrl().toString().startsWith("service:db:")) {
+                dbs++;
+            }
+        }
+        assertEquals(dbs,
+                     store.parallelScan("service:db", null, new ForkJoinPool())
+                          .size());
+        assertEquals(model.size(), store.snapshot().size());
+
+        List<ServiceReferenceImpl> removed = store.removeAll(model.keySet());
+        assertEquals(model.size(), removed.size());
+        assertEquals(0, store.size());
+        assertFalse(store.iterator().hasNext());
+    }
+
+    @Test
+    public void testReclamation() throws Exception {
+        OffHeapServiceStore store = new OffHeapServiceStore(new NumericIndex(),
+                                                            new FootprintAccount(),
+                                                            1433);
+        List<UUID> ids = new ArrayList<UUID>();
+        for (int i = 0; i < 40000; i++) {
+            UUID id = UUID.randomUUID();
+            ServiceReferenceImpl ref = reference(id, "db", 0);
+            assertTrue(store.put(ref,
+                                 GossipScope.serialize(ref.getUrl(),
+                                                       ref.getProperties(),
+                                                       1433)));
+            ids.add(id);
+        }
+        // 40000 blocks of 64 bytes fill three slabs
+        long full = store.getAllocatedBytes();
+
+        // emptied slabs are returned, the slab being filled is retained
+        Iterator<ServiceReference> iteration = store.iterator();
+        assertEquals(ids.size(), store.removeAll(ids).size());
+        assertEquals(full - 2L * OffHeapServiceStore.SLAB_SIZE,
+                     store.getAllocatedBytes());
+        while (iteration.hasNext()) {
+            iteration.next();
+        }
+
+        ids.clear();
+        for (int i = 0; i < 1000; i++) {
+            UUID id = UUID.randomUUID();
+            assertTrue(store.put(reference(id, "cache", 400)));
+            ids.add(id);
+        }
+        Set<UUID> iterated = new HashSet<UUID>();
+        for (ServiceReference ref : store) {
+            assertTrue(iterated.add(ref.getRegistration()));
+        }
+        assertEquals(new HashSet<UUID>(ids), iterated);
+    }
+
+    @Test
+    public void testOffHeapScope() throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct(), true);
+        Map<ServiceURL, Map<String, String>> registrations = new LinkedHashMap<ServiceURL, Map<String, String>>();
+        for (int i = 0; i < 2000; i++) {
+            registrations.put(new ServiceURL(
+                                             String.format("service:%s://host:%s",
+                                                           i % 2 == 0 ? "db"
+                                                                     : "cache",
+                                                           i)),
+                              Collections.singletonMap("zone",
+                                                       String.valueOf(i % 4)));
+        }
+        Map<ServiceURL, UUID> ids = scope.registerAll(registrations);
+
+        assertEquals(500, scope.getServiceReferences("service:db", "(zone=0)")
+                               .size());
+        assertEquals(10,
+                     scope.getServiceReferences("service:db", "(zone=0)", 10)
+                          .size());
+        scope.setParallelThreshold(100);
+        assertEquals(1000, scope.getServiceReferences("service:cache", null)
+                                .size());
+
+        UUID id = ids.values().iterator().next();
+        scope.setProperties(id, Collections.singletonMap("zone", "9"));
+        assertEquals("9", scope.getReference(id).getProperties().get("zone"));
+        scope.unregister(id);
+        assertNull(scope.getReference(id));
+        assertEquals(1999, scope.getServiceReferences("*", null).size());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class PropertyFootprintTest {
+    private static final int SERVICES = 20000;
+
+    private static byte[] state(int i) throws Exception {
+        ServiceURL url = new ServiceURL(
+                                        String.format("service:http://host-%s:%s/api",
+                                                      i, 8000 + i % 100));
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("zone", "zone-" + i % 4);
+        properties.put("region", "us-east");
+        properties.put("version", "1.2." + i % 3);
+        properties.put("protocol", "http");
+        properties.put("tier", i % 2 == 0 ? "frontend" : "backend");
+        properties.put("owner", "platform");
+        return GossipScope.serialize(url, properties, 1024);
+    }
+
+    @Test
+    public void testFootprint() throws Exception {
+        List<UUID> ids = new ArrayList<UUID>();
+        List<byte[]> states = new ArrayList<byte[]>();
+        for (int i = 0; i < SERVICES; i++) {
+            ids.add(UUID.randomUUID());
+            states.add(state(i));
+        }
+
+        List<ServiceReference> after = new ArrayList<ServiceReference>();
+        for (int i = 0; i < SERVICES; i++) {
+            after.add(GossipScope.deserialize(ids.get(i), states.get(i)));
+        }
+        assertEquals(SERVICES, after.size());
+
+        // property strings are shared, registrations are not
+        Map<String, String> first = after.get(0).getProperties();
+        Map<String, String> third = after.get(2).getProperties();
+        assertSame(first.get("region"), third.get("region"));
+        assertSame(first.get(ServiceScope.SERVICE_TYPE),
+                   third.get(ServiceScope.SERVICE_TYPE));
+        assertEquals(ids.get(0).toString(),
+                     first.get(ServiceScope.SERVICE_REGISTRATION));
+    }
+
+    @Test
+    public void testStringPool() {
+        StringPool pool = new StringPool(8);
+        String key = new String("key");
+        assertSame(key, pool.intern(key));
+        assertSame(key, pool.intern(new String("key")));
+
+        // values are shared only once they repeat
+        String value = new String("value");
+        String unique = new String("unique");
+        assertSame(value, pool.share(value));
+        assertSame(unique, pool.share(unique));
+        assertSame(value, pool.share(new String("value")));
+        assertSame(value, pool.share(new String("value")));
+        assertEquals(2, pool.size());
+
+        // the pool is bounded, aging out strings no longer in use
+        for (int i = 0; i < 100; i++) {
+            pool.intern(String.valueOf(i));
+        }
+        assertTrue(pool.size() <= 8);
+        String aged = new String("key");
+        assertSame(aged, pool.intern(aged));
+    }
+
+    @Test
+    public void testCompactProperties() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("a", "1");
+        properties.put("b", "2");
+        Map<String, String> compact = CompactProperties.of(properties);
+        assertEquals(properties, compact);
+        assertEquals(properties.hashCode(), compact.hashCode());
+        assertEquals("2", compact.get(new String("b")));
+        assertTrue(!compact.containsKey("c"));
+        try {
+            compact.put("c", "3");
+            assertTrue("properties are mutable", false);
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRegistryFootprint() throws Exception {
+        testRegistryFootprint(false);
+        testRegistryFootprint(true);
+    }
+
+    private void testRegistryFootprint(boolean offHeap) throws Exception {
+        GossipScope scope = new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct(), offHeap);
+        scope.setInterests(Collections.singletonList("service:foo"));
+
+        List<UUID> ids = new ArrayList<UUID>();
+        long stateBytes = 0;
+        long dormantBytes = 0;
+        for (int i = 0; i < 13; i++) {
+            ServiceURL url = new ServiceURL(
+                                            String.format(i < 10 ? "service:foo://foo-%s:5"
+                                                                : "service:bar://bar-%s:6",
+                                                          i));
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("zone", "zone-" + i % 4);
+            byte[] state = GossipScope.serialize(url, properties, 1433);
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            scope.register(id, state);
+            if (i < 10) {
+                stateBytes += state.length;
+            } else {
+                dormantBytes += state.length;
+            }
+        }
+
+        RegistryFootprint footprint = scope.getFootprint();
+        assertEquals(10, footprint.getServices());
+        assertEquals(stateBytes, footprint.getStateBytes());
+        assertEquals(3, footprint.getDormantServices());
+        assertEquals(dormantBytes, footprint.getDormantBytes());
+        assertEquals(Collections.singleton("service:foo"),
+                     footprint.getServiceTypes().keySet());
+        assertEquals(Collections.singletonMap("service:foo", 10),
+                     scope.getServiceCounts());
+        assertEquals(offHeap, footprint.getHeapBytes() == 0);
+        assertEquals(offHeap, footprint.getOffHeapBytes() > 0);
+        assertEquals(0, footprint.getPendingNotifications());
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("zone", "a-much-longer-zone");
+        byte[] updated = GossipScope.serialize(new ServiceURL(
+                                                              "service:foo://foo-0:5"),
+                                               properties, 1433);
+        byte[] original = GossipScope.serialize(scope.getReference(ids.get(0)).getUrl(),
+                                                scope.getReference(ids.get(0)).getProperties(),
+                                                1433);
+        scope.update(ids.get(0), updated);
+        stateBytes += updated.length - original.length;
+        assertEquals(stateBytes, scope.getFootprint().getStateBytes());
+
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+            }
+        };
+        scope.addServiceListener(listener,
+                                 String.format("(%s=service:foo)",
+                                               ServiceScope.SERVICE_TYPE));
+        assertEquals(1, scope.getFootprint().getListeners());
+        scope.removeServiceListener(listener);
+        assertEquals(0, scope.getFootprint().getListeners());
+
+        for (UUID id : ids) {
+            scope.deregister(id);
+        }
+        footprint = scope.getFootprint();
+        assertEquals(0, footprint.getServices());
+        assertEquals(0, footprint.getStateBytes());
+        assertEquals(0, footprint.getHeapBytes());
+        assertEquals(0, footprint.getDormantServices());
+        assertEquals(0, footprint.getDormantBytes());
+        assertTrue(footprint.getServiceTypes().isEmpty());
+        assertTrue(scope.getServiceCounts().isEmpty());
+    }
+}
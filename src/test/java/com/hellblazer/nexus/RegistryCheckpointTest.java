@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class RegistryCheckpointTest {
+
+    private static GossipScope scope() throws Exception {
+        return new GossipScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new GossipConfiguration().construct());
+    }
+
+    private static byte[] state(int i) throws Exception {
+        return GossipScope.serialize(new ServiceURL(
+                                                    String.format("service:db://host:%s",
+                                                                  i)),
+                                     Collections.singletonMap("zone",
+                                                              String.valueOf(i % 4)),
+                                     1433);
+    }
+
+    @Test
+    public void testCorruption() throws Exception {
+        File file = File.createTempFile("registry", ".checkpoint");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(666L);
+        raf.writeLong(666L);
+        raf.writeLong(666L);
+        raf.close();
+        try {
+            new RegistryCheckpoint(file).read();
+            fail("Corrupt checkpoint was read");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(file.delete());
+        assertTrue(new RegistryCheckpoint(file).read().isEmpty());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        File file = File.createTempFile("registry", ".checkpoint");
+        file.deleteOnExit();
+        RegistryCheckpoint checkpoint = new RegistryCheckpoint(file);
+        RegistryCheckpoint.Writer writer = checkpoint.writer(System.currentTimeMillis());
+        try {
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        assertEquals(20, file.length());
+        assertTrue(checkpoint.read().isEmpty());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("registry", ".checkpoint");
+        file.deleteOnExit();
+        RegistryCheckpoint checkpoint = new RegistryCheckpoint(file);
+        List<UUID> ids = new ArrayList<UUID>();
+        List<byte[]> states = new ArrayList<byte[]>();
+        RegistryCheckpoint.Writer writer = checkpoint.writer(System.currentTimeMillis());
+        try {
+            // enough entries to span several mapped windows
+            for (int i = 0; i < 50000; i++) {
+                ids.add(UUID.randomUUID());
+                states.add(state(i));
+                writer.append(ids.get(i), states.get(i), i);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        List<RegistryCheckpoint.Entry> entries = checkpoint.read();
+        assertEquals(ids.size(), entries.size());
+        for (int i = 0; i < ids.size(); i++) {
+            RegistryCheckpoint.Entry entry = entries.get(i);
+            assertEquals(ids.get(i), entry.id);
+            assertEquals(i, entry.lastSeen);
+            assertArrayEquals(states.get(i), entry.state);
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        File file = File.createTempFile("registry", ".checkpoint");
+        file.deleteOnExit();
+        GossipScope scope = scope();
+        scope.setCheckpoint(file, 1, 1, TimeUnit.HOURS);
+        final List<UUID> remote = new ArrayList<UUID>();
+        for (int i = 0; i < 10; i++) {
+            UUID id = UUID.randomUUID();
+            remote.add(id);
+            scope.register(id, state(i));
+        }
+        UUID local = scope.register(new ServiceURL("service:db://local:1"),
+                                    Collections.<String, String> emptyMap());
+        scope.checkpoint();
+
+        final Map<UUID, EventType> events = new ConcurrentHashMap<UUID, EventType>();
+        final GossipScope restarted = scope();
+        restarted.setCheckpoint(file, 3600000, 500, TimeUnit.MILLISECONDS);
+        restarted.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.put(event.getReference().getRegistration(),
+                           event.getType());
+            }
+        }, "(service.type=service:db)");
+        restarted.start();
+        assertEquals(10, restarted.getServiceReferences("service:db", null)
+                                  .size());
+        assertNull(restarted.getReference(local));
+        for (UUID id : remote) {
+            assertTrue(restarted.isProvisional(id));
+            assertEquals(EventType.REGISTERED, events.get(id));
+        }
+
+        UUID confirmed = remote.get(0);
+        restarted.register(confirmed, state(0));
+        assertFalse(restarted.isProvisional(confirmed));
+        assertEquals(EventType.MODIFIED, events.get(confirmed));
+
+        assertTrue(Await.until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return restarted.getServiceReferences("service:db", null).size() == 1
+                       && events.get(remote.get(1)) == EventType.UNREGISTERED;
+            }
+        }, 10, TimeUnit.SECONDS));
+        assertNotNull(restarted.getReference(confirmed));
+        restarted.stop();
+
+        List<RegistryCheckpoint.Entry> entries = new RegistryCheckpoint(file).read();
+        assertEquals(1, entries.size());
+        assertEquals(confirmed, entries.get(0).id);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class RegistrySnapshotTest {
+
+    private static ServiceReferenceImpl reference(UUID registration, int port)
+                                                                              throws Exception {
+        ServiceURL url = new ServiceURL(
+                                        String.format("service:foo://foo:%s",
+                                                      port));
+        Map<String, String> properties = new HashMap<String, String>();
+        GossipScope.normalize(url, properties, registration);
+        return new ServiceReferenceImpl(url, properties, registration);
+    }
+
+    @Test
+    public void testCollisions() throws Exception {
+        UUID a = new UUID(0x1234L, 0x5678L);
+        UUID b = new UUID(0x1234L ^ 0xFFL, 0x5678L ^ 0xFFL);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        RegistrySnapshot snapshot = RegistrySnapshot.empty().put(reference(a,
+                                                                           1));
+        snapshot = snapshot.put(reference(b, 2));
+        assertEquals(2, snapshot.size());
+        assertEquals(a, snapshot.get(a).getRegistration());
+        assertEquals(b, snapshot.get(b).getRegistration());
+
+        RegistrySnapshot removed = snapshot.remove(a);
+        assertEquals(1, removed.size());
+        assertNull(removed.get(a));
+        assertEquals(b, removed.get(b).getRegistration());
+        assertEquals(a, snapshot.get(a).getRegistration());
+    }
+
+    @Test
+    public void testConcurrentIndexing() throws Exception {
+        final NumericIndex index = new NumericIndex();
+        index.setProperties(Collections.singletonList("load"),
+                            Collections.<ServiceReference> emptyList());
+        final ServiceRegistry registry = new ServiceRegistry(
+                                                             index,
+                                                             new FootprintAccount());
+        final UUID registration = UUID.randomUUID();
+        final ServiceURL url = new ServiceURL("service:foo://foo:1");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        Map<String, String> properties = new HashMap<String, String>();
+                        properties.put("load", String.valueOf(i * 4 + offset));
+                        GossipScope.normalize(url, properties, registration);
+                        registry.put(new ServiceReferenceImpl(url, properties,
+                                                              registration));
+                        if (i % 7 == offset) {
+                            registry.remove(registration);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<NumericIndex.Key> indexed = index.range("service:foo", "load",
+                                                     Double.NEGATIVE_INFINITY,
+                                                     Double.POSITIVE_INFINITY);
+        ServiceReferenceImpl ref = registry.get(registration);
+        if (ref == null) {
+            assertTrue(indexed.isEmpty());
+            assertEquals(0, registry.snapshot().size());
+        } else {
+            assertEquals(1, indexed.size());
+            assertEquals(Double.parseDouble(ref.getProperties().get("load")),
+                         indexed.get(0).getValue().doubleValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        Random entropy = new Random(666);
+        Map<UUID, ServiceReferenceImpl> model = new HashMap<UUID, ServiceReferenceImpl>();
+        List<UUID> keys = new ArrayList<UUID>();
+        RegistrySnapshot snapshot = RegistrySnapshot.empty();
+        RegistrySnapshot checkpoint = null;
+        Map<UUID, ServiceReferenceImpl> checkpointModel = null;
+        for (int i = 0; i < 20000; i++) {
+            if (keys.isEmpty() || entropy.nextDouble() < 0.6) {
+                UUID key = new UUID(entropy.nextLong(), entropy.nextLong());
+                ServiceReferenceImpl ref = reference(key, i);
+                keys.add(key);
+                model.put(key, ref);
+                snapshot = snapshot.put(ref);
+            } else if (entropy.nextBoolean()) {
+                UUID key = keys.get(entropy.nextInt(keys.size()));
+                ServiceReferenceImpl ref = reference(key, i);
+                model.put(key, ref);
+                snapshot = snapshot.put(ref);
+            } else {
+                UUID key = keys.remove(entropy.nextInt(keys.size()));
+                model.remove(key);
+                snapshot = snapshot.remove(key);
+            }
+            if (i == 10000) {
+                checkpoint = snapshot;
+                checkpointModel = new HashMap<UUID, ServiceReferenceImpl>(
+                                                                          model);
+            }
+        }
+        verify(model, snapshot);
+        verify(checkpointModel, checkpoint);
+        assertTrue(snapshot.getVersion() > checkpoint.getVersion());
+        assertSame(snapshot, snapshot.remove(UUID.randomUUID()));
+    }
+
+    private void verify(Map<UUID, ServiceReferenceImpl> model,
+                        RegistrySnapshot snapshot) {
+        assertEquals(model.size(), snapshot.size());
+        for (Map.Entry<UUID, ServiceReferenceImpl> entry : model.entrySet()) {
+            assertSame(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        Set<UUID> iterated = new HashSet<UUID>();
+        for (ServiceReference ref : snapshot) {
+            assertTrue(iterated.add(ref.getRegistration()));
+        }
+        assertEquals(model.keySet(), iterated);
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * A load generator for scopes at scale, replicating through a
+ * {@link SimulatedNetwork} in one JVM. The driver registers services on
+ * random scopes, then updates each of them for a number of rounds, waiting
+ * for every scope to be notified of every registration and update before the
+ * next round. It reports the convergence time of the registrations and
+ * updates, the latency from publication to notification, the event
+ * throughput, and the heap retained per scope.
+ * <p>
+ * The scopes are started, and share one scheduler for their lease wheels and
+ * throttled updates, so that thousands of them do not each start a timer
+ * thread.
+ * 
+ * <pre>
+ * ScaleDriver [nodes [services [rounds [fanout [loss [min latency ms [max latency ms]]]]]]]
+ * </pre>
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ScaleDriver {
+
+    /**
+     * The results of a run
+     */
+    public static class Report {
+        public final HistogramSummary callbackTime;
+        public final HistogramSummary convergence;
+        public final long             dropped;
+        public final long             events;
+        public final double           eventsPerSecond;
+        public final long             heapPerNode;
+        public final HistogramSummary notificationLatency;
+        public final int              nodes;
+        public final int              pending;
+        public final int              publications;
+        public final long             sent;
+
+        Report(int nodes, int publications, int pending,
+               HistogramSummary convergence,
+               HistogramSummary notificationLatency,
+               HistogramSummary callbackTime, long events,
+               double eventsPerSecond, long heapPerNode, long sent,
+               long dropped) {
+            this.nodes = nodes;
+            this.publications = publications;
+            this.pending = pending;
+            this.convergence = convergence;
+            this.notificationLatency = notificationLatency;
+            this.callbackTime = callbackTime;
+            this.events = events;
+            this.eventsPerSecond = eventsPerSecond;
+            this.heapPerNode = heapPerNode;
+            this.sent = sent;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("nodes: %s, publications: %s, unconverged: %s%n"
+                                         + "convergence (ms): %s%n"
+                                         + "notification latency (ms): %s%n"
+                                         + "listener callback (ns): %s%n"
+                                         + "events: %s, %.0f events/s%n"
+                                         + "heap per node: %s bytes%n"
+                                         + "messages sent: %s, dropped: %s",
+                                 nodes, publications, pending, convergence,
+                                 notificationLatency, callbackTime, events,
+                                 eventsPerSecond, heapPerNode, sent, dropped);
+        }
+    }
+
+    /**
+     * The notifications of a registration or update
+     */
+    private static class Publication {
+        final AtomicInteger arrivals = new AtomicInteger();
+        volatile long       last;
+        final long          origin;
+
+        Publication(long origin) {
+            this.origin = origin;
+        }
+    }
+
+    private class Receiver implements ServiceListener {
+        @Override
+        public void serviceChanged(ServiceEvent event) {
+            if (event.getType() == EventType.UNREGISTERED) {
+                return;
+            }
+            Map<String, String> properties = event.getReference().getProperties();
+            String published = properties.get(PUBLISHED);
+            if (published == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long origin = Long.parseLong(published);
+            String key = event.getReference().getRegistration() + "@"
+                         + properties.get(ROUND);
+            Publication publication = publications.get(key);
+            if (publication == null) {
+                publication = new Publication(origin);
+                Publication existing = publications.putIfAbsent(key,
+                                                                publication);
+                if (existing != null) {
+                    publication = existing;
+                }
+            }
+            latency.record(now - origin);
+            events.increment();
+            publication.last = now;
+            publication.arrivals.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return LISTENER;
+        }
+    }
+
+    public static final String LISTENER     = "ScaleDriver";
+    public static final String PUBLISHED    = "scale.published";
+    public static final String ROUND        = "scale.round";
+    public static final String SERVICE_TYPE = "service:scale";
+
+    public static void main(String[] argv) throws Exception {
+        int nodes = argv.length > 0 ? Integer.parseInt(argv[0]) : 1000;
+        int services = argv.length > 1 ? Integer.parseInt(argv[1]) : 100;
+        int rounds = argv.length > 2 ? Integer.parseInt(argv[2]) : 1;
+        SimulatedNetwork network = new SimulatedNetwork();
+        network.setFanout(argv.length > 3 ? Integer.parseInt(argv[3]) : 4);
+        network.setLoss(argv.length > 4 ? Double.parseDouble(argv[4]) : 0.0);
+        network.setLatency(argv.length > 5 ? Long.parseLong(argv[5]) : 1,
+                           argv.length > 6 ? Long.parseLong(argv[6]) : 10,
+                           TimeUnit.MILLISECONDS);
+        ScaleDriver driver = new ScaleDriver(network, nodes);
+        try {
+            System.out.println(driver.run(services, rounds, 10,
+                                          TimeUnit.MINUTES));
+        } finally {
+            driver.stop();
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private final long                              baseline;
+    private final StripedCounter                    events       = new StripedCounter();
+    private final ExecutorService                   executor;
+    private final Histogram                         latency      = new Histogram();
+    private final SimulatedNetwork                  network;
+    private final ConcurrentMap<String, Publication> publications = new ConcurrentHashMap<String, Publication>();
+    private final List<GossipScope>                 scopes;
+    private final GossipScopeStatistics             statistics;
+    private final ScheduledExecutorService          timer;
+
+    /**
+     * @param network
+     *            - the network the scopes replicate through
+     * @param nodes
+     *            - the number of scopes
+     */
+    public ScaleDriver(SimulatedNetwork network, int nodes) {
+        this.network = network;
+        baseline = usedHeap();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                GossipScope.daemonThreads("Scale driver"));
+        timer = Executors.newSingleThreadScheduledExecutor(GossipScope.daemonThreads("Scale driver timer"));
+        List<GossipScope> created = new ArrayList<GossipScope>(nodes);
+        Receiver receiver = new Receiver();
+        for (int i = 0; i < nodes; i++) {
+            GossipScope scope = new GossipScope(executor, network.join());
+            scope.setTimer(timer);
+            try {
+                scope.addServiceListener(receiver,
+                                         String.format("(%s=%s)",
+                                                       ServiceScope.SERVICE_TYPE,
+                                                       SERVICE_TYPE));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            created.add(scope);
+        }
+        scopes = Collections.unmodifiableList(created);
+        statistics = new GossipScopeStatistics(scopes.get(0));
+        for (GossipScope scope : scopes) {
+            scope.setMetrics(statistics);
+            scope.start();
+        }
+    }
+
+    /**
+     * @return the footprint of each scope, in the order of the scopes
+     */
+    public List<RegistryFootprint> getFootprints() {
+        List<RegistryFootprint> footprints = new ArrayList<RegistryFootprint>(
+                                                                              scopes.size());
+        for (GossipScope scope : scopes) {
+            footprints.add(scope.getFootprint());
+        }
+        return footprints;
+    }
+
+    public List<GossipScope> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * The statistics shared by the scopes. The measurements of the hot paths
+     * aggregate those of every scope, but the footprint and service counts
+     * reported are those of the first scope only; the footprint of each node
+     * is answered by {@link #getFootprints()}
+     * 
+     * @return the shared statistics
+     */
+    public GossipScopeStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Register the services on random scopes, then update each service for
+     * the number of rounds
+     * 
+     * @param services
+     * @param rounds
+     * @param timeout
+     *            - the time to wait for each round to converge
+     * @param unit
+     * @return the report of the run
+     * @throws Exception
+     */
+    public Report run(int services, int rounds, long timeout, TimeUnit unit)
+                                                                            throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map<UUID, GossipScope> registrations = new HashMap<UUID, GossipScope>();
+        long elapsed = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < services; i++) {
+            GossipScope scope = scopes.get(random.nextInt(scopes.size()));
+            UUID id = scope.register(new ServiceURL(
+                                                    String.format("%s://10.%s.%s.%s:8080/",
+                                                                  SERVICE_TYPE,
+                                                                  (i >>> 16) & 0xFF,
+                                                                  (i >>> 8) & 0xFF,
+                                                                  i & 0xFF)),
+                                     propertiesOf(0));
+            registrations.put(id, scope);
+        }
+        boolean converged = await(services, timeout, unit);
+        elapsed += lastArrival() - start;
+        for (int round = 1; converged && round <= rounds; round++) {
+            start = System.currentTimeMillis();
+            for (Map.Entry<UUID, GossipScope> entry : registrations.entrySet()) {
+                entry.getValue().setProperties(entry.getKey(),
+                                               propertiesOf(round));
+            }
+            converged = await(services * (round + 1), timeout, unit);
+            elapsed += lastArrival() - start;
+        }
+        int pending = 0;
+        Histogram convergence = new Histogram();
+        for (Publication publication : publications.values()) {
+            if (publication.arrivals.get() < scopes.size()) {
+                pending++;
+            } else {
+                convergence.record(publication.last - publication.origin);
+            }
+        }
+        long heap = usedHeap();
+        long total = events.sum();
+        double throughput = elapsed == 0 ? 0.0 : total * 1000.0 / elapsed;
+        return new Report(scopes.size(), publications.size(), pending,
+                          convergence.summarize(), latency.summarize(),
+                          statistics.getListenerLatency().get(LISTENER),
+                          total, throughput, (heap - baseline) / scopes.size(),
+                          network.getSent(), network.getDropped());
+    }
+
+    /**
+     * Stop the network, then the scopes and their notification. The network
+     * is stopped first, so that the deregistrations of the stopping scopes
+     * are not delivered to scopes whose notification has stopped
+     */
+    public void stop() {
+        network.shutdown();
+        for (GossipScope scope : scopes) {
+            scope.stop();
+        }
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Wait for every scope to be notified of the publications
+     * 
+     * @return true if the publications converged within the timeout
+     */
+    private boolean await(int expected, long timeout, TimeUnit unit)
+                                                                    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (System.currentTimeMillis() < deadline) {
+            if (publications.size() >= expected && isConverged()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private boolean isConverged() {
+        for (Publication publication : publications.values()) {
+            if (publication.arrivals.get() < scopes.size()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long lastArrival() {
+        long last = 0;
+        for (Publication publication : publications.values()) {
+            last = Math.max(last, publication.last);
+        }
+        return last;
+    }
+
+    private Map<String, String> propertiesOf(int round) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(PUBLISHED, Long.toString(System.currentTimeMillis()));
+        properties.put(ROUND, Integer.toString(round));
+        return properties;
+    }
+}
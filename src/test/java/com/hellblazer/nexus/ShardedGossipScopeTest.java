@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class ShardedGossipScopeTest {
+
+    @Test
+    public void testRegistrationWithdrawnByShard() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        List<GossipScope> shards = new ArrayList<GossipScope>();
+        for (int i = 0; i < 2; i++) {
+            shards.add(new GossipScope(executor,
+                                       new GossipConfiguration().construct()));
+        }
+        ShardedGossipScope scope = new ShardedGossipScope(
+                                                          shards,
+                                                          Collections.singletonMap("service:foo",
+                                                                                   1));
+        UUID foo = scope.register(new ServiceURL("service:foo:http://foo:5"),
+                                  Collections.<String, String> emptyMap());
+        assertTrue(scope.isRegistered(foo));
+
+        // the shard unregisters the service, as it does when its lease expires
+        shards.get(1).unregister(foo);
+        assertFalse(scope.isRegistered(foo));
+        assertNull(scope.getReference(foo));
+        scope.setProperties(foo, Collections.singletonMap("load", "1"));
+        assertNull(shards.get(1).getReference(foo));
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                count.incrementAndGet();
+            }
+        };
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        List<GossipScope> shards = new ArrayList<GossipScope>();
+        for (int i = 0; i < 3; i++) {
+            shards.add(new GossipScope(executor,
+                                       new GossipConfiguration().construct()));
+        }
+        Map<String, Integer> shardTable = new HashMap<String, Integer>();
+        shardTable.put("service:foo", 2);
+        shardTable.put("service:bar", 1);
+        ShardedGossipScope scope = new ShardedGossipScope(shards, shardTable);
+        scope.addServiceListener(listener,
+                                 String.format("(%s=*)",
+                                               ServiceScope.SERVICE_TYPE));
+
+        assertEquals(2, scope.shardOf("service:foo:http"));
+        assertEquals(1, scope.shardOf("service:bar"));
+
+        UUID foo = scope.register(new ServiceURL("service:foo:http://foo:5"),
+                                  Collections.<String, String> emptyMap());
+        UUID bar = scope.register(new ServiceURL("service:bar://bar:6"),
+                                  Collections.<String, String> emptyMap());
+        assertEquals(2, count.get());
+
+        assertNotNull(shards.get(2).getReference(foo));
+        assertNotNull(shards.get(1).getReference(bar));
+        assertEquals(1,
+                     scope.getServiceReferences("service:foo:http", null).size());
+        assertEquals(2, scope.getServiceReferences("*", null).size());
+
+        scope.setProperties(foo, Collections.singletonMap("load", "1"));
+        assertEquals("1",
+                     scope.getReference(foo).getProperties().get("load"));
+        scope.unregister(bar);
+        assertEquals(1, scope.getServiceReferences(null, null).size());
+        assertEquals(4, count.get());
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.gossip.GossipListener;
+import com.hellblazer.nexus.SimulatedNetwork.Version;
+
+/**
+ * A simulated endpoint of a gossip ring, replicating its states through a
+ * {@link SimulatedNetwork}. As with the ring, the listener is notified of the
+ * states replicated by other members only, and is notified serially. The
+ * endpoint is a member of the network from the time it joins until it is
+ * terminated, whether or not it is started; terminating the endpoint
+ * deregisters its states, as the ring does when it convicts a failed member.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SimulatedGossip implements GossipEndpoint {
+    private static final int                   BATCH    = 64;
+    private static final Logger                log      = LoggerFactory.getLogger(SimulatedGossip.class);
+
+    private final InetSocketAddress            address;
+    private final Runnable                     drain    = new Runnable() {
+                                                            @Override
+                                                            public void run() {
+                                                                drain();
+                                                            }
+                                                        };
+    private final AtomicBoolean                draining = new AtomicBoolean();
+    private final Queue<Version>               inbox    = new ConcurrentLinkedQueue<Version>();
+    private volatile GossipListener            listener;
+    private final SimulatedNetwork             network;
+    private final Set<UUID>                    owned    = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final ConcurrentMap<UUID, Version> states   = new ConcurrentHashMap<UUID, Version>();
+
+    SimulatedGossip(SimulatedNetwork network, InetSocketAddress address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    @Override
+    public void deregister(UUID id) {
+        if (!owned.remove(id)) {
+            return;
+        }
+        publish(id, null);
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return address;
+    }
+
+    @Override
+    public int getMaxStateSize() {
+        return network.getMaxStateSize();
+    }
+
+    /**
+     * @return the number of states replicated to this member, including
+     *         deregistered states
+     */
+    public int getStateCount() {
+        return states.size();
+    }
+
+    @Override
+    public UUID register(byte[] state) {
+        checkSize(state);
+        UUID id = UUID.randomUUID();
+        owned.add(id);
+        publish(id, state);
+        return id;
+    }
+
+    @Override
+    public void setListener(GossipListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void start() {
+        // the endpoint is a member of the network once it has joined
+    }
+
+    @Override
+    public void terminate() {
+        for (UUID id : new ArrayList<UUID>(owned)) {
+            deregister(id);
+        }
+        network.leave(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SimulatedGossip[%s]", address);
+    }
+
+    @Override
+    public void update(UUID id, byte[] state) {
+        checkSize(state);
+        if (!owned.contains(id)) {
+            throw new IllegalArgumentException(
+                                               String.format("%s is not registered by %s",
+                                                             id, this));
+        }
+        publish(id, state);
+    }
+
+    /**
+     * Deliver the version to this member
+     * 
+     * @param version
+     */
+    void deliver(Version version) {
+        inbox.add(version);
+        if (draining.compareAndSet(false, true)) {
+            network.process(drain);
+        }
+    }
+
+    /**
+     * Answer the versions of this member newer than the versions of the
+     * member
+     * 
+     * @param member
+     * @return
+     */
+    List<Version> newerThan(SimulatedGossip member) {
+        List<Version> newer = new ArrayList<Version>();
+        for (Map.Entry<UUID, Version> entry : states.entrySet()) {
+            Version known = member.states.get(entry.getKey());
+            if (known == null || known.version < entry.getValue().version) {
+                newer.add(entry.getValue());
+            }
+        }
+        return newer;
+    }
+
+    private void checkSize(byte[] state) {
+        if (state.length > network.getMaxStateSize()) {
+            throw new IllegalArgumentException(
+                                               String.format("State size %s exceeds the maximum state size %s",
+                                                             state.length,
+                                                             network.getMaxStateSize()));
+        }
+    }
+
+    private void drain() {
+        for (;;) {
+            for (int i = 0; i < BATCH; i++) {
+                Version version = inbox.poll();
+                if (version == null) {
+                    break;
+                }
+                receive(version);
+            }
+            if (inbox.isEmpty()) {
+                draining.set(false);
+                if (inbox.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            } else {
+                // yield the worker to the other members
+                network.process(drain);
+                return;
+            }
+        }
+    }
+
+    private void publish(UUID id, byte[] state) {
+        Version version;
+        synchronized (states) {
+            Version previous = states.get(id);
+            version = new Version(id, previous == null ? 0L
+                                                      : previous.version + 1,
+                                  state);
+            states.put(id, version);
+        }
+        network.spread(this, version);
+    }
+
+    private void receive(Version version) {
+        Version previous = states.get(version.id);
+        if (previous != null && previous.version >= version.version) {
+            return;
+        }
+        states.put(version.id, version);
+        network.spread(this, version);
+        GossipListener current = listener;
+        if (current == null) {
+            return;
+        }
+        try {
+            if (version.isDeregistered()) {
+                if (previous != null && !previous.isDeregistered()) {
+                    current.deregister(version.id);
+                }
+            } else if (previous == null || previous.isDeregistered()) {
+                current.register(version.id, version.state);
+            } else {
+                current.update(version.id, version.state);
+            }
+        } catch (Throwable e) {
+            log.error(String.format("Error notifying the listener of %s", this),
+                      e);
+        }
+    }
+}
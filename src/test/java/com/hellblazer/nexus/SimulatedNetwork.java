@@ -0,0 +1,376 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in process network of simulated gossip endpoints. States are spread by
+ * rumor mongering: the originator, and every member receiving a version it has
+ * not yet seen, forwards the version to a number of random members. Members
+ * periodically reconcile their states with a random member, as the ring's
+ * anti entropy does, so that states lost to message loss or partitions are
+ * eventually delivered. Every message is delayed by a random latency, may be
+ * lost, and is dropped if its sender and receiver are partitioned when it is
+ * sent.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SimulatedNetwork {
+
+    /**
+     * A version of a replicated state
+     */
+    static class Version {
+        final UUID   id;
+        final byte[] state;
+        final long   version;
+
+        Version(UUID id, long version, byte[] state) {
+            this.id = id;
+            this.version = version;
+            this.state = state;
+        }
+
+        /**
+         * @return true if the state has been deregistered
+         */
+        boolean isDeregistered() {
+            return state == null;
+        }
+    }
+
+    public static final int                        DEFAULT_MAX_STATE_SIZE = 4096;
+
+    private volatile ScheduledFuture<?>            antiEntropy;
+    private final AtomicLong                       dropped                = new AtomicLong();
+    private volatile int                           fanout                 = 4;
+    private volatile double                        loss;
+    private volatile long                          maxLatency;
+    private volatile int                           maxStateSize           = DEFAULT_MAX_STATE_SIZE;
+    private final List<SimulatedGossip>            members                = new CopyOnWriteArrayList<SimulatedGossip>();
+    private volatile long                          minLatency;
+    private final AtomicInteger                    nextAddress            = new AtomicInteger();
+    private volatile Map<SimulatedGossip, Integer> partitions             = Collections.emptyMap();
+    private final ScheduledExecutorService         scheduler;
+    private final AtomicLong                       sent                   = new AtomicLong();
+    private final ExecutorService                  workers;
+
+    public SimulatedNetwork() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            - the number of threads delivering messages to, and
+     *            processing the messages of, the members
+     */
+    public SimulatedNetwork(int threads) {
+        scheduler = Executors.newScheduledThreadPool(threads,
+                                                     GossipScope.daemonThreads("Simulated latency"));
+        workers = Executors.newFixedThreadPool(threads,
+                                               GossipScope.daemonThreads("Simulated gossip"));
+        setAntiEntropy(500, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of messages lost or dropped by partitions
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public List<SimulatedGossip> getMembers() {
+        return Collections.unmodifiableList(members);
+    }
+
+    /**
+     * @return the number of messages sent, and neither lost nor dropped
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Heal all partitions
+     */
+    public void heal() {
+        partitions = Collections.emptyMap();
+    }
+
+    /**
+     * @return a new member of the network
+     */
+    public SimulatedGossip join() {
+        int address = nextAddress.getAndIncrement();
+        SimulatedGossip member;
+        try {
+            member = new SimulatedGossip(
+                                         this,
+                                         new InetSocketAddress(
+                                                               InetAddress.getByAddress(new byte[] {
+                                                                       10,
+                                                                       (byte) (address >>> 16),
+                                                                       (byte) (address >>> 8),
+                                                                       (byte) address }),
+                                                               4242));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        members.add(member);
+        return member;
+    }
+
+    /**
+     * Partition the network. Members of different groups cannot communicate,
+     * nor can members of a group communicate with members of none
+     * 
+     * @param groups
+     */
+    @SafeVarargs
+    public final void partition(Collection<SimulatedGossip>... groups) {
+        Map<SimulatedGossip, Integer> partitioned = new HashMap<SimulatedGossip, Integer>();
+        for (int i = 0; i < groups.length; i++) {
+            for (SimulatedGossip member : groups[i]) {
+                partitioned.put(member, i);
+            }
+        }
+        partitions = partitioned;
+    }
+
+    /**
+     * Set the interval at which each member reconciles its states with a
+     * random member
+     * 
+     * @param interval
+     *            - the interval, or 0 to disable anti entropy
+     * @param unit
+     */
+    public void setAntiEntropy(long interval, TimeUnit unit) {
+        ScheduledFuture<?> current = antiEntropy;
+        if (current != null) {
+            current.cancel(false);
+        }
+        if (interval <= 0) {
+            antiEntropy = null;
+            return;
+        }
+        antiEntropy = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * @param fanout
+     *            - the number of members a new version is forwarded to
+     */
+    public void setFanout(int fanout) {
+        if (fanout < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Fanout must be positive: %s",
+                                                             fanout));
+        }
+        this.fanout = fanout;
+    }
+
+    /**
+     * Set the latency of the messages, uniformly distributed between the
+     * minimum and maximum
+     * 
+     * @param min
+     * @param max
+     * @param unit
+     */
+    public void setLatency(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid latency range [%s, %s]",
+                                                             min, max));
+        }
+        minLatency = unit.toMicros(min);
+        maxLatency = unit.toMicros(max);
+    }
+
+    /**
+     * @param loss
+     *            - the probability a message is lost
+     */
+    public void setLoss(double loss) {
+        if (loss < 0.0 || loss >= 1.0) {
+            throw new IllegalArgumentException(
+                                               String.format("Loss must be within [0, 1): %s",
+                                                             loss));
+        }
+        this.loss = loss;
+    }
+
+    public void setMaxStateSize(int maxStateSize) {
+        this.maxStateSize = maxStateSize;
+    }
+
+    /**
+     * Shut down the delivery of messages
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    int getMaxStateSize() {
+        return maxStateSize;
+    }
+
+    void leave(SimulatedGossip member) {
+        members.remove(member);
+    }
+
+    /**
+     * Process the messages of the member
+     * 
+     * @param drain
+     */
+    void process(Runnable drain) {
+        try {
+            workers.execute(drain);
+        } catch (RejectedExecutionException e) {
+            // the network is shut down
+        }
+    }
+
+    /**
+     * Forward the version to random members
+     * 
+     * @param from
+     * @param version
+     */
+    void spread(SimulatedGossip from, Version version) {
+        List<SimulatedGossip> current = members;
+        int size = current.size();
+        if (size < 2) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = Math.min(fanout, size - 1);
+        List<SimulatedGossip> targets = new ArrayList<SimulatedGossip>(count);
+        int attempts = 0;
+        while (targets.size() < count && attempts++ < count * 4) {
+            SimulatedGossip target;
+            try {
+                target = current.get(random.nextInt(size));
+            } catch (IndexOutOfBoundsException e) {
+                continue; // a member left
+            }
+            if (target != from && !targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+        for (SimulatedGossip target : targets) {
+            send(from, target, version);
+        }
+    }
+
+    private boolean isPartitioned(SimulatedGossip a, SimulatedGossip b) {
+        Map<SimulatedGossip, Integer> current = partitions;
+        if (current.isEmpty()) {
+            return false;
+        }
+        Integer group = current.get(a);
+        return group == null || !group.equals(current.get(b));
+    }
+
+    /**
+     * Each member reconciles its states with a random member
+     */
+    private void reconcile() {
+        List<SimulatedGossip> current = members;
+        final int size = current.size();
+        if (size < 2) {
+            return;
+        }
+        for (final SimulatedGossip member : current) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SimulatedGossip peer;
+                    try {
+                        peer = members.get(ThreadLocalRandom.current().nextInt(size));
+                    } catch (IndexOutOfBoundsException e) {
+                        return; // a member left
+                    }
+                    if (peer == member || isPartitioned(member, peer)) {
+                        return;
+                    }
+                    for (Version version : peer.newerThan(member)) {
+                        send(peer, member, version);
+                    }
+                }
+            });
+        }
+    }
+
+    private void send(SimulatedGossip from, final SimulatedGossip to,
+                      final Version version) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (isPartitioned(from, to) || (loss > 0.0 && random.nextDouble() < loss)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        sent.incrementAndGet();
+        long latency = minLatency == maxLatency ? minLatency
+                                               : minLatency
+                                                 + random.nextLong(maxLatency
+                                                                   - minLatency
+                                                                   + 1);
+        if (latency == 0) {
+            to.deliver(version);
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    to.deliver(version);
+                }
+            }, latency, TimeUnit.MICROSECONDS);
+        } catch (RuntimeException e) {
+            // the network is shut down
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class SimulationTest {
+
+    private static boolean await(List<GossipScope> scopes, UUID id,
+                                 boolean registered) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            boolean converged = true;
+            for (GossipScope scope : scopes) {
+                if ((scope.getReference(id) != null) != registered) {
+                    converged = false;
+                    break;
+                }
+            }
+            if (converged) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static boolean awaitLoad(final GossipScope scope, final UUID id,
+                                     final String load) throws Exception {
+        return Await.until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                ServiceReference ref = scope.getReference(id);
+                return ref != null
+                       && load.equals(ref.getProperties().get("load"));
+            }
+        }, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testConvergence() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork();
+        network.setLatency(1, 5, TimeUnit.MILLISECONDS);
+        network.setLoss(0.05);
+        network.setAntiEntropy(100, TimeUnit.MILLISECONDS);
+        ScaleDriver driver = new ScaleDriver(network, 200);
+        try {
+            ScaleDriver.Report report = driver.run(20, 1, 30,
+                                                   TimeUnit.SECONDS);
+            assertEquals(40, report.publications);
+            assertEquals(0, report.pending);
+            assertEquals(40 * 200, report.events);
+            assertEquals(40, report.convergence.getCount());
+            assertTrue(report.dropped > 0);
+            for (GossipScope scope : driver.getScopes()) {
+                assertEquals(Integer.valueOf(20),
+                             scope.getServiceCounts().get(ScaleDriver.SERVICE_TYPE));
+            }
+            for (RegistryFootprint footprint : driver.getFootprints()) {
+                assertEquals(20, footprint.getServices());
+            }
+        } finally {
+            driver.stop();
+        }
+    }
+
+    @Test
+    public void testPartition() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork();
+        network.setLatency(0, 2, TimeUnit.MILLISECONDS);
+        network.setAntiEntropy(50, TimeUnit.MILLISECONDS);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        List<GossipScope> scopes = new ArrayList<GossipScope>();
+        List<SimulatedGossip> left = new ArrayList<SimulatedGossip>();
+        List<SimulatedGossip> right = new ArrayList<SimulatedGossip>();
+        for (int i = 0; i < 40; i++) {
+            SimulatedGossip member = network.join();
+            (i < 20 ? left : right).add(member);
+            scopes.add(new GossipScope(executor, member));
+        }
+        try {
+            network.partition(left, right);
+            UUID id = scopes.get(0).register(new ServiceURL(
+                                                            "service:partitioned://partitioned:1"),
+                                             Collections.<String, String> emptyMap());
+            assertTrue(await(scopes.subList(0, 20), id, true));
+            Thread.sleep(250);
+            for (GossipScope scope : scopes.subList(20, 40)) {
+                assertNull(scope.getReference(id));
+            }
+
+            network.heal();
+            assertTrue(await(scopes, id, true));
+
+            scopes.get(0).unregister(id);
+            assertTrue(await(scopes, id, false));
+        } finally {
+            network.shutdown();
+        }
+    }
+
+    @Test
+    public void testThrottledUpdateFlushed() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork();
+        network.setLatency(0, 2, TimeUnit.MILLISECONDS);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final GossipScope publisher = new GossipScope(executor, network.join());
+        final GossipScope subscriber = new GossipScope(executor,
+                                                       network.join());
+        try {
+            final UUID id = publisher.register(new ServiceURL(
+                                                              "service:throttled://throttled:1"),
+                                               Collections.singletonMap("load",
+                                                                        "1"));
+            publisher.setUpdatePolicy(id, new UpdatePolicy(1, TimeUnit.HOURS,
+                                                           0));
+            publisher.setProperties(id, Collections.singletonMap("load", "2"));
+            publisher.setProperties(id, Collections.singletonMap("load", "3"));
+            assertTrue(awaitLoad(subscriber, id, "2"));
+
+            // the update throttled under the previous policy is published
+            publisher.setUpdatePolicy(id, null);
+            assertTrue(awaitLoad(subscriber, id, "3"));
+
+            publisher.setUpdatePolicy(id, new UpdatePolicy(1, TimeUnit.HOURS,
+                                                           0));
+            publisher.setProperties(id, Collections.singletonMap("load", "4"));
+            publisher.setProperties(id, Collections.singletonMap("load", "5"));
+            assertTrue(awaitLoad(subscriber, id, "4"));
+            publisher.setUpdatePolicy(null);
+            assertTrue(awaitLoad(subscriber, id, "5"));
+
+            // and on stop
+            publisher.setUpdatePolicy(id, new UpdatePolicy(1, TimeUnit.HOURS,
+                                                           0));
+            publisher.setProperties(id, Collections.singletonMap("load", "6"));
+            publisher.setProperties(id, Collections.singletonMap("load", "7"));
+            publisher.stop();
+            assertEquals("7",
+                         publisher.getReference(id).getProperties().get("load"));
+        } finally {
+            network.shutdown();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.hellblazer.nexus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testCancel() {
+        final List<String> fired = new ArrayList<String>();
+        TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 0);
+        TimingWheel.Timeout a = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("a");
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("b");
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertEquals(2, wheel.size());
+        assertTrue(a.cancel());
+        assertFalse(a.cancel());
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, wheel.advance(40));
+        assertEquals(1, wheel.advance(50));
+        assertEquals(1, fired.size());
+        assertEquals("b", fired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        Random entropy = new Random(666);
+        final Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+        final Map<Integer, Long> fired = new HashMap<Integer, Long>();
+        final long[] window = new long[2];
+        final TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 0);
+        List<TimingWheel.Timeout> timeouts = new ArrayList<TimingWheel.Timeout>();
+        for (int i = 0; i < 20000; i++) {
+            final int id = i;
+            // delays spanning the first three levels of the wheel
+            long delay = 1 + entropy.nextInt(i % 3 == 0 ? 60
+                                                       : i % 3 == 1 ? 4000
+                                                                   : 200000);
+            deadlines.put(id, delay);
+            timeouts.add(wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long deadline = deadlines.get(id);
+                    // expired by the advance which passed the deadline
+                    fired.put(id, deadline > window[0]
+                                  && deadline <= window[1] ? deadline : -1L);
+                }
+            }, delay, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 0; i < timeouts.size(); i += 10) {
+            assertTrue(timeouts.get(i).cancel());
+            deadlines.remove(i);
+        }
+        assertEquals(deadlines.size(), wheel.size());
+
+        for (long now = 0; now <= 200001; now += 1 + entropy.nextInt(500)) {
+            window[1] = now;
+            wheel.advance(now);
+            window[0] = now;
+        }
+        window[1] = 200001;
+        wheel.advance(200001);
+        assertEquals(0, wheel.size());
+        assertEquals(deadlines, fired);
+    }
+}